@@ -0,0 +1,29 @@
+package android.util;
+
+/**
+ * Stands in for the SDK's Log, whose methods all throw off the device, so that benchmarked app
+ * classes that log can run; it's ahead of android.jar on the benchmark classpath. Only what the
+ * benchmarked classes call.
+ */
+public final class Log {
+
+    private Log() {
+    }
+
+    public static int d(String tag, String msg) {
+        return 0;
+    }
+
+    public static int w(String tag, String msg) {
+        return 0;
+    }
+
+    public static int e(String tag, String msg) {
+        return 0;
+    }
+
+    public static int e(String tag, String msg, Throwable tr) {
+        return 0;
+    }
+
+}
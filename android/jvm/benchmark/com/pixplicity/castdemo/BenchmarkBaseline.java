@@ -0,0 +1,198 @@
+package com.pixplicity.castdemo;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * Compares JMH results, as written with <code>-rf csv</code>, to a stored baseline, or replaces the
+ * baseline by them. Scores are times per operation, so higher is worse. A benchmark only fails the
+ * check if even the low end of its confidence interval is slower than the tolerance allows, so
+ * that a noisy run doesn't.
+ * <p>
+ * Usage: <code>check results.csv baseline.properties tolerance</code> or
+ * <code>record results.csv baseline.properties</code>
+ */
+public class BenchmarkBaseline {
+
+    private static final String PACKAGE_PREFIX = BenchmarkBaseline.class.getPackage().getName() + ".";
+
+    private static class Result {
+
+        final double score;
+        /** Half the width of the 99.9% confidence interval */
+        final double error;
+        final String unit;
+
+        Result(double score, double error, String unit) {
+            this.score = score;
+            this.error = error;
+            this.unit = unit;
+        }
+
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 4 && args[0].equals("check")) {
+            System.exit(check(read(args[1]), load(args[2]), Double.parseDouble(args[3])) ? 0 : 1);
+        } else if (args.length == 3 && args[0].equals("record")) {
+            record(read(args[1]), args[2]);
+        } else {
+            System.err.println("usage: check results.csv baseline.properties tolerance"
+                    + " | record results.csv baseline.properties");
+            System.exit(2);
+        }
+    }
+
+    /**
+     * @return Whether no benchmark is slower than its baseline by more than the tolerance
+     */
+    private static boolean check(Map<String, Result> results, Properties baseline, double tolerance) {
+        boolean passed = true;
+        for (Map.Entry<String, Result> entry : results.entrySet()) {
+            String name = entry.getKey();
+            Result result = entry.getValue();
+            String expected = baseline.getProperty(name);
+            if (expected == null) {
+                System.out.println(String.format("%-60s %12.3f %s  (no baseline)", name, result.score,
+                        result.unit));
+                continue;
+            }
+            String unit = expected.substring(expected.indexOf(' ') + 1);
+            if (!unit.equals(result.unit)) {
+                System.out.println(name + ": unit changed from " + unit + " to " + result.unit
+                        + "; record a new baseline");
+                passed = false;
+                continue;
+            }
+            double limit = Double.parseDouble(expected.substring(0, expected.indexOf(' '))) * (1 + tolerance);
+            boolean regressed = result.score - result.error > limit;
+            System.out.println(String.format("%-60s %12.3f ± %.3f %s  (limit %.3f)%s", name, result.score,
+                    result.error, unit, limit, regressed ? "  REGRESSED" : ""));
+            passed &= !regressed;
+        }
+        for (String name : baseline.stringPropertyNames()) {
+            if (!results.containsKey(name)) {
+                System.out.println(name + ": in the baseline, but not in the results");
+            }
+        }
+        if (!passed) {
+            System.out.println("Slower than the baseline by more than " + Math.round(tolerance * 100) + "%");
+        }
+        return passed;
+    }
+
+    private static void record(Map<String, Result> results, String file) throws IOException {
+        StringBuilder out = new StringBuilder();
+        out.append("# Benchmark baseline: score and unit per benchmark. Record it again with\n")
+                .append("# \"ant benchmark-baseline\" on the machine the benchmarks are checked on.\n");
+        out.append("# ").append(System.getProperty("os.name")).append(' ').append(System.getProperty("os.arch"))
+                .append(", Java ").append(System.getProperty("java.version")).append(", ")
+                .append(Runtime.getRuntime().availableProcessors()).append(" CPUs\n");
+        for (Map.Entry<String, Result> result : new TreeMap<String, Result>(results).entrySet()) {
+            // Parameters in the name hold ':' and '=', which need escaping in a property key
+            out.append(result.getKey().replace(":", "\\:").replace("=", "\\=")).append('=')
+                    .append(result.getValue().score).append(' ').append(result.getValue().unit).append('\n');
+        }
+        OutputStream stream = new FileOutputStream(file);
+        try {
+            stream.write(out.toString().getBytes("UTF-8"));
+        } finally {
+            stream.close();
+        }
+        System.out.println("Recorded " + results.size() + " benchmarks in " + file);
+    }
+
+    /**
+     * @return Results by benchmark name, the name followed by its parameters
+     */
+    private static Map<String, Result> read(String file) throws IOException {
+        Map<String, Result> results = new LinkedHashMap<String, Result>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            List<String> header = parseLine(reader.readLine());
+            int nameColumn = header.indexOf("Benchmark");
+            int scoreColumn = header.indexOf("Score");
+            int errorColumn = header.indexOf("Score Error (99.9%)");
+            int unitColumn = header.indexOf("Unit");
+            if (nameColumn < 0 || scoreColumn < 0 || errorColumn < 0 || unitColumn < 0) {
+                throw new IOException("Not a JMH CSV result file: " + file);
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().length() == 0) {
+                    continue;
+                }
+                List<String> fields = parseLine(line);
+                StringBuilder name = new StringBuilder(fields.get(nameColumn));
+                if (name.indexOf(PACKAGE_PREFIX) == 0) {
+                    name.delete(0, PACKAGE_PREFIX.length());
+                }
+                for (int i = 0; i < header.size(); i++) {
+                    if (header.get(i).startsWith("Param: ") && fields.get(i).length() > 0) {
+                        name.append(':').append(header.get(i).substring("Param: ".length())).append('=')
+                                .append(fields.get(i));
+                    }
+                }
+                String error = fields.get(errorColumn);
+                results.put(name.toString(), new Result(Double.parseDouble(fields.get(scoreColumn)),
+                        error.equals("NaN") ? 0 : Double.parseDouble(error), fields.get(unitColumn)));
+            }
+        } finally {
+            reader.close();
+        }
+        return results;
+    }
+
+    private static Properties load(String file) throws IOException {
+        Properties properties = new Properties();
+        FileInputStream in = new FileInputStream(file);
+        try {
+            properties.load(in);
+        } finally {
+            in.close();
+        }
+        return properties;
+    }
+
+    /**
+     * Splits a CSV line; fields may be quoted, with doubled quotes inside
+     */
+    private static List<String> parseLine(String line) {
+        List<String> fields = new ArrayList<String>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
+}
@@ -0,0 +1,65 @@
+package com.pixplicity.castdemo;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Long messages: splitting a 100,000-character envelope into chunks, and joining the chunks again
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class ChunkAssemblerBenchmark {
+
+    private static final int LENGTH = 100000;
+
+    private final EnvelopeCodec mCodec = new EnvelopeCodec();
+    private final ChunkAssembler mAssembler = new ChunkAssembler(4 * EnvelopeCodec.MAX_ENVELOPE_LENGTH, 10000);
+    private String mEnvelope;
+    private String[] mPieces;
+    private long mChunkId;
+
+    @Setup
+    public void setUp() {
+        StringBuilder message = new StringBuilder(LENGTH);
+        while (message.length() < LENGTH) {
+            message.append("All work and no play makes Jack a dull boy. ");
+        }
+        mEnvelope = mCodec.encode(EnvelopeCodec.CODE_MESSAGE, message.toString(), "someone@example.com");
+        String[] chunks = mCodec.encodeChunks(mEnvelope, 1);
+        mPieces = new String[chunks.length];
+        final int[] index = new int[1];
+        for (String chunk : chunks) {
+            mCodec.decode(chunk, new EnvelopeCodec.EnvelopeHandler() {
+
+                @Override
+                public void onEnvelope(EnvelopeCodec.Envelope envelope) {
+                    mPieces[index[0]++] = envelope.msg;
+                }
+            });
+        }
+    }
+
+    @Benchmark
+    public String[] encodeChunks() {
+        return mCodec.encodeChunks(mEnvelope, ++mChunkId);
+    }
+
+    @Benchmark
+    public String assemble() {
+        long cid = ++mChunkId;
+        String envelope = null;
+        for (int i = 0; i < mPieces.length; i++) {
+            envelope = mAssembler.add("device", cid, i, mPieces.length, mPieces[i], 0);
+        }
+        return envelope;
+    }
+
+}
@@ -0,0 +1,98 @@
+package com.pixplicity.castdemo;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * What HelloWorldChannel does per chat message: encoding it for the send queue, and decoding the
+ * frames the receiver broadcasts back, which hold a single envelope or a batch of them
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class EnvelopeCodecBenchmark {
+
+    private static final String MESSAGE = "Did anyone see where I left the remote? It was here a minute ago";
+    private static final String NAME = "someone@example.com";
+    private static final int BATCH_SIZE = 16;
+
+    private final EnvelopeCodec mEncoder = new EnvelopeCodec();
+    private final EnvelopeCodec mDecoder = new EnvelopeCodec();
+    private String mJsonEnvelope;
+    private String mCompactEnvelope;
+    private String mEscapedEnvelope;
+    private String mBatchFrame;
+    private long mSequence;
+    private Blackhole mBlackhole;
+
+    private final EnvelopeCodec.EnvelopeHandler mHandler = new EnvelopeCodec.EnvelopeHandler() {
+
+        @Override
+        public void onEnvelope(EnvelopeCodec.Envelope envelope) {
+            mBlackhole.consume(envelope.msg);
+            mBlackhole.consume(envelope.name);
+            mBlackhole.consume(envelope.ts);
+        }
+    };
+
+    @Setup
+    public void setUp() {
+        EnvelopeCodec codec = new EnvelopeCodec();
+        mJsonEnvelope = codec.encode(EnvelopeCodec.CODE_MESSAGE, MESSAGE, NAME, 123456, 1400000000000L);
+        mCompactEnvelope = codec.encodeCompact(EnvelopeCodec.CODE_MESSAGE, MESSAGE, 7, 123456, 1400000000000L);
+        mEscapedEnvelope = codec.encode(EnvelopeCodec.CODE_MESSAGE, "\"Quoted\"\nand on\ta new line é",
+                NAME, 123456, 1400000000000L);
+        StringBuilder frame = new StringBuilder("[");
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            if (i > 0) {
+                frame.append(',');
+            }
+            frame.append(codec.encodeCompact(EnvelopeCodec.CODE_MESSAGE, MESSAGE + i, 7, 1000 + i,
+                    1400000000000L + i));
+        }
+        mBatchFrame = frame.append(']').toString();
+    }
+
+    @Benchmark
+    public String encodeJson() {
+        return mEncoder.encode(EnvelopeCodec.CODE_MESSAGE, MESSAGE, NAME, ++mSequence, 1400000000000L);
+    }
+
+    @Benchmark
+    public String encodeCompact() {
+        return mEncoder.encodeCompact(EnvelopeCodec.CODE_MESSAGE, MESSAGE, 7, ++mSequence, 1400000000000L);
+    }
+
+    @Benchmark
+    public boolean decodeJson(Blackhole blackhole) {
+        mBlackhole = blackhole;
+        return mDecoder.decode(mJsonEnvelope, mHandler);
+    }
+
+    @Benchmark
+    public boolean decodeCompact(Blackhole blackhole) {
+        mBlackhole = blackhole;
+        return mDecoder.decode(mCompactEnvelope, mHandler);
+    }
+
+    @Benchmark
+    public boolean decodeEscaped(Blackhole blackhole) {
+        mBlackhole = blackhole;
+        return mDecoder.decode(mEscapedEnvelope, mHandler);
+    }
+
+    @Benchmark
+    public boolean decodeBatchFrame(Blackhole blackhole) {
+        mBlackhole = blackhole;
+        return mDecoder.decode(mBatchFrame, mHandler);
+    }
+
+}
@@ -0,0 +1,185 @@
+package com.pixplicity.castdemo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+/**
+ * Media server: a round of concurrent loads of a file from a local {@link MediaServer} over HTTP,
+ * the way video elements load and seek through it. The time per round gives the throughput; the
+ * secondary <code>allocatedKB</code> result is what the round allocated on all threads, client
+ * and server, which should stay small and not grow with the file, as the server streams it.
+ * <p>
+ * The server serves 8 connections at a time and queues 8 more, so up to 16 clients are served
+ * without being refused.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class MediaServerBenchmark {
+
+    private static final int FILE_LENGTH = 4 << 20;
+
+    /**
+     * Heap allocated per round. JMH adds up the counter over the measurement iterations, so each
+     * iteration contributes its share of the average.
+     */
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Allocation {
+
+        public double allocatedKB;
+
+        private int mIterations;
+        private long mBytes;
+        private int mRounds;
+
+        @Setup(Level.Iteration)
+        public void reset(BenchmarkParams params) {
+            mIterations = params.getMeasurement().getCount();
+            allocatedKB = 0;
+            mBytes = 0;
+            mRounds = 0;
+        }
+
+        void add(long bytes) {
+            mBytes += bytes;
+            mRounds++;
+            allocatedKB = mBytes / 1024.0 / mRounds / mIterations;
+        }
+
+    }
+
+    @Param({
+            "1", "4", "12"
+    })
+    public int connections;
+
+    private File mFile;
+    private MediaServer mServer;
+    private URL mUrl;
+    private ExecutorService mClients;
+    private final List<Callable<Long>> mLoads = new ArrayList<Callable<Long>>();
+    private com.sun.management.ThreadMXBean mThreads;
+
+    @Setup
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("media", ".mp4");
+        RandomAccessFile out = new RandomAccessFile(mFile, "rw");
+        try {
+            byte[] chunk = new byte[64 * 1024];
+            new Random(0).nextBytes(chunk);
+            for (int written = 0; written < FILE_LENGTH; written += chunk.length) {
+                out.write(chunk);
+            }
+        } finally {
+            out.close();
+        }
+        // Idle kept-alive connections would hold on to the server's workers between rounds; the
+        // Connection header can't be set per request
+        System.setProperty("http.keepAlive", "false");
+        mServer = new MediaServer();
+        int port = mServer.start(0);
+        mUrl = new URL("http://127.0.0.1:" + port + mServer.register(MediaServer.forFile(mFile, "video/mp4")));
+        mClients = Executors.newFixedThreadPool(connections);
+        for (int i = 0; i < connections; i++) {
+            // Every fourth client seeks into the second half
+            mLoads.add(new Load(i % 4 == 3 ? FILE_LENGTH / 2 + i * 4096 : -1));
+        }
+        mThreads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    }
+
+    @TearDown
+    public void tearDown() {
+        mClients.shutdownNow();
+        mServer.stop();
+        mFile.delete();
+    }
+
+    /**
+     * Loads the file from a given offset, or all of it, on a connection of its own
+     */
+    private class Load implements Callable<Long> {
+
+        private final long mStart;
+        private final byte[] mBuffer = new byte[64 * 1024];
+
+        Load(long start) {
+            mStart = start;
+        }
+
+        @Override
+        public Long call() throws IOException {
+            HttpURLConnection connection = (HttpURLConnection) mUrl.openConnection();
+            if (mStart >= 0) {
+                connection.setRequestProperty("Range", "bytes=" + mStart + "-");
+            }
+            int expected = mStart >= 0 ? HttpURLConnection.HTTP_PARTIAL : HttpURLConnection.HTTP_OK;
+            if (connection.getResponseCode() != expected) {
+                throw new IOException("status " + connection.getResponseCode() + "; " + mServer.getStatsSummary());
+            }
+            InputStream in = connection.getInputStream();
+            long received = 0;
+            try {
+                int read;
+                while ((read = in.read(mBuffer)) >= 0) {
+                    received += read;
+                }
+            } finally {
+                in.close();
+            }
+            if (received != FILE_LENGTH - Math.max(0, mStart)) {
+                throw new IOException("received " + received + " bytes from " + mStart);
+            }
+            return received;
+        }
+
+    }
+
+    private long allocatedBytes() {
+        long total = 0;
+        for (long allocated : mThreads.getThreadAllocatedBytes(mThreads.getAllThreadIds())) {
+            // -1 for threads that ended meanwhile
+            total += Math.max(0, allocated);
+        }
+        return total;
+    }
+
+    @Benchmark
+    public long loadConcurrently(Allocation allocation) throws InterruptedException, ExecutionException {
+        long allocatedBefore = allocatedBytes();
+        long bytes = 0;
+        for (Future<Long> load : mClients.invokeAll(mLoads)) {
+            bytes += load.get();
+        }
+        allocation.add(allocatedBytes() - allocatedBefore);
+        return bytes;
+    }
+
+}
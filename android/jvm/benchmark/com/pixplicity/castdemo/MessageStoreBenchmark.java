@@ -0,0 +1,60 @@
+package com.pixplicity.castdemo;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Message history: appending to a full store, which evicts the oldest entry every time, and
+ * reading a row the way the list adapter binds it
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class MessageStoreBenchmark {
+
+    private static final int USERS = 8;
+
+    @Param({
+            "1000", "50000"
+    })
+    public int capacity;
+
+    private MessageStore mStore;
+    private String[] mUsernames;
+    private int mNext;
+
+    @Setup
+    public void setUp() {
+        mStore = new MessageStore(capacity);
+        mUsernames = new String[USERS];
+        for (int i = 0; i < USERS; i++) {
+            mUsernames[i] = "user" + i + "@example.com";
+        }
+        for (int i = 0; i < capacity; i++) {
+            mStore.append(mUsernames[i % USERS], "message " + i);
+        }
+    }
+
+    @Benchmark
+    public long appendEvicting() {
+        // Fresh username strings, as decoded from a frame, so that interning is part of the cost
+        int next = mNext++;
+        return mStore.append(new String(mUsernames[next % USERS]), "message");
+    }
+
+    @Benchmark
+    public long bindRow() {
+        int position = (int) ((mNext++ * 7919L) % capacity);
+        return mStore.getUsername(position).length() + mStore.getMessage(position).length()
+                + mStore.getSequence(position);
+    }
+
+}
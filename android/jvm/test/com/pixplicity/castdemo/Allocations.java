@@ -0,0 +1,30 @@
+package com.pixplicity.castdemo;
+
+import java.lang.management.ManagementFactory;
+
+import org.junit.Assume;
+
+/**
+ * Measures what the current thread allocates; tests that use it are skipped on JVMs that can't
+ */
+final class Allocations {
+
+    private Allocations() {
+    }
+
+    /**
+     * @return Bytes allocated by the current thread while running the task
+     */
+    static long measure(Runnable task) {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        task.run();
+        return threads.getThreadAllocatedBytes(thread) - before;
+    }
+
+}
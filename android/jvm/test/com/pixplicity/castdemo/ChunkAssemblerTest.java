@@ -0,0 +1,92 @@
+package com.pixplicity.castdemo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class ChunkAssemblerTest {
+
+    private static final int MAX_BUFFERED = 100;
+    private static final long TIMEOUT = 1000;
+
+    @Test
+    public void joinsChunksInIndexOrder() {
+        ChunkAssembler assembler = new ChunkAssembler(MAX_BUFFERED, TIMEOUT);
+        assertNull(assembler.add("a", 1, 2, 3, "ghi", 0));
+        assertNull(assembler.add("a", 1, 0, 3, "abc", 0));
+        assertEquals("abcdefghi", assembler.add("a", 1, 1, 3, "def", 0));
+        assertTrue(assembler.getStatsSummary(), assembler.getStatsSummary().startsWith(
+                "chunks=3, assembled=1, pending=0, bufferedChars=0, maxBufferedChars=9, dropped=0"));
+    }
+
+    @Test
+    public void keepsEnvelopesOfDifferentSourcesApart() {
+        ChunkAssembler assembler = new ChunkAssembler(MAX_BUFFERED, TIMEOUT);
+        // Chunk ids are only unique per source
+        assertNull(assembler.add("a", 1, 0, 2, "a0", 0));
+        assertNull(assembler.add("b", 1, 0, 2, "b0", 0));
+        assertNull(assembler.add("a", 2, 0, 2, "c0", 0));
+        assertEquals("b0b1", assembler.add("b", 1, 1, 2, "b1", 0));
+        assertEquals("a0a1", assembler.add("a", 1, 1, 2, "a1", 0));
+        assertEquals("c0c1", assembler.add("a", 2, 1, 2, "c1", 0));
+    }
+
+    @Test
+    public void ignoresRepeatedChunks() {
+        ChunkAssembler assembler = new ChunkAssembler(MAX_BUFFERED, TIMEOUT);
+        assertNull(assembler.add("a", 1, 0, 2, "ab", 0));
+        assertNull(assembler.add("a", 1, 0, 2, "ab", 0));
+        assertEquals("abcd", assembler.add("a", 1, 1, 2, "cd", 0));
+        // Once assembled, a late repeat starts over instead of completing it again
+        assertNull(assembler.add("a", 1, 1, 2, "cd", 0));
+    }
+
+    @Test
+    public void dropsEnvelopesWithInconsistentChunks() {
+        ChunkAssembler assembler = new ChunkAssembler(MAX_BUFFERED, TIMEOUT);
+        assertNull(assembler.add("a", 1, 0, 2, "ab", 0));
+        // A different count drops what was buffered for the envelope
+        assertNull(assembler.add("a", 1, 1, 3, "cd", 0));
+        assertNull(assembler.add("a", 1, 1, 2, "cd", 0));
+        assertNull(assembler.add("a", 2, 2, 2, "x", 0));
+        assertNull(assembler.add("a", 3, 0, EnvelopeCodec.MAX_CHUNKS + 1, "x", 0));
+        assertNull(assembler.add("a", 4, 0, 1, null, 0));
+        assertTrue(assembler.getStatsSummary(), assembler.getStatsSummary().endsWith("dropped=4, expired=0"));
+    }
+
+    @Test
+    public void boundsTheBufferedText() {
+        ChunkAssembler assembler = new ChunkAssembler(MAX_BUFFERED, TIMEOUT);
+        String forty = text(40);
+        assertNull(assembler.add("a", 1, 0, 2, forty, 0));
+        assertNull(assembler.add("b", 1, 0, 2, forty, 0));
+        // Would take the buffered text over the limit, so its envelope is dropped
+        assertNull(assembler.add("c", 1, 0, 2, text(21), 0));
+        assertEquals(41, assembler.add("a", 1, 1, 2, "z", 0).length());
+        // Assembling made room again
+        assertEquals(60, assembler.add("c", 2, 0, 1, text(60), 0).length());
+    }
+
+    @Test
+    public void expiresEnvelopesThatStopReceivingChunks() {
+        ChunkAssembler assembler = new ChunkAssembler(MAX_BUFFERED, TIMEOUT);
+        assertNull(assembler.add("a", 1, 0, 2, "ab", 0));
+        assertNull(assembler.add("a", 2, 0, 2, "cd", TIMEOUT / 2));
+        assembler.expire(TIMEOUT + 1);
+        // The first one is gone, so its last chunk doesn't complete it
+        assertNull(assembler.add("a", 1, 1, 2, "ef", TIMEOUT + 1));
+        assertEquals("cdgh", assembler.add("a", 2, 1, 2, "gh", TIMEOUT + 1));
+        assertTrue(assembler.getStatsSummary(), assembler.getStatsSummary().endsWith("expired=1"));
+    }
+
+    private static String text(int length) {
+        char[] chars = new char[length];
+        Arrays.fill(chars, 'x');
+        return new String(chars);
+    }
+
+}
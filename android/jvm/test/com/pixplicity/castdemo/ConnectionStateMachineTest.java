@@ -0,0 +1,254 @@
+package com.pixplicity.castdemo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import com.pixplicity.castdemo.ConnectionStateMachine.Snapshot;
+import com.pixplicity.castdemo.ConnectionStateMachine.State;
+
+public class ConnectionStateMachineTest {
+
+    private static final int THREADS = 8;
+    private static final int ROUNDS = 2000;
+    private static final int OPERATIONS = 100000;
+
+    private static class Transition {
+
+        final Snapshot<Object> from;
+        final Snapshot<Object> to;
+
+        Transition(Snapshot<Object> from, Snapshot<Object> to) {
+            this.from = from;
+            this.to = to;
+        }
+
+    }
+
+    @Test
+    public void movesThroughTheStatesOfOneClient() {
+        ConnectionStateMachine<Object> machine = new ConnectionStateMachine<Object>();
+        Object client = new Object();
+        assertTrue(machine.begin(client));
+        assertFalse(machine.begin(new Object()));
+        assertNull(machine.getConnectedClient());
+        assertTrue(machine.transition(client, State.CONNECTING, State.LAUNCHING));
+        assertTrue(machine.transition(client, State.LAUNCHING, State.CONNECTED));
+        assertSame(client, machine.getConnectedClient());
+        assertTrue(machine.transition(client, State.CONNECTED, State.SUSPENDED));
+        assertTrue(machine.get().isStarted());
+        assertNull(machine.getConnectedClient());
+        Snapshot<Object> left = machine.reset();
+        assertEquals(State.SUSPENDED, left.state);
+        assertSame(client, left.client);
+        assertEquals(State.DISCONNECTED, machine.get().state);
+    }
+
+    @Test
+    public void ignoresReplacedClients() {
+        ConnectionStateMachine<Object> machine = new ConnectionStateMachine<Object>();
+        Object previous = new Object();
+        Object current = new Object();
+        machine.begin(previous);
+        machine.reset();
+        machine.begin(current);
+        // E.g. onConnected of a client that was disconnected while the callback was pending
+        assertFalse(machine.transition(previous, State.CONNECTING, State.LAUNCHING));
+        assertFalse(machine.transition(current, State.LAUNCHING, State.CONNECTED));
+        assertEquals(State.CONNECTING, machine.get().state);
+        assertSame(current, machine.get().client);
+    }
+
+    @Test
+    public void refusesToDisconnectThroughATransition() {
+        ConnectionStateMachine<Object> machine = new ConnectionStateMachine<Object>();
+        Object client = new Object();
+        machine.begin(client);
+        try {
+            machine.transition(client, State.CONNECTING, State.DISCONNECTED);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void exactlyOneRacingBeginWins() throws Exception {
+        final ConnectionStateMachine<Object> machine = new ConnectionStateMachine<Object>();
+        final CyclicBarrier start = new CyclicBarrier(THREADS);
+        final AtomicInteger wins = new AtomicInteger();
+        final AtomicReference<Object> winner = new AtomicReference<Object>();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < THREADS; t++) {
+            threads.add(new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        for (int round = 0; round < ROUNDS; round++) {
+                            Object client = new Object();
+                            start.await();
+                            if (machine.begin(client)) {
+                                wins.incrementAndGet();
+                                winner.set(client);
+                            }
+                            start.await();
+                            if (winner.get() == client) {
+                                if (machine.get().client != client) {
+                                    throw new AssertionError("winner isn't the current client");
+                                }
+                                machine.reset();
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                        start.reset();
+                    }
+                }
+            }));
+        }
+        runAll(threads);
+        assertNull(String.valueOf(failure.get()), failure.get());
+        assertEquals(ROUNDS, wins.get());
+    }
+
+    @Test
+    public void exactlyOneRacingTransitionWins() throws Exception {
+        final ConnectionStateMachine<Object> machine = new ConnectionStateMachine<Object>();
+        final Object client = new Object();
+        final CyclicBarrier start = new CyclicBarrier(THREADS, new Runnable() {
+
+            @Override
+            public void run() {
+                // Between rounds, while every thread waits
+                machine.reset();
+                machine.begin(client);
+            }
+        });
+        final AtomicInteger wins = new AtomicInteger();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final State[] targets = {
+                State.LAUNCHING, State.CONNECTED, State.SUSPENDED
+        };
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < THREADS; t++) {
+            final State to = targets[t % targets.length];
+            threads.add(new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        for (int round = 0; round < ROUNDS; round++) {
+                            start.await();
+                            // Callbacks of the same client racing each other out of CONNECTING
+                            if (machine.transition(client, State.CONNECTING, to)) {
+                                wins.incrementAndGet();
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                        start.reset();
+                    }
+                }
+            }));
+        }
+        runAll(threads);
+        assertNull(String.valueOf(failure.get()), failure.get());
+        assertEquals(ROUNDS, wins.get());
+    }
+
+    @Test
+    public void keepsEveryTransitionUnderContention() throws Exception {
+        final ConnectionStateMachine<Object> machine = new ConnectionStateMachine<Object>();
+        final ConcurrentLinkedQueue<Transition> transitions = new ConcurrentLinkedQueue<Transition>();
+        machine.addListener(new ConnectionStateMachine.Listener<Object>() {
+
+            @Override
+            public void onStateChanged(Snapshot<Object> from, Snapshot<Object> to) {
+                transitions.add(new Transition(from, to));
+            }
+        });
+        final AtomicInteger succeeded = new AtomicInteger();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final State[] states = State.values();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < THREADS; t++) {
+            final Random random = new Random(t);
+            threads.add(new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < OPERATIONS; i++) {
+                            int operation = random.nextInt(10);
+                            if (operation == 0) {
+                                if (machine.reset().state != State.DISCONNECTED) {
+                                    succeeded.incrementAndGet();
+                                }
+                            } else if (operation < 3) {
+                                if (machine.begin(new Object())) {
+                                    succeeded.incrementAndGet();
+                                }
+                            } else {
+                                // Move whichever client is current, as its callbacks would
+                                Snapshot<Object> current = machine.get();
+                                if (current.client == null) {
+                                    continue;
+                                }
+                                State to = states[1 + random.nextInt(states.length - 1)];
+                                if (machine.transition(current.client, current.state, to)) {
+                                    succeeded.incrementAndGet();
+                                }
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            }));
+        }
+        runAll(threads);
+        assertNull(String.valueOf(failure.get()), failure.get());
+        // Every change that reported success was made exactly once and reached the listener
+        assertEquals(succeeded.get(), transitions.size());
+        IdentityHashMap<Snapshot<Object>, Boolean> left = new IdentityHashMap<Snapshot<Object>, Boolean>();
+        for (Transition transition : transitions) {
+            if (transition.from.state == State.DISCONNECTED) {
+                assertEquals(State.CONNECTING, transition.to.state);
+            } else {
+                // A state is only ever left once; a lost update would leave it twice
+                assertNull("state left twice", left.put(transition.from, Boolean.TRUE));
+                if (transition.to.state != State.DISCONNECTED) {
+                    assertSame(transition.from.client, transition.to.client);
+                }
+            }
+        }
+    }
+
+    private static void runAll(List<Thread> threads) throws InterruptedException {
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join(TimeUnit.SECONDS.toMillis(60));
+            assertFalse("stuck", thread.isAlive());
+        }
+    }
+
+}
@@ -0,0 +1,63 @@
+package com.pixplicity.castdemo;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+public class EchoMatcherTest {
+
+    private static final int WINDOW = 16;
+
+    @Test
+    public void recognizesItsOwnMessages() {
+        EchoMatcher matcher = new EchoMatcher(WINDOW);
+        matcher.onSent(1, 1000);
+        matcher.onSent(2, 1005);
+        assertTrue(matcher.isEcho(2, 1005));
+        assertTrue(matcher.isEcho(1, 1000));
+        // Echoes may come back more than once, e.g. after a reconnection
+        assertTrue(matcher.isEcho(1, 1000));
+    }
+
+    @Test
+    public void ignoresOtherSendersUsingTheSameSequence() {
+        EchoMatcher matcher = new EchoMatcher(WINDOW);
+        matcher.onSent(1, 1000);
+        assertFalse(matcher.isEcho(1, 999));
+    }
+
+    @Test
+    public void ignoresMessagesItNeverSent() {
+        EchoMatcher matcher = new EchoMatcher(WINDOW);
+        // Empty slots hold zeroes, which must not match a sender that sends no time
+        assertFalse(matcher.isEcho(3, 0));
+        assertFalse(matcher.isEcho(0, 0));
+        matcher.onSent(3, 1000);
+        assertFalse(matcher.isEcho(3 + WINDOW, 1000));
+    }
+
+    @Test
+    public void forgetsMessagesOutsideTheWindow() {
+        EchoMatcher matcher = new EchoMatcher(WINDOW);
+        for (int sequence = 1; sequence <= WINDOW + 1; sequence++) {
+            matcher.onSent(sequence, 1000);
+        }
+        // Overwritten by message WINDOW + 1, even though the send time is the same
+        assertFalse(matcher.isEcho(1, 1000));
+        assertTrue(matcher.isEcho(2, 1000));
+        assertTrue(matcher.isEcho(WINDOW + 1, 1000));
+    }
+
+    @Test
+    public void requiresAPowerOfTwo() {
+        try {
+            new EchoMatcher(1000);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+}
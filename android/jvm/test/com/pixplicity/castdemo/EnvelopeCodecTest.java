@@ -0,0 +1,323 @@
+package com.pixplicity.castdemo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class EnvelopeCodecTest {
+
+    private static final int WARM_UP = 20000;
+    private static final int ITERATIONS = 100000;
+    // Per message; covers allocations that are amortized, such as growing the buffers
+    private static final long ALLOCATION_SLACK = 16;
+
+    private static final String MESSAGE = "Hello, \"world\"\nfrom the sender";
+    private static final String NAME = "someone@example.com";
+
+    /**
+     * Copies of the fields of an envelope, which the codec reuses
+     */
+    private static class Decoded {
+
+        int code;
+        String msg;
+        String name;
+        long seq;
+        long ts;
+        int sid;
+        long hseq;
+        long cid;
+        int idx;
+        int cnt;
+        int format;
+
+    }
+
+    private static class Collector implements EnvelopeCodec.EnvelopeHandler {
+
+        final List<Decoded> envelopes = new ArrayList<Decoded>();
+
+        @Override
+        public void onEnvelope(EnvelopeCodec.Envelope envelope) {
+            Decoded decoded = new Decoded();
+            decoded.code = envelope.code;
+            decoded.msg = envelope.msg;
+            decoded.name = envelope.name;
+            decoded.seq = envelope.seq;
+            decoded.ts = envelope.ts;
+            decoded.sid = envelope.sid;
+            decoded.hseq = envelope.hseq;
+            decoded.cid = envelope.cid;
+            decoded.idx = envelope.idx;
+            decoded.cnt = envelope.cnt;
+            decoded.format = envelope.format;
+            envelopes.add(decoded);
+        }
+
+    }
+
+    /**
+     * Keeps the last strings, so that making them can't be optimized away
+     */
+    private static class Sink implements EnvelopeCodec.EnvelopeHandler {
+
+        String msg;
+        String name;
+
+        @Override
+        public void onEnvelope(EnvelopeCodec.Envelope envelope) {
+            msg = envelope.msg;
+            name = envelope.name;
+        }
+
+    }
+
+    @Test
+    public void roundTripsJson() {
+        EnvelopeCodec codec = new EnvelopeCodec();
+        Collector collector = new Collector();
+        String envelope = codec.encode(EnvelopeCodec.CODE_MESSAGE, MESSAGE, NAME, 42, 1234567890123L);
+        assertTrue(codec.decode(envelope, collector));
+        assertEquals(1, collector.envelopes.size());
+        Decoded decoded = collector.envelopes.get(0);
+        assertEquals(EnvelopeCodec.CODE_MESSAGE, decoded.code);
+        assertEquals(MESSAGE, decoded.msg);
+        assertEquals(NAME, decoded.name);
+        assertEquals(42, decoded.seq);
+        assertEquals(1234567890123L, decoded.ts);
+        assertEquals(EnvelopeCodec.FORMAT_JSON, decoded.format);
+    }
+
+    @Test
+    public void roundTripsCompact() {
+        EnvelopeCodec codec = new EnvelopeCodec();
+        Collector collector = new Collector();
+        String envelope = codec.encodeCompact(EnvelopeCodec.CODE_MESSAGE, "tab\there \u2028 \u00e9\ud83d\ude00",
+                7, 3, 99);
+        assertTrue(codec.decode(envelope, collector));
+        Decoded decoded = collector.envelopes.get(0);
+        assertEquals("tab\there \u2028 \u00e9\ud83d\ude00", decoded.msg);
+        assertNull(decoded.name);
+        assertEquals(7, decoded.sid);
+        assertEquals(3, decoded.seq);
+        assertEquals(99, decoded.ts);
+        assertEquals(EnvelopeCodec.FORMAT_COMPACT, decoded.format);
+    }
+
+    @Test
+    public void skipsUnknownKeys() {
+        EnvelopeCodec codec = new EnvelopeCodec();
+        Collector collector = new Collector();
+        assertTrue(codec.decode("{\"x\":{\"y\":[1,\"]}\"]},\"code\":2,\"z\":true,\"msg\":\"hi\",\"n\":-1.5e3}",
+                collector));
+        assertEquals(EnvelopeCodec.CODE_MESSAGE, collector.envelopes.get(0).code);
+        assertEquals("hi", collector.envelopes.get(0).msg);
+    }
+
+    @Test
+    public void countsAndDropsMalformedFrames() {
+        EnvelopeCodec codec = new EnvelopeCodec();
+        Collector collector = new Collector();
+        String[] frames = {
+                "", "{", "{\"code\":}", "{\"code\":2,}", "{\"code\":2} x", "{\"msg\":\"unterminated}",
+                "{\"msg\":\"\\u12\"}", "[{\"code\":2}", "nul"
+        };
+        for (String frame : frames) {
+            assertFalse(frame, codec.decode(frame, collector));
+        }
+        assertEquals(frames.length, codec.getFramesMalformed());
+        assertEquals(0, codec.getFramesDecoded());
+        // Still usable afterwards
+        assertTrue(codec.decode("{\"code\":1}", collector));
+        assertEquals(1, codec.getFramesDecoded());
+    }
+
+    @Test
+    public void decodesBroadcastBatches() {
+        EnvelopeCodec codec = new EnvelopeCodec();
+        Collector collector = new Collector();
+        // As the receiver broadcasts them: envelopes passed on as sent, numbered in its history,
+        // with compact and original ones mixed
+        assertTrue(codec.decode("[{\"c\":2,\"m\":\"hi\",\"s\":3,\"q\":5,\"t\":99,\"h\":12},"
+                + " {\"code\":2,\"msg\":\"yo\",\"name\":\"bob\",\"seq\":1,\"ts\":2,\"hseq\":13},"
+                + "{\"code\":1,\"sid\":4,\"name\":\"carol\"}]", collector));
+        assertEquals(1, codec.getFramesDecoded());
+        assertEquals(3, collector.envelopes.size());
+        Decoded compact = collector.envelopes.get(0);
+        assertEquals(EnvelopeCodec.FORMAT_COMPACT, compact.format);
+        assertEquals("hi", compact.msg);
+        assertEquals(3, compact.sid);
+        assertEquals(5, compact.seq);
+        assertEquals(12, compact.hseq);
+        Decoded json = collector.envelopes.get(1);
+        assertEquals(EnvelopeCodec.FORMAT_JSON, json.format);
+        assertEquals("bob", json.name);
+        assertEquals(13, json.hseq);
+        // Fields of the previous envelope don't carry over
+        Decoded hello = collector.envelopes.get(2);
+        assertEquals(EnvelopeCodec.CODE_HELLO, hello.code);
+        assertEquals(4, hello.sid);
+        assertEquals(0, hello.hseq);
+        assertEquals(0, hello.seq);
+        assertNull(hello.msg);
+    }
+
+    @Test
+    public void decodesSyncReplies() {
+        EnvelopeCodec codec = new EnvelopeCodec();
+        Collector collector = new Collector();
+        String sync = codec.encodeSync(41, 1400000000000L);
+        assertTrue(codec.decode(sync, collector));
+        assertEquals(EnvelopeCodec.CODE_SYNC, collector.envelopes.get(0).code);
+        assertEquals(41, collector.envelopes.get(0).hseq);
+        assertEquals(1400000000000L, collector.envelopes.get(0).ts);
+        collector.envelopes.clear();
+        assertTrue(codec.decode("[{\"code\":5,\"ts\":1400000000000},"
+                + "{\"c\":2,\"m\":\"a\",\"s\":1,\"h\":42},{\"c\":2,\"m\":\"b\",\"s\":2,\"h\":43},"
+                + "{\"code\":4,\"hseq\":43,\"ts\":1400000000000}]", collector));
+        assertEquals(EnvelopeCodec.CODE_HISTORY, collector.envelopes.get(0).code);
+        assertEquals(42, collector.envelopes.get(1).hseq);
+        assertEquals(43, collector.envelopes.get(2).hseq);
+        assertEquals(EnvelopeCodec.CODE_SYNC, collector.envelopes.get(3).code);
+        assertEquals(43, collector.envelopes.get(3).hseq);
+    }
+
+    @Test
+    public void handsOutTheEnvelopesOfABatchBeforeFindingItMalformed() {
+        EnvelopeCodec codec = new EnvelopeCodec();
+        Collector collector = new Collector();
+        assertFalse(codec.decode("[{\"code\":2,\"msg\":\"a\"},{\"code\":2,\"msg\":}]", collector));
+        assertEquals(1, collector.envelopes.size());
+        assertEquals(1, codec.getFramesMalformed());
+        collector.envelopes.clear();
+        assertTrue(codec.decode("[]", collector));
+        assertTrue(collector.envelopes.isEmpty());
+    }
+
+    @Test
+    public void chunksLongEnvelopesAndJoinsThemAgain() {
+        EnvelopeCodec codec = new EnvelopeCodec();
+        StringBuilder message = new StringBuilder();
+        while (message.length() < 3 * EnvelopeCodec.CHUNK_LENGTH) {
+            // A surrogate pair straddles the chunk boundaries at some point
+            message.append("\ud83d\ude00 and \"quotes\" ");
+        }
+        String envelope = codec.encodeCompact(EnvelopeCodec.CODE_MESSAGE, message.toString(), 7, 9, 1234);
+        String[] chunks = codec.encodeChunks(envelope, 5);
+        assertEquals(4, chunks.length);
+        Collector collector = new Collector();
+        ChunkAssembler assembler = new ChunkAssembler(EnvelopeCodec.MAX_ENVELOPE_LENGTH, 10000);
+        String assembled = null;
+        // In reverse, as chunks from different frames may arrive in any order
+        for (int i = chunks.length - 1; i >= 0; i--) {
+            assertTrue(codec.decode(chunks[i], collector));
+            Decoded chunk = collector.envelopes.get(collector.envelopes.size() - 1);
+            assertEquals(EnvelopeCodec.CODE_CHUNK, chunk.code);
+            assertEquals(5, chunk.cid);
+            assertEquals(i, chunk.idx);
+            assertEquals(chunks.length, chunk.cnt);
+            assertTrue(chunk.msg.length() <= EnvelopeCodec.CHUNK_LENGTH);
+            assertFalse(Character.isHighSurrogate(chunk.msg.charAt(chunk.msg.length() - 1)));
+            assembled = assembler.add("device", chunk.cid, chunk.idx, chunk.cnt, chunk.msg, 0);
+        }
+        assertEquals(envelope, assembled);
+        collector.envelopes.clear();
+        assertTrue(codec.decode(assembled, collector));
+        assertEquals(message.toString(), collector.envelopes.get(0).msg);
+        assertEquals(7, collector.envelopes.get(0).sid);
+    }
+
+    @Test
+    public void refusesEnvelopesTooLongToChunk() {
+        EnvelopeCodec codec = new EnvelopeCodec();
+        char[] message = new char[EnvelopeCodec.MAX_ENVELOPE_LENGTH + 1];
+        Arrays.fill(message, 'x');
+        assertNull(codec.encodeChunks(new String(message), 1));
+        assertEquals(1, codec.encodeChunks("{\"code\":2}", 1).length);
+    }
+
+    @Test
+    public void encodeAllocatesOnlyTheResult() {
+        final EnvelopeCodec codec = new EnvelopeCodec();
+        final char[] chars = encode(codec, 0).toCharArray();
+        final Sink sink = new Sink();
+        for (int i = 0; i < WARM_UP; i++) {
+            sink.msg = encode(codec, i);
+            sink.name = copy(chars);
+        }
+        long budget = Allocations.measure(new Runnable() {
+
+            @Override
+            public void run() {
+                for (int i = 0; i < ITERATIONS; i++) {
+                    sink.msg = copy(chars);
+                }
+            }
+        }) / ITERATIONS;
+        long allocated = Allocations.measure(new Runnable() {
+
+            @Override
+            public void run() {
+                for (int i = 0; i < ITERATIONS; i++) {
+                    sink.msg = encode(codec, i);
+                }
+            }
+        }) / ITERATIONS;
+        assertEquals(chars.length, sink.msg.length());
+        assertTrue("encode allocated " + allocated + " bytes per envelope; a string of it takes " + budget,
+                allocated <= budget + ALLOCATION_SLACK);
+    }
+
+    @Test
+    public void decodeAllocatesOnlyTheStrings() {
+        final EnvelopeCodec codec = new EnvelopeCodec();
+        // Without escapes, so the strings are copied straight out of the input
+        final String envelope = codec.encode(EnvelopeCodec.CODE_MESSAGE, "Hello world", NAME, 123456, 1234567890123L);
+        final char[] msg = "Hello world".toCharArray();
+        final char[] name = NAME.toCharArray();
+        final Sink sink = new Sink();
+        for (int i = 0; i < WARM_UP; i++) {
+            codec.decode(envelope, sink);
+            sink.msg = copy(msg);
+            sink.name = copy(name);
+        }
+        long budget = Allocations.measure(new Runnable() {
+
+            @Override
+            public void run() {
+                for (int i = 0; i < ITERATIONS; i++) {
+                    sink.msg = copy(msg);
+                    sink.name = copy(name);
+                }
+            }
+        }) / ITERATIONS;
+        long allocated = Allocations.measure(new Runnable() {
+
+            @Override
+            public void run() {
+                for (int i = 0; i < ITERATIONS; i++) {
+                    codec.decode(envelope, sink);
+                }
+            }
+        }) / ITERATIONS;
+        assertEquals(NAME, sink.name);
+        assertTrue("decode allocated " + allocated + " bytes per envelope; its strings take " + budget,
+                allocated <= budget + ALLOCATION_SLACK);
+    }
+
+    private static String encode(EnvelopeCodec codec, int i) {
+        return codec.encode(EnvelopeCodec.CODE_MESSAGE, MESSAGE, NAME, 1000000 + i, 1234567890123L + i);
+    }
+
+    private static String copy(char[] chars) {
+        return new String(chars);
+    }
+
+}
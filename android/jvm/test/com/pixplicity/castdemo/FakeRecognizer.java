@@ -0,0 +1,90 @@
+package com.pixplicity.castdemo;
+
+/**
+ * {@link Recognizer} that "recognizes" a given phrase one word at a time, at a fixed interval, and
+ * then reports it as the final result. Stands in for the platform recognizer, on a fake timer.
+ */
+class FakeRecognizer implements Recognizer {
+
+    private final Timer mTimer;
+    private final String[] mWords;
+    private final long mWordMillis;
+
+    private Listener mListener;
+    private int mWordCount;
+
+    private final Runnable mNextWord = new Runnable() {
+
+        @Override
+        public void run() {
+            if (mListener == null) {
+                return;
+            }
+            if (mWordCount == mWords.length) {
+                finish();
+                return;
+            }
+            mWordCount++;
+            mListener.onPartialResult(getText());
+            mTimer.schedule(this, mWordMillis);
+        }
+    };
+
+    /**
+     * @param timer
+     *            Timer the words come in on
+     * @param phrase
+     *            Words separated by spaces
+     * @param wordMillis
+     *            Time between partial results
+     */
+    FakeRecognizer(Timer timer, String phrase, long wordMillis) {
+        mTimer = timer;
+        mWords = phrase.split(" ");
+        mWordMillis = wordMillis;
+    }
+
+    private String getText() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < mWordCount; i++) {
+            if (i > 0) {
+                text.append(' ');
+            }
+            text.append(mWords[i]);
+        }
+        return text.toString();
+    }
+
+    private void finish() {
+        Listener listener = mListener;
+        mListener = null;
+        listener.onFinalResult(mWordCount == 0 ? null : getText());
+    }
+
+    @Override
+    public void start(Listener listener) {
+        mListener = listener;
+        mWordCount = 0;
+        mTimer.schedule(mNextWord, mWordMillis);
+    }
+
+    @Override
+    public void stop() {
+        mTimer.cancel(mNextWord);
+        if (mListener != null) {
+            finish();
+        }
+    }
+
+    @Override
+    public void cancel() {
+        mTimer.cancel(mNextWord);
+        mListener = null;
+    }
+
+    @Override
+    public void destroy() {
+        cancel();
+    }
+
+}
@@ -0,0 +1,60 @@
+package com.pixplicity.castdemo;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Manual clock; tasks run when time is advanced past their due time
+ */
+class FakeTimer implements Timer {
+
+    long now = 1000;
+    final List<Runnable> tasks = new ArrayList<Runnable>();
+    final List<Long> dueTimes = new ArrayList<Long>();
+    final List<Long> delays = new ArrayList<Long>();
+
+    @Override
+    public long now() {
+        return now;
+    }
+
+    @Override
+    public void schedule(Runnable task, long delayMillis) {
+        tasks.add(task);
+        dueTimes.add(now + delayMillis);
+        delays.add(delayMillis);
+    }
+
+    @Override
+    public void cancel(Runnable task) {
+        for (int i = tasks.size() - 1; i >= 0; i--) {
+            if (tasks.get(i) == task) {
+                tasks.remove(i);
+                dueTimes.remove(i);
+            }
+        }
+    }
+
+    void advance(long millis) {
+        long until = now + millis;
+        while (true) {
+            int next = -1;
+            for (int i = 0; i < tasks.size(); i++) {
+                if (dueTimes.get(i) <= until && (next < 0 || dueTimes.get(i) < dueTimes.get(next))) {
+                    next = i;
+                }
+            }
+            if (next < 0) {
+                break;
+            }
+            now = dueTimes.remove(next);
+            tasks.remove(next).run();
+        }
+        now = until;
+    }
+
+    int pending() {
+        return tasks.size();
+    }
+
+}
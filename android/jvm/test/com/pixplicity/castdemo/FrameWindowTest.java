@@ -0,0 +1,147 @@
+package com.pixplicity.castdemo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class FrameWindowTest {
+
+    /**
+     * Records what's sent; acknowledgements are up to the test
+     */
+    private static class RecordingSink implements FrameWindow.Sink {
+
+        final List<String> frames = new ArrayList<String>();
+        final List<Long> sequences = new ArrayList<Long>();
+        int credits;
+        boolean failing;
+
+        @Override
+        public boolean send(String frame, long sequence) {
+            if (failing) {
+                return false;
+            }
+            frames.add(frame);
+            sequences.add(sequence);
+            return true;
+        }
+
+        @Override
+        public void onCreditAvailable() {
+            credits++;
+        }
+
+    }
+
+    private final FakeTimer mTimer = new FakeTimer();
+    private final RecordingSink mSink = new RecordingSink();
+    private final FrameWindow mWindow = new FrameWindow(mTimer, mSink);
+
+    private void fill() {
+        for (int i = 0; i < FrameWindow.INITIAL_WINDOW; i++) {
+            assertTrue(mWindow.hasCredit());
+            assertTrue(mWindow.offer("{\"i\":" + i + "}", 1));
+        }
+        assertFalse(mWindow.hasCredit());
+    }
+
+    @Test
+    public void coalescesFramesWhileFull() {
+        fill();
+        mWindow.offer("{\"a\":1}", 1);
+        mWindow.offer("[{\"b\":2},{\"c\":3}]", 2);
+        assertEquals(FrameWindow.INITIAL_WINDOW, mSink.frames.size());
+        assertEquals(1, mWindow.getPendingFrames());
+        mWindow.onAcknowledged(mSink.sequences.get(0), true);
+        assertEquals("[{\"a\":1},{\"b\":2},{\"c\":3}]", mSink.frames.get(FrameWindow.INITIAL_WINDOW));
+        assertEquals(0, mWindow.getPendingFrames());
+    }
+
+    @Test
+    public void dropsTheOldestWaitingFramePastTheLimit() {
+        fill();
+        // Each too long to be merged with another
+        StringBuilder padding = new StringBuilder();
+        for (int i = 0; i < SendQueue.MAX_FRAME_LENGTH / 2; i++) {
+            padding.append('x');
+        }
+        for (int i = 0; i <= FrameWindow.MAX_PENDING_FRAMES; i++) {
+            mWindow.offer("{\"n\":" + i + ",\"p\":\"" + padding + "\"}", 1);
+        }
+        assertEquals(FrameWindow.MAX_PENDING_FRAMES, mWindow.getPendingFrames());
+        assertTrue(mWindow.getStatsSummary(), mWindow.getStatsSummary().contains("dropped=1"));
+        mWindow.onAcknowledged(mSink.sequences.get(0), true);
+        assertTrue(mSink.frames.get(FrameWindow.INITIAL_WINDOW).startsWith("{\"n\":1,"));
+    }
+
+    @Test
+    public void growsOnAcknowledgementsAndHalvesOnFailure() {
+        fill();
+        for (int i = 0; i < FrameWindow.INITIAL_WINDOW; i++) {
+            mWindow.onAcknowledged(mSink.sequences.get(i), true);
+        }
+        assertTrue(mSink.credits > 0);
+        // A little over one frame per window of acknowledgements
+        mWindow.offer("{}", 1);
+        mWindow.onAcknowledged(mSink.sequences.get(FrameWindow.INITIAL_WINDOW), true);
+        assertEquals(FrameWindow.INITIAL_WINDOW + 1, mWindow.getWindowSize());
+        mWindow.offer("{}", 1);
+        mWindow.onAcknowledged(mSink.sequences.get(FrameWindow.INITIAL_WINDOW + 1), false);
+        assertEquals((FrameWindow.INITIAL_WINDOW + 1) / 2, mWindow.getWindowSize());
+    }
+
+    @Test
+    public void writesOffFramesThatAreNotAcknowledged() {
+        fill();
+        mWindow.offer("{\"late\":1}", 1);
+        mTimer.advance(FrameWindow.ACK_TIMEOUT_MS);
+        assertEquals(FrameWindow.MIN_WINDOW, mWindow.getWindowSize());
+        // The waiting frame went out in the room that was freed
+        assertEquals("{\"late\":1}", mSink.frames.get(FrameWindow.INITIAL_WINDOW));
+        // A late acknowledgement of a written off frame is ignored
+        mWindow.onAcknowledged(mSink.sequences.get(0), true);
+        assertEquals(FrameWindow.MIN_WINDOW, mWindow.getWindowSize());
+        assertTrue(mWindow.getStatsSummary().contains("staleAcks=1"));
+    }
+
+    @Test
+    public void windowsAreIndependent() {
+        // A device that never acknowledges doesn't hold up another one
+        RecordingSink fastSink = new RecordingSink();
+        FrameWindow fast = new FrameWindow(mTimer, fastSink);
+        for (int i = 0; i < 100; i++) {
+            mWindow.offer("{\"i\":" + i + "}", 1);
+            assertTrue(fast.hasCredit());
+            fast.offer("{\"i\":" + i + "}", 1);
+            fast.onAcknowledged(fastSink.sequences.get(i), true);
+        }
+        assertEquals(100, fastSink.frames.size());
+        assertEquals(FrameWindow.INITIAL_WINDOW, mSink.frames.size());
+    }
+
+    @Test
+    public void freesTheSlotOfAFrameThatCouldNotBeSent() {
+        mSink.failing = true;
+        assertFalse(mWindow.offer("{}", 1));
+        mSink.failing = false;
+        fill();
+    }
+
+    @Test
+    public void clearForgetsEverything() {
+        fill();
+        mWindow.offer("{}", 1);
+        mWindow.clear();
+        assertTrue(mWindow.hasCredit());
+        assertEquals(0, mWindow.getPendingFrames());
+        assertEquals(0, mTimer.pending());
+        mWindow.onAcknowledged(mSink.sequences.get(0), true);
+        assertTrue(mWindow.getStatsSummary().contains("staleAcks=1"));
+    }
+
+}
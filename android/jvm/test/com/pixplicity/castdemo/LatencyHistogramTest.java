@@ -0,0 +1,160 @@
+package com.pixplicity.castdemo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void isEmptyAtFirst() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(50));
+        assertEquals("count=0, avgMs=0, p50Ms=0, p90Ms=0, p99Ms=0, maxMs=0", histogram.getStatsSummary());
+    }
+
+    @Test
+    public void reportsTheUpperBoundOfTheBucket() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int millis = 1; millis <= 100; millis++) {
+            histogram.record(millis);
+        }
+        // The 50th sample is 50 ms, in the 10 ms wide bucket [50, 60)
+        assertEquals(60, histogram.getPercentile(50));
+        assertEquals(100, histogram.getPercentile(90));
+        // Never more than the largest sample
+        assertEquals(100, histogram.getPercentile(99));
+        assertEquals(10, histogram.getPercentile(9));
+        assertEquals(2, histogram.getPercentile(1));
+        assertEquals("count=100, avgMs=50, p50Ms=60, p90Ms=100, p99Ms=100, maxMs=100",
+                histogram.getStatsSummary());
+    }
+
+    @Test
+    public void widensTheBucketsPerDecade() {
+        long[][] boundsBySample = {
+                {
+                        0, 1
+                }, {
+                        9, 10
+                }, {
+                        10, 20
+                }, {
+                        99, 100
+                }, {
+                        100, 200
+                }, {
+                        999, 1000
+                }, {
+                        1000, 2000
+                }, {
+                        9999, 10000
+                }
+        };
+        for (long[] boundBySample : boundsBySample) {
+            LatencyHistogram histogram = new LatencyHistogram();
+            histogram.record(boundBySample[0]);
+            // Another sample far above, so the maximum doesn't cap the bound
+            histogram.record(100000);
+            assertEquals("bound for " + boundBySample[0], boundBySample[1], histogram.getPercentile(50));
+        }
+    }
+
+    @Test
+    public void reportsTheMaximumForTheOverflowBucket() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(10000);
+        histogram.record(123456);
+        assertEquals(123456, histogram.getPercentile(50));
+        assertEquals(123456, histogram.getMax());
+    }
+
+    @Test
+    public void countsNegativeSamplesAsZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        // E.g. the clock of a device that rebooted
+        histogram.record(-5);
+        assertEquals(1, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void resetForgetsEverything() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(42);
+        histogram.reset();
+        assertEquals("count=0, avgMs=0, p50Ms=0, p90Ms=0, p99Ms=0, maxMs=0", histogram.getStatsSummary());
+        histogram.record(3);
+        assertEquals(3, histogram.getPercentile(50));
+    }
+
+    @Test
+    public void recordingDoesNotAllocate() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        Runnable record = new Runnable() {
+
+            @Override
+            public void run() {
+                for (int i = 0; i < 100000; i++) {
+                    histogram.record(i % 20000);
+                }
+            }
+        };
+        // Warm up, so that the measured run is compiled
+        record.run();
+        long allocated = Allocations.measure(record);
+        assertTrue("allocated " + allocated + " bytes", allocated < 1024);
+    }
+
+    @Test
+    public void keepsEverySampleUnderContention() throws Exception {
+        final int threadCount = 8;
+        final int samples = 100000;
+        final LatencyHistogram histogram = new LatencyHistogram();
+        final CyclicBarrier start = new CyclicBarrier(threadCount);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < threadCount; t++) {
+            final int offset = t;
+            threads.add(new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < samples; i++) {
+                            histogram.record((i + offset) % 1000);
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join(TimeUnit.SECONDS.toMillis(60));
+            assertFalse("stuck", thread.isAlive());
+        }
+        assertNull(String.valueOf(failure.get()), failure.get());
+        assertEquals(threadCount * samples, histogram.getCount());
+        assertEquals(999, histogram.getMax());
+        assertEquals(999, histogram.getPercentile(100));
+        // A tenth of the samples are below 100 ms
+        assertEquals(100, histogram.getPercentile(10));
+    }
+
+}
@@ -0,0 +1,160 @@
+package com.pixplicity.castdemo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class LiveTranscriberTest {
+
+    private static final long FAST_WORDS = 100;
+    private static final long SLOW_WORDS = 300;
+
+    private static class Draft {
+
+        final String text;
+        final long producedAt;
+        final long sentAt;
+
+        Draft(String text, long producedAt, long sentAt) {
+            this.text = text;
+            this.producedAt = producedAt;
+            this.sentAt = sentAt;
+        }
+
+    }
+
+    private class RecordingOutput implements LiveTranscriber.Output {
+
+        final List<Draft> drafts = new ArrayList<Draft>();
+        final List<String> finished = new ArrayList<String>();
+
+        @Override
+        public boolean sendDraft(String text, long producedAt) {
+            drafts.add(new Draft(text, producedAt, mTimer.now()));
+            return true;
+        }
+
+        @Override
+        public void onFinished(String text) {
+            finished.add(text);
+        }
+
+    }
+
+    private FakeTimer mTimer;
+    private RecordingOutput mOutput;
+
+    @Before
+    public void setUp() {
+        mTimer = new FakeTimer();
+        mOutput = new RecordingOutput();
+    }
+
+    private LiveTranscriber start(String phrase, long wordMillis) {
+        LiveTranscriber transcriber = new LiveTranscriber(new FakeRecognizer(mTimer, phrase, wordMillis),
+                mOutput, mTimer);
+        transcriber.start();
+        return transcriber;
+    }
+
+    @Test
+    public void sendsADraftOnceSpeechPauses() {
+        long start = mTimer.now();
+        LiveTranscriber transcriber = start("one two three", SLOW_WORDS);
+        mTimer.advance(10 * SLOW_WORDS);
+        assertEquals(3, mOutput.drafts.size());
+        String[] texts = {
+                "one", "one two", "one two three"
+        };
+        for (int i = 0; i < texts.length; i++) {
+            Draft draft = mOutput.drafts.get(i);
+            long producedAt = start + (i + 1) * SLOW_WORDS;
+            assertEquals(texts[i], draft.text);
+            assertEquals(producedAt, draft.producedAt);
+            assertEquals(producedAt + LiveTranscriber.DEBOUNCE_MILLIS, draft.sentAt);
+        }
+        assertEquals(1, mOutput.finished.size());
+        assertEquals("one two three", mOutput.finished.get(0));
+        assertFalse(transcriber.isListening());
+        assertEquals("partials=3, draftsSent=3", transcriber.getStatsSummary());
+    }
+
+    @Test
+    public void sendsContinuousSpeechAfterTheMaximumDelay() {
+        long start = mTimer.now();
+        start("one two three four five six seven eight", FAST_WORDS);
+        mTimer.advance(20 * FAST_WORDS);
+        // Words come in faster than the debounce time, so only the maximum delay lets drafts out
+        assertEquals(2, mOutput.drafts.size());
+        Draft first = mOutput.drafts.get(0);
+        assertEquals(start + FAST_WORDS + LiveTranscriber.MAX_DELAY_MILLIS, first.sentAt);
+        assertEquals("one two three four", first.text);
+        assertEquals(start + 4 * FAST_WORDS, first.producedAt);
+        Draft second = mOutput.drafts.get(1);
+        assertEquals(first.sentAt + LiveTranscriber.MAX_DELAY_MILLIS, second.sentAt);
+        assertEquals("one two three four five six seven eight", second.text);
+        for (Draft draft : mOutput.drafts) {
+            assertTrue(draft.sentAt - draft.producedAt <= LiveTranscriber.DEBOUNCE_MILLIS);
+        }
+        assertEquals("one two three four five six seven eight", mOutput.finished.get(0));
+    }
+
+    @Test
+    public void doesNotSendTheSameDraftTwice() {
+        LiveTranscriber transcriber = start("unused", Long.MAX_VALUE / 4);
+        transcriber.onPartialResult("hello");
+        mTimer.advance(LiveTranscriber.DEBOUNCE_MILLIS);
+        transcriber.onPartialResult("hello");
+        mTimer.advance(LiveTranscriber.DEBOUNCE_MILLIS);
+        assertEquals(1, mOutput.drafts.size());
+        // Unless it changed in between
+        transcriber.onPartialResult("hello w");
+        transcriber.onPartialResult("hello");
+        mTimer.advance(LiveTranscriber.DEBOUNCE_MILLIS);
+        assertEquals(2, mOutput.drafts.size());
+        assertEquals("hello", mOutput.drafts.get(1).text);
+    }
+
+    @Test
+    public void dropsThePendingDraftWhenTheFinalResultComesIn() {
+        LiveTranscriber transcriber = start("one two three", FAST_WORDS);
+        mTimer.advance(2 * FAST_WORDS + 50);
+        transcriber.stop();
+        mTimer.advance(10 * FAST_WORDS);
+        // The message takes the place of the draft, so the draft isn't sent at all
+        assertTrue(mOutput.drafts.isEmpty());
+        assertEquals(1, mOutput.finished.size());
+        assertEquals("one two", mOutput.finished.get(0));
+    }
+
+    @Test
+    public void removesTheDraftWhenCancelled() {
+        LiveTranscriber transcriber = start("one two three", SLOW_WORDS);
+        mTimer.advance(SLOW_WORDS + LiveTranscriber.DEBOUNCE_MILLIS);
+        assertEquals(1, mOutput.drafts.size());
+        transcriber.cancel();
+        mTimer.advance(10 * SLOW_WORDS);
+        assertEquals(2, mOutput.drafts.size());
+        assertEquals("", mOutput.drafts.get(1).text);
+        assertEquals(1, mOutput.finished.size());
+        assertNull(mOutput.finished.get(0));
+        assertFalse(transcriber.isListening());
+    }
+
+    @Test
+    public void removesTheDraftOnAnError() {
+        LiveTranscriber transcriber = start("one two three", SLOW_WORDS);
+        mTimer.advance(SLOW_WORDS + LiveTranscriber.DEBOUNCE_MILLIS);
+        transcriber.onError(7);
+        assertEquals("", mOutput.drafts.get(mOutput.drafts.size() - 1).text);
+        assertNull(mOutput.finished.get(0));
+    }
+
+}
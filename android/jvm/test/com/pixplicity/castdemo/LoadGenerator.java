@@ -0,0 +1,204 @@
+package com.pixplicity.castdemo;
+
+import java.util.Arrays;
+
+/**
+ * Drives a number of simulated senders, each over its own {@link Transport}, and measures how many
+ * echoed messages come back per second and how long their round trips take. Every message carries
+ * its send time, so no bookkeeping per message is needed.
+ */
+class LoadGenerator {
+
+    static final String NAMESPACE = "urn:x-cast:com.pixplicity.castdemo.load";
+
+    static interface TransportFactory {
+
+        /**
+         * @param sender
+         *            Index of the simulated sender
+         * @return A transport for the sender; closed by the caller once the run is done
+         */
+        public Transport<?> create(int sender);
+
+    }
+
+    static class Result {
+
+        public final int senders;
+        public final long sent;
+        public final long received;
+        public final long durationMillis;
+        public final float messagesPerSecond;
+        public final long p50Millis;
+        public final long p90Millis;
+        public final long p99Millis;
+        public final long maxMillis;
+
+        private Result(int senders, long sent, long[] latencies, int count, long durationMillis) {
+            this.senders = senders;
+            this.sent = sent;
+            this.received = count;
+            this.durationMillis = durationMillis;
+            this.messagesPerSecond = durationMillis == 0 ? 0 : count * 1000f / durationMillis;
+            Arrays.sort(latencies, 0, count);
+            this.p50Millis = percentile(latencies, count, 50);
+            this.p90Millis = percentile(latencies, count, 90);
+            this.p99Millis = percentile(latencies, count, 99);
+            this.maxMillis = count == 0 ? 0 : latencies[count - 1];
+        }
+
+        private static long percentile(long[] sorted, int count, int percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(percentile / 100.0 * count) - 1;
+            return sorted[Math.max(0, Math.min(count - 1, index))];
+        }
+
+        @Override
+        public String toString() {
+            return "senders=" + senders
+                    + ", sent=" + sent
+                    + ", received=" + received
+                    + ", msgsPerSec=" + messagesPerSecond
+                    + ", p50Ms=" + p50Millis
+                    + ", p90Ms=" + p90Millis
+                    + ", p99Ms=" + p99Millis
+                    + ", maxMs=" + maxMillis;
+        }
+
+    }
+
+    private class Sender implements Runnable, Transport.MessageListener<Object>, EnvelopeCodec.EnvelopeHandler {
+
+        private final int mIndex;
+        private final Transport<?> mTransport;
+        private final EnvelopeCodec mEncoder = new EnvelopeCodec();
+        // Only used on the delivering thread, under the sender's lock
+        private final EnvelopeCodec mDecoder = new EnvelopeCodec();
+        private long mSent;
+
+        Sender(int index, Transport<?> transport) {
+            mIndex = index;
+            mTransport = transport;
+            transport.setMessageListener(this);
+        }
+
+        @Override
+        public void run() {
+            String name = "load-" + mIndex;
+            long interval = 1000000000L / mMessagesPerSecond;
+            long next = System.nanoTime();
+            try {
+                while (System.nanoTime() < mEndTime) {
+                    String envelope = mEncoder.encode(EnvelopeCodec.CODE_MESSAGE,
+                            Long.toString(System.nanoTime()), name);
+                    if (mTransport.sendMessage(NAMESPACE, envelope, null) > 0) {
+                        mSent++;
+                    }
+                    next += interval;
+                    long sleep = next - System.nanoTime();
+                    if (sleep > 0) {
+                        Thread.sleep(sleep / 1000000, (int) (sleep % 1000000));
+                    }
+                }
+            } catch (InterruptedException e) {
+                // Stopped early
+            }
+        }
+
+        @Override
+        public synchronized void onMessageReceived(Object device, String namespace, String message) {
+            mDecoder.decode(message, this);
+        }
+
+        @Override
+        public void onEnvelope(EnvelopeCodec.Envelope envelope) {
+            try {
+                record((System.nanoTime() - Long.parseLong(envelope.msg)) / 1000000);
+            } catch (NumberFormatException e) {
+                // Not one of ours
+            }
+        }
+
+    }
+
+    private final TransportFactory mTransportFactory;
+    private final int mSenders;
+    private final int mMessagesPerSecond;
+    private final long mDurationMillis;
+    private final long mDrainMillis;
+
+    private volatile long mEndTime;
+    private long[] mLatencies = new long[1024];
+    private int mLatencyCount;
+
+    /**
+     * @param transportFactory
+     * @param senders
+     *            Number of simulated senders
+     * @param messagesPerSecond
+     *            Send rate of each sender
+     * @param durationMillis
+     *            How long to keep sending
+     * @param drainMillis
+     *            How long to wait for echoes after the last message was sent
+     */
+    LoadGenerator(TransportFactory transportFactory, int senders, int messagesPerSecond,
+            long durationMillis, long drainMillis) {
+        mTransportFactory = transportFactory;
+        mSenders = senders;
+        mMessagesPerSecond = messagesPerSecond;
+        mDurationMillis = durationMillis;
+        mDrainMillis = drainMillis;
+    }
+
+    private synchronized void record(long latencyMillis) {
+        if (mLatencyCount == mLatencies.length) {
+            mLatencies = Arrays.copyOf(mLatencies, mLatencyCount * 2);
+        }
+        mLatencies[mLatencyCount++] = latencyMillis;
+    }
+
+    /**
+     * Runs the load on one thread per sender; blocks until the senders are done and the echoes
+     * had time to drain
+     *
+     * @return Throughput over the sending period and round trip latency of the echoed messages
+     * @throws InterruptedException
+     */
+    Result run() throws InterruptedException {
+        Sender[] senders = new Sender[mSenders];
+        Thread[] threads = new Thread[mSenders];
+        for (int i = 0; i < mSenders; i++) {
+            senders[i] = new Sender(i, mTransportFactory.create(i));
+            threads[i] = new Thread(senders[i], "LoadGenerator-" + i);
+        }
+        long start = System.nanoTime();
+        mEndTime = start + mDurationMillis * 1000000;
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        long sent = 0;
+        long duration;
+        try {
+            for (int i = 0; i < mSenders; i++) {
+                threads[i].join();
+                sent += senders[i].mSent;
+            }
+            duration = (System.nanoTime() - start) / 1000000;
+            Thread.sleep(mDrainMillis);
+        } finally {
+            for (Thread thread : threads) {
+                thread.interrupt();
+            }
+            for (Sender sender : senders) {
+                sender.mTransport.setMessageListener(null);
+            }
+        }
+        synchronized (this) {
+            return new Result(mSenders, sent, mLatencies, mLatencyCount, duration);
+        }
+    }
+
+}
@@ -0,0 +1,112 @@
+package com.pixplicity.castdemo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class LoadGeneratorTest {
+
+    private static final int SENDERS = 4;
+    private static final int RATE = 200;
+    private static final long DURATION_MS = 1000;
+    private static final long DRAIN_MS = 300;
+    private static final long LATENCY_MS = 20;
+    private static final long JITTER_MS = 10;
+
+    private static final int BROADCAST_SENDERS = 16;
+    private static final int BROADCAST_RATE = 50;
+    private static final long TICK_MS = 50;
+
+    private final ScheduledExecutorService mExecutor = Executors.newScheduledThreadPool(2);
+    private final List<LoopbackTransport> mTransports = new ArrayList<LoopbackTransport>();
+
+    @After
+    public void tearDown() {
+        for (LoopbackTransport transport : mTransports) {
+            transport.close();
+        }
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * Runs the load against a receiver that broadcasts every sender's messages to all of them
+     */
+    private LoadGenerator.Result broadcast(final LoopbackReceiver receiver) throws InterruptedException {
+        return new LoadGenerator(new LoadGenerator.TransportFactory() {
+
+            @Override
+            public Transport<?> create(int sender) {
+                LoopbackTransport transport = new LoopbackTransport(mExecutor, receiver, LATENCY_MS, JITTER_MS, 0,
+                        new Random(sender));
+                mTransports.add(transport);
+                return transport;
+            }
+        }, BROADCAST_SENDERS, BROADCAST_RATE, DURATION_MS, DRAIN_MS).run();
+    }
+
+    private LoadGenerator.Result run(final float lossRate) throws InterruptedException {
+        return new LoadGenerator(new LoadGenerator.TransportFactory() {
+
+            @Override
+            public Transport<?> create(int sender) {
+                LoopbackTransport transport = new LoopbackTransport(mExecutor, LATENCY_MS, JITTER_MS, lossRate,
+                        new Random(sender));
+                mTransports.add(transport);
+                return transport;
+            }
+        }, SENDERS, RATE, DURATION_MS, DRAIN_MS).run();
+    }
+
+    @Test
+    public void reportsThroughputAndLatencyPercentiles() throws Exception {
+        LoadGenerator.Result result = run(0);
+        assertEquals(SENDERS, result.senders);
+        // Every echo came back within the drain time
+        assertEquals(result.toString(), result.sent, result.received);
+        // Sender threads sleep between messages, so they can fall behind but not get ahead
+        float expected = SENDERS * RATE;
+        assertTrue(result.toString(), result.messagesPerSecond > expected / 2);
+        assertTrue(result.toString(), result.messagesPerSecond < expected * 1.2f);
+        assertTrue(result.toString(), result.p50Millis >= LATENCY_MS);
+        assertTrue(result.toString(), result.p50Millis <= result.p90Millis);
+        assertTrue(result.toString(), result.p90Millis <= result.p99Millis);
+        assertTrue(result.toString(), result.p99Millis <= result.maxMillis);
+        assertTrue(result.toString(), result.maxMillis < DRAIN_MS);
+    }
+
+    @Test
+    public void countsOnlyTheEchoesThatCameBack() throws Exception {
+        LoadGenerator.Result result = run(0.5f);
+        float received = (float) result.received / result.sent;
+        assertTrue(result.toString(), received > 0.4f && received < 0.6f);
+    }
+
+    @Test
+    public void broadcastsEveryMessageToAllSendersOncePerTick() throws Exception {
+        LoopbackReceiver receiver = new LoopbackReceiver(mExecutor, TICK_MS);
+        LoadGenerator.Result result = broadcast(receiver);
+        String summary = result + "; " + receiver.getStatsSummary();
+        // Every sender gets every sender's messages, including its own
+        assertEquals(summary, result.sent, receiver.getReceived());
+        assertEquals(summary, result.sent * BROADCAST_SENDERS, result.received);
+        // The receiver's sends follow its tick rate, not the number of messages times the senders
+        long ticks = (DURATION_MS + DRAIN_MS) / TICK_MS + 2;
+        assertTrue(summary, receiver.getFrames() <= ticks);
+        assertEquals(summary, receiver.getFrames() * BROADCAST_SENDERS, receiver.getSends());
+        assertTrue(summary, receiver.getSends() < result.sent);
+        // Throughput as the senders see it: their fan-out, not just what they sent themselves
+        float expected = BROADCAST_SENDERS * BROADCAST_RATE * BROADCAST_SENDERS;
+        assertTrue(summary, result.messagesPerSecond > expected / 2);
+        // An envelope waits for the next tick at most
+        assertTrue(summary, result.p99Millis <= LATENCY_MS + JITTER_MS + TICK_MS + DRAIN_MS / 2);
+    }
+
+}
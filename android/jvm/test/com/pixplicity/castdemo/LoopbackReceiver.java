@@ -0,0 +1,174 @@
+package com.pixplicity.castdemo;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process stand-in for the broadcasting receiver in <code>web/index.html</code>: envelopes from
+ * all attached {@link LoopbackTransport}s are collected per namespace and, once per tick, sent to
+ * every attached transport as a single frame.
+ */
+class LoopbackReceiver {
+
+    // Cast messages are limited to 64 KiB
+    private static final int MAX_FRAME_LENGTH = 60000;
+
+    private final ScheduledExecutorService mExecutor;
+    private final long mTickMillis;
+    private final CopyOnWriteArrayList<LoopbackTransport> mSenders = new CopyOnWriteArrayList<LoopbackTransport>();
+
+    // Envelopes waiting for the next tick by namespace, comma-separated; guarded by this
+    private final Map<String, StringBuilder> mOutbox = new HashMap<String, StringBuilder>();
+    private ScheduledFuture<?> mTick;
+
+    private final AtomicLong mReceived = new AtomicLong();
+    private final AtomicLong mFrames = new AtomicLong();
+    private final AtomicLong mSends = new AtomicLong();
+
+    private final Runnable mTickRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * @param executor
+     *            Runs the ticks
+     * @param tickMillis
+     *            Interval at which collected envelopes are broadcast
+     */
+    LoopbackReceiver(ScheduledExecutorService executor, long tickMillis) {
+        mExecutor = executor;
+        mTickMillis = tickMillis;
+    }
+
+    void attach(LoopbackTransport sender) {
+        mSenders.add(sender);
+    }
+
+    void detach(LoopbackTransport sender) {
+        mSenders.remove(sender);
+    }
+
+    /**
+     * Accepts a frame from a sender; its envelopes go out with the next tick
+     */
+    synchronized void receive(String namespace, String frame) {
+        String envelopes = frame.trim();
+        if (envelopes.startsWith("[")) {
+            envelopes = envelopes.substring(1, envelopes.length() - 1).trim();
+        }
+        if (envelopes.length() == 0) {
+            return;
+        }
+        StringBuilder outbox = mOutbox.get(namespace);
+        if (outbox == null) {
+            outbox = new StringBuilder();
+            mOutbox.put(namespace, outbox);
+        }
+        if (outbox.length() > 0) {
+            outbox.append(',');
+        }
+        outbox.append(envelopes);
+        mReceived.incrementAndGet();
+        if (mTick == null) {
+            mTick = mExecutor.schedule(mTickRunnable, mTickMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void flush() {
+        ArrayList<String> namespaces = new ArrayList<String>();
+        ArrayList<String> frames = new ArrayList<String>();
+        synchronized (this) {
+            mTick = null;
+            Iterator<Map.Entry<String, StringBuilder>> iterator = mOutbox.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, StringBuilder> entry = iterator.next();
+                splitFrames(entry.getKey(), entry.getValue().toString(), namespaces, frames);
+                iterator.remove();
+            }
+        }
+        for (int i = 0; i < frames.size(); i++) {
+            mFrames.incrementAndGet();
+            for (LoopbackTransport sender : mSenders) {
+                mSends.incrementAndGet();
+                sender.deliver(namespaces.get(i), frames.get(i));
+            }
+        }
+    }
+
+    /**
+     * Cuts comma-separated envelopes into frames under the message size limit. Only splits between
+     * top-level envelopes, which are objects, so commas inside them are skipped.
+     */
+    private static void splitFrames(String namespace, String envelopes, ArrayList<String> namespaces,
+            ArrayList<String> frames) {
+        int start = 0;
+        int depth = 0;
+        boolean inString = false;
+        int lastBoundary = -1;
+        for (int i = 0; i < envelopes.length(); i++) {
+            char c = envelopes.charAt(i);
+            if (inString) {
+                if (c == '\\') {
+                    i++;
+                } else if (c == '"') {
+                    inString = false;
+                }
+            } else if (c == '"') {
+                inString = true;
+            } else if (c == '{' || c == '[') {
+                depth++;
+            } else if (c == '}' || c == ']') {
+                depth--;
+            } else if (c == ',' && depth == 0) {
+                if (i - start > MAX_FRAME_LENGTH && lastBoundary > start) {
+                    namespaces.add(namespace);
+                    frames.add("[" + envelopes.substring(start, lastBoundary) + "]");
+                    start = lastBoundary + 1;
+                }
+                lastBoundary = i;
+            }
+        }
+        namespaces.add(namespace);
+        frames.add("[" + envelopes.substring(start) + "]");
+    }
+
+    /**
+     * @return Number of frames received from the senders
+     */
+    long getReceived() {
+        return mReceived.get();
+    }
+
+    /**
+     * @return Number of frames broadcast, each to every sender
+     */
+    long getFrames() {
+        return mFrames.get();
+    }
+
+    /**
+     * @return Number of frames sent to senders
+     */
+    long getSends() {
+        return mSends.get();
+    }
+
+    String getStatsSummary() {
+        return "senders=" + mSenders.size()
+                + ", received=" + mReceived.get()
+                + ", frames=" + mFrames.get()
+                + ", sends=" + mSends.get();
+    }
+
+}
@@ -0,0 +1,196 @@
+package com.pixplicity.castdemo;
+
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process stand-in for the receiver in <code>web/index.html</code>: every message is echoed back
+ * to its sender as-is, after a configurable delay and subject to a configurable loss rate. Messages
+ * come from a receiver named {@link #DEVICE}. Attached to a {@link LoopbackReceiver}, messages are
+ * broadcast to all of the receiver's senders instead.
+ */
+class LoopbackTransport implements Transport<String> {
+
+    static final String DEVICE = "loopback";
+
+    private final ScheduledExecutorService mExecutor;
+    private final boolean mOwnsExecutor;
+    private final long mLatencyMillis;
+    private final long mJitterMillis;
+    private final float mLossRate;
+    private final Random mRandom;
+    private final LoopbackReceiver mReceiver;
+
+    private volatile Transport.MessageListener<? super String> mListener;
+    private volatile boolean mClosed;
+
+    private final AtomicLong mSent = new AtomicLong();
+    private final AtomicLong mEchoed = new AtomicLong();
+    private final AtomicLong mLost = new AtomicLong();
+
+    /**
+     * Creates a loopback with its own delivery thread
+     *
+     * @param latencyMillis
+     *            Minimum round trip time of an echo
+     * @param jitterMillis
+     *            Maximum random time added to the round trip
+     * @param lossRate
+     *            Fraction of messages that are never echoed, between 0 and 1
+     */
+    LoopbackTransport(long latencyMillis, long jitterMillis, float lossRate) {
+        this(Executors.newSingleThreadScheduledExecutor(), true, null, latencyMillis, jitterMillis, lossRate,
+                new Random());
+    }
+
+    /**
+     * Creates a loopback that delivers echoes on a shared executor, which isn't shut down on
+     * {@link #close()}
+     */
+    LoopbackTransport(ScheduledExecutorService executor, long latencyMillis, long jitterMillis, float lossRate,
+            Random random) {
+        this(executor, false, null, latencyMillis, jitterMillis, lossRate, random);
+    }
+
+    /**
+     * Creates a loopback that sends to a shared receiver, which broadcasts to all of its senders
+     */
+    LoopbackTransport(ScheduledExecutorService executor, LoopbackReceiver receiver, long latencyMillis,
+            long jitterMillis, float lossRate, Random random) {
+        this(executor, false, receiver, latencyMillis, jitterMillis, lossRate, random);
+    }
+
+    private LoopbackTransport(ScheduledExecutorService executor, boolean ownsExecutor, LoopbackReceiver receiver,
+            long latencyMillis, long jitterMillis, float lossRate, Random random) {
+        mExecutor = executor;
+        mOwnsExecutor = ownsExecutor;
+        mReceiver = receiver;
+        mLatencyMillis = latencyMillis;
+        mJitterMillis = jitterMillis;
+        mLossRate = lossRate;
+        mRandom = random;
+        if (receiver != null) {
+            receiver.attach(this);
+        }
+    }
+
+    @Override
+    public void setMessageListener(Transport.MessageListener<? super String> listener) {
+        mListener = listener;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return !mClosed;
+    }
+
+    @Override
+    public int sendMessage(final String namespace, final String message, final SendCallback sendCallback) {
+        if (mClosed) {
+            return 0;
+        }
+        mSent.incrementAndGet();
+        final boolean lost;
+        long delay;
+        synchronized (mRandom) {
+            lost = mRandom.nextFloat() < mLossRate;
+            delay = nextDelay();
+        }
+        // Delivery is reported halfway through the round trip, like a Cast send's status
+        mExecutor.schedule(new Runnable() {
+
+            @Override
+            public void run() {
+                if (lost) {
+                    mLost.incrementAndGet();
+                }
+                if (sendCallback != null) {
+                    sendCallback.onResult(!lost);
+                }
+            }
+        }, delay / 2, TimeUnit.MILLISECONDS);
+        if (lost) {
+            return 1;
+        }
+        if (mReceiver != null) {
+            mExecutor.schedule(new Runnable() {
+
+                @Override
+                public void run() {
+                    mReceiver.receive(namespace, message);
+                }
+            }, delay / 2, TimeUnit.MILLISECONDS);
+            return 1;
+        }
+        mExecutor.schedule(new Runnable() {
+
+            @Override
+            public void run() {
+                Transport.MessageListener<? super String> listener = mListener;
+                if (!mClosed && listener != null) {
+                    // Same as the receiver's messageBus.send(event.senderId, event.data)
+                    mEchoed.incrementAndGet();
+                    listener.onMessageReceived(DEVICE, namespace, message);
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+        return 1;
+    }
+
+    private long nextDelay() {
+        return mLatencyMillis + (mJitterMillis > 0 ? (long) (mRandom.nextDouble() * mJitterMillis) : 0);
+    }
+
+    /**
+     * Delivers a frame broadcast by the receiver, after half a round trip
+     */
+    void deliver(final String namespace, final String frame) {
+        long delay;
+        synchronized (mRandom) {
+            delay = nextDelay() / 2;
+        }
+        mExecutor.schedule(new Runnable() {
+
+            @Override
+            public void run() {
+                Transport.MessageListener<? super String> listener = mListener;
+                if (!mClosed && listener != null) {
+                    mEchoed.incrementAndGet();
+                    listener.onMessageReceived(DEVICE, namespace, frame);
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops echoing; messages still in flight are dropped
+     */
+    void close() {
+        if (mReceiver != null) {
+            mReceiver.detach(this);
+        }
+        mClosed = true;
+        if (mOwnsExecutor) {
+            mExecutor.shutdownNow();
+        }
+    }
+
+    long getEchoed() {
+        return mEchoed.get();
+    }
+
+    long getLost() {
+        return mLost.get();
+    }
+
+    @Override
+    public String getStatsSummary() {
+        return "sent=" + mSent.get()
+                + ", echoed=" + mEchoed.get()
+                + ", lost=" + mLost.get();
+    }
+
+}
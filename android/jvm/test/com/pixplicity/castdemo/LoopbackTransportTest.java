@@ -0,0 +1,112 @@
+package com.pixplicity.castdemo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class LoopbackTransportTest {
+
+    private static final String NAMESPACE = "urn:x-cast:test";
+
+    private final ScheduledExecutorService mExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+    }
+
+    @Test
+    public void echoesAfterTheLatency() throws Exception {
+        LoopbackTransport transport = new LoopbackTransport(mExecutor, 50, 0, 0, new Random(1));
+        final CountDownLatch echoed = new CountDownLatch(1);
+        final AtomicReference<String> received = new AtomicReference<String>();
+        final AtomicReference<String> device = new AtomicReference<String>();
+        transport.setMessageListener(new Transport.MessageListener<String>() {
+
+            @Override
+            public void onMessageReceived(String from, String namespace, String message) {
+                device.set(from);
+                received.set(namespace + " " + message);
+                echoed.countDown();
+            }
+        });
+        final CountDownLatch delivered = new CountDownLatch(1);
+        long start = System.nanoTime();
+        assertEquals(1, transport.sendMessage(NAMESPACE, "hello", new Transport.SendCallback() {
+
+            @Override
+            public void onResult(boolean success) {
+                assertTrue(success);
+                delivered.countDown();
+            }
+        }));
+        assertTrue(echoed.await(5, TimeUnit.SECONDS));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 50);
+        assertTrue(delivered.await(5, TimeUnit.SECONDS));
+        assertEquals(LoopbackTransport.DEVICE, device.get());
+        assertEquals(NAMESPACE + " hello", received.get());
+    }
+
+    @Test
+    public void losesTheConfiguredFraction() throws Exception {
+        final int messages = 2000;
+        LoopbackTransport transport = new LoopbackTransport(mExecutor, 0, 0, 0.25f, new Random(1));
+        final AtomicInteger echoes = new AtomicInteger();
+        transport.setMessageListener(new Transport.MessageListener<Object>() {
+
+            @Override
+            public void onMessageReceived(Object device, String namespace, String message) {
+                echoes.incrementAndGet();
+            }
+        });
+        final CountDownLatch results = new CountDownLatch(messages);
+        final AtomicInteger failures = new AtomicInteger();
+        Transport.SendCallback callback = new Transport.SendCallback() {
+
+            @Override
+            public void onResult(boolean success) {
+                if (!success) {
+                    failures.incrementAndGet();
+                }
+                results.countDown();
+            }
+        };
+        for (int i = 0; i < messages; i++) {
+            transport.sendMessage(NAMESPACE, Integer.toString(i), callback);
+        }
+        assertTrue(results.await(5, TimeUnit.SECONDS));
+        // Echoes are scheduled after the results, on the same thread
+        mExecutor.submit(new Runnable() {
+
+            @Override
+            public void run() {
+                // Nothing; just wait for what was scheduled before
+            }
+        }).get(5, TimeUnit.SECONDS);
+        float lossRate = (float) failures.get() / messages;
+        assertTrue("loss rate " + lossRate, lossRate > 0.2f && lossRate < 0.3f);
+        assertEquals(failures.get(), transport.getLost());
+        assertEquals(messages - failures.get(), echoes.get());
+    }
+
+    @Test
+    public void sendsNothingOnceClosed() {
+        LoopbackTransport transport = new LoopbackTransport(mExecutor, 0, 0, 0, new Random(1));
+        assertTrue(transport.isConnected());
+        transport.close();
+        assertFalse(transport.isConnected());
+        assertEquals(0, transport.sendMessage(NAMESPACE, "hello", null));
+    }
+
+}
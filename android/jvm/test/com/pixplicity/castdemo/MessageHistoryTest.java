@@ -0,0 +1,88 @@
+package com.pixplicity.castdemo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class MessageHistoryTest {
+
+    /**
+     * Archive whose record n holds sequence 100 + n; counts the records it reads
+     */
+    private static class CountingArchive implements MessageHistory.Archive {
+
+        int reads;
+        int records;
+
+        @Override
+        public void read(long first, int count, String[] usernames, String[] messages, long[] sequences) {
+            reads++;
+            records += count;
+            for (int i = 0; i < count; i++) {
+                usernames[i] = "user";
+                messages[i] = "archived " + (first + i);
+                sequences[i] = 100 + first + i;
+            }
+        }
+
+    }
+
+    @Test
+    public void readsNothingUntilARowIsShown() {
+        CountingArchive archive = new CountingArchive();
+        MessageHistory history = new MessageHistory(new MessageStore(1000));
+        history.restore(archive, 0, 5000, 5099);
+        assertEquals(1000, history.size());
+        assertEquals(0, archive.reads);
+        // Only the page holding the row is read
+        assertEquals("archived 4999", history.getMessage(999));
+        assertEquals(5099, history.getSequence(999));
+        assertEquals(1, archive.reads);
+        assertTrue(archive.records <= MessageHistory.PAGE_SIZE);
+        // Neighbouring rows come from the cache
+        history.getMessage(998);
+        history.getUsername(997);
+        assertEquals(1, archive.reads);
+    }
+
+    @Test
+    public void continuesTheNumberingAfterTheRestoredMessages() {
+        CountingArchive archive = new CountingArchive();
+        MessageHistory history = new MessageHistory(new MessageStore(10));
+        history.restore(archive, 0, 4, 103);
+        assertEquals(104, history.append("user", "received"));
+        assertEquals(5, history.size());
+        assertEquals("archived 0", history.getMessage(0));
+        assertEquals("received", history.getMessage(4));
+        assertEquals(104, history.getLastSequence());
+    }
+
+    @Test
+    public void receivedMessagesPushOutTheRestoredOnes() {
+        CountingArchive archive = new CountingArchive();
+        MessageHistory history = new MessageHistory(new MessageStore(4));
+        history.restore(archive, 0, 3, 102);
+        history.append("user", "first");
+        history.append("user", "second");
+        assertEquals(4, history.size());
+        assertEquals("archived 1", history.getMessage(0));
+        assertEquals(101, history.getSequence(0));
+        assertEquals("first", history.getMessage(2));
+        for (int i = 0; i < 3; i++) {
+            history.append("user", "more");
+        }
+        assertEquals(4, history.size());
+        assertEquals("second", history.getMessage(0));
+    }
+
+    @Test
+    public void clearForgetsTheRestoredMessages() {
+        MessageHistory history = new MessageHistory(new MessageStore(4));
+        history.restore(new CountingArchive(), 0, 3, 102);
+        history.clear();
+        assertEquals(0, history.size());
+        assertEquals(0, history.getLastSequence());
+    }
+
+}
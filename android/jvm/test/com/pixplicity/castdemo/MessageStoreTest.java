@@ -0,0 +1,126 @@
+package com.pixplicity.castdemo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+public class MessageStoreTest {
+
+    // Long enough a history that a scan over it would show
+    private static final int CAPACITY = 50000;
+    private static final int BINDS = 1000000;
+
+    @Test
+    public void evictsTheOldestOnceFull() {
+        MessageStore store = new MessageStore(3);
+        for (int i = 1; i <= 5; i++) {
+            assertEquals(i, store.append("user", "message " + i));
+        }
+        assertEquals(3, store.size());
+        assertEquals("message 3", store.getMessage(0));
+        assertEquals("message 5", store.getMessage(2));
+        assertEquals(5, store.getLastSequence());
+        try {
+            store.getMessage(3);
+            fail();
+        } catch (IndexOutOfBoundsException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void keepsSequencesAcrossEviction() {
+        // The adapter's item IDs; a message keeps its ID while the ones before it are evicted
+        MessageStore store = new MessageStore(4);
+        store.append(10, "a", "first");
+        store.append(20, "b", "second");
+        for (int i = 0; i < 3; i++) {
+            store.append("c", "more");
+        }
+        assertEquals(20, store.getSequence(0));
+        assertEquals(23, store.getSequence(3));
+        try {
+            store.append(23, "d", "repeated");
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void skipToContinuesTheNumbering() {
+        MessageStore store = new MessageStore(4);
+        store.append("a", "first");
+        store.skipTo(41);
+        assertEquals(42, store.append("b", "second"));
+        assertEquals(2, store.size());
+        try {
+            store.skipTo(40);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void internsUsernames() {
+        MessageStore store = new MessageStore(4);
+        store.append(new String("someone"), "first");
+        store.append(new String("someone"), "second");
+        assertSame(store.getUsername(0), store.getUsername(1));
+    }
+
+    @Test
+    public void clearForgetsInternedUsernames() {
+        MessageStore store = new MessageStore(4);
+        String cleared = new String("someone");
+        store.append(cleared, "first");
+        store.clear();
+        // The pool doesn't hand out, and so keep alive, usernames of the cleared conversation
+        store.append(new String("someone"), "second");
+        assertNotSame(cleared, store.getUsername(0));
+    }
+
+    @Test
+    public void clearRestartsTheSequence() {
+        MessageStore store = new MessageStore(4);
+        store.append("a", "first");
+        store.clear();
+        assertEquals(0, store.size());
+        assertEquals(1, store.append("a", "again"));
+    }
+
+    @Test
+    public void bindingARowDoesNotAllocate() {
+        // What MessageAdapter.getView and getItemId read for a row, in a full store that wrapped around
+        final MessageStore store = new MessageStore(CAPACITY);
+        for (int i = 0; i < CAPACITY + CAPACITY / 2; i++) {
+            store.append("user " + (i % 10), "message " + i);
+        }
+        final long[] checksum = new long[1];
+        Runnable bind = new Runnable() {
+
+            @Override
+            public void run() {
+                int size = store.size();
+                for (int i = 0; i < BINDS; i++) {
+                    int position = (int) ((i * 7919L) % size);
+                    checksum[0] += store.getUsername(position).length() + store.getMessage(position).length()
+                            + store.getSequence(position);
+                }
+            }
+        };
+        bind.run();
+        long start = System.nanoTime();
+        long allocated = Allocations.measure(bind);
+        long nanos = System.nanoTime() - start;
+        assertTrue(checksum[0] != 0);
+        assertTrue("binding " + BINDS + " rows allocated " + allocated + " bytes", allocated < 1024);
+        System.out.println("bind lookups: " + nanos / BINDS + " ns per row over " + CAPACITY + " messages");
+    }
+
+}
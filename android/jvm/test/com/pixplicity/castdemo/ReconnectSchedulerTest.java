@@ -0,0 +1,183 @@
+package com.pixplicity.castdemo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ReconnectSchedulerTest {
+
+    private static final long BASE_DELAY = 100;
+    private static final long MAX_DELAY = 1000;
+    private static final int MAX_ATTEMPTS = 5;
+
+    /**
+     * Transport that fails a given number of reconnection attempts before one succeeds, reporting
+     * the outcome the way CastProxy's sessions do
+     */
+    private static class FakeTransport implements ReconnectScheduler.Target {
+
+        ReconnectScheduler scheduler;
+        int failuresLeft;
+        final List<Integer> attempts = new ArrayList<Integer>();
+        int giveUps;
+        boolean connected;
+
+        @Override
+        public void reconnect(int attempt) {
+            attempts.add(attempt);
+            if (failuresLeft > 0) {
+                failuresLeft--;
+                scheduler.onConnectionLost();
+            } else {
+                connected = true;
+                scheduler.onRecovered();
+            }
+        }
+
+        @Override
+        public void giveUp() {
+            giveUps++;
+        }
+
+    }
+
+    private FakeTimer mTimer;
+    private FakeTransport mTransport;
+    private ReconnectScheduler mScheduler;
+
+    @Before
+    public void setUp() {
+        mTimer = new FakeTimer();
+        mTransport = new FakeTransport();
+        mScheduler = new ReconnectScheduler(mTransport, mTimer, new Random(42), BASE_DELAY, MAX_DELAY,
+                MAX_ATTEMPTS);
+        mTransport.scheduler = mScheduler;
+    }
+
+    @Test
+    public void backsOffExponentiallyWithJitter() {
+        mTransport.failuresLeft = 3;
+        mScheduler.onConnectionLost();
+        assertEquals(ReconnectScheduler.State.BACKING_OFF, mScheduler.getState());
+        mTimer.advance(10 * MAX_DELAY);
+        assertEquals(4, mTransport.attempts.size());
+        for (int i = 0; i < mTimer.delays.size(); i++) {
+            long delay = Math.min(MAX_DELAY, BASE_DELAY << i);
+            long actual = mTimer.delays.get(i);
+            assertTrue("attempt " + (i + 1) + " after " + actual, actual >= delay / 2 && actual <= delay);
+        }
+    }
+
+    @Test
+    public void capsTheDelay() {
+        mTransport.failuresLeft = MAX_ATTEMPTS - 1;
+        mScheduler.onConnectionLost();
+        mTimer.advance(100 * MAX_DELAY);
+        assertTrue(mTransport.connected);
+        for (long delay : mTimer.delays) {
+            assertTrue(delay <= MAX_DELAY);
+        }
+    }
+
+    @Test
+    public void recoversAndMeasuresTimeToRecover() {
+        mTransport.failuresLeft = 2;
+        mScheduler.onConnectionLost();
+        mTimer.advance(10 * MAX_DELAY);
+        assertTrue(mTransport.connected);
+        assertEquals(ReconnectScheduler.State.IDLE, mScheduler.getState());
+        assertFalse(mScheduler.isRecovering());
+        assertEquals(0, mTimer.pending());
+        long timeToRecover = mTimer.delays.get(0) + mTimer.delays.get(1) + mTimer.delays.get(2);
+        assertTrue(mScheduler.getStatsSummary(), mScheduler.getStatsSummary().contains(
+                "recoveries=1, giveUps=0, attempts=3, avgTimeToRecoverMs=" + timeToRecover));
+    }
+
+    @Test
+    public void givesUpAfterTheLastAttempt() {
+        mTransport.failuresLeft = Integer.MAX_VALUE;
+        mScheduler.onConnectionLost();
+        mTimer.advance(100 * MAX_DELAY);
+        assertEquals(MAX_ATTEMPTS, mTransport.attempts.size());
+        assertEquals(Integer.valueOf(MAX_ATTEMPTS), mTransport.attempts.get(MAX_ATTEMPTS - 1));
+        assertEquals(1, mTransport.giveUps);
+        assertEquals(ReconnectScheduler.State.IDLE, mScheduler.getState());
+        assertEquals(0, mTimer.pending());
+    }
+
+    @Test
+    public void ignoresLossesWhileBackingOff() {
+        mScheduler.onConnectionLost();
+        mScheduler.onConnectionLost();
+        assertEquals(1, mTimer.pending());
+        mTimer.advance(MAX_DELAY);
+        assertEquals(1, mTransport.attempts.size());
+    }
+
+    @Test
+    public void cancelDropsTheScheduledAttempt() {
+        mScheduler.onConnectionLost();
+        mScheduler.cancel();
+        mTimer.advance(10 * MAX_DELAY);
+        assertTrue(mTransport.attempts.isEmpty());
+        assertFalse(mScheduler.isRecovering());
+    }
+
+    @Test
+    public void retryNowMakesTheScheduledAttemptOnce() {
+        mTransport.failuresLeft = 1;
+        mScheduler.onConnectionLost();
+        assertTrue(mScheduler.retryNow());
+        // That attempt failed and scheduled the second; nothing else is pending
+        assertEquals(1, mTransport.attempts.size());
+        assertEquals(1, mTimer.pending());
+        mTimer.advance(10 * MAX_DELAY);
+        assertEquals(2, mTransport.attempts.size());
+        assertEquals(Integer.valueOf(2), mTransport.attempts.get(1));
+        assertTrue(mTransport.connected);
+        assertFalse(mScheduler.retryNow());
+    }
+
+    @Test
+    public void retryNowDoesNothingWhileAttempting() {
+        ReconnectScheduler.Target pending = new ReconnectScheduler.Target() {
+
+            @Override
+            public void reconnect(int attempt) {
+                mTransport.attempts.add(attempt);
+                // Outcome not reported yet
+            }
+
+            @Override
+            public void giveUp() {
+            }
+        };
+        ReconnectScheduler scheduler = new ReconnectScheduler(pending, mTimer, new Random(42), BASE_DELAY,
+                MAX_DELAY, MAX_ATTEMPTS);
+        scheduler.onConnectionLost();
+        mTimer.advance(MAX_DELAY);
+        assertEquals(ReconnectScheduler.State.ATTEMPTING, scheduler.getState());
+        assertFalse(scheduler.retryNow());
+        assertEquals(1, mTransport.attempts.size());
+    }
+
+    @Test
+    public void measuresSuspensionsTheClientRecoversFrom() {
+        mScheduler.onConnectionSuspended();
+        assertTrue(mScheduler.isRecovering());
+        assertEquals(0, mTimer.pending());
+        mTimer.advance(250);
+        mScheduler.onRecovered();
+        assertFalse(mScheduler.isRecovering());
+        assertTrue(mScheduler.getStatsSummary(), mScheduler.getStatsSummary().contains(
+                "recoveries=1, giveUps=0, attempts=0, avgTimeToRecoverMs=250"));
+    }
+
+}
@@ -0,0 +1,218 @@
+package com.pixplicity.castdemo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TypingStreamerTest {
+
+    /**
+     * Applies the updates to a draft line, the way the receiver does, and keeps them
+     */
+    private static class Receiver implements TypingStreamer.Output {
+
+        final List<String> updates = new ArrayList<String>();
+        final List<Long> changedAt = new ArrayList<Long>();
+        String draft = "";
+        long version;
+        boolean failing;
+
+        @Override
+        public boolean sendDraft(String text, long version, long changedAt) {
+            if (failing) {
+                return false;
+            }
+            this.updates.add("full " + text);
+            this.changedAt.add(changedAt);
+            draft = text;
+            this.version = version;
+            return true;
+        }
+
+        @Override
+        public boolean sendDraftEdit(int at, int del, String insert, long version, long changedAt) {
+            if (failing) {
+                return false;
+            }
+            this.updates.add("edit " + at + " " + del + " " + insert);
+            this.changedAt.add(changedAt);
+            // An edit only applies to the version it follows
+            assertEquals(this.version + 1, version);
+            draft = draft.substring(0, at) + insert + draft.substring(at + del);
+            this.version = version;
+            return true;
+        }
+
+    }
+
+    private Receiver mReceiver;
+    private TypingStreamer mStreamer;
+
+    @Before
+    public void setUp() {
+        mReceiver = new Receiver();
+        mStreamer = new TypingStreamer(mReceiver);
+    }
+
+    /**
+     * Makes a change and sends it once it's due
+     */
+    private long type(String text, long now) {
+        long delay = mStreamer.onChange(text, now);
+        if (delay >= 0) {
+            mStreamer.flush(now + delay);
+        }
+        return delay;
+    }
+
+    @Test
+    public void sendsTheFullTextFirstAndEditsAfterwards() {
+        type("Hello", 0);
+        type("Hello world", 1000);
+        type("Hello, world", 2000);
+        type("Hi, world", 3000);
+        type("Hi", 4000);
+        type("", 5000);
+        assertEquals("full Hello", mReceiver.updates.get(0));
+        assertEquals("edit 5 0  world", mReceiver.updates.get(1));
+        assertEquals("edit 5 0 ,", mReceiver.updates.get(2));
+        assertEquals("edit 1 4 i", mReceiver.updates.get(3));
+        assertEquals("edit 2 7 ", mReceiver.updates.get(4));
+        assertEquals("edit 0 2 ", mReceiver.updates.get(5));
+        assertEquals("", mReceiver.draft);
+    }
+
+    @Test
+    public void doesNotSplitSurrogatePairs() {
+        type("a\ud83d\ude00b", 0);
+        // Same high surrogate, different low one
+        type("a\ud83d\ude01b", 1000);
+        assertEquals("edit 1 2 \ud83d\ude01", mReceiver.updates.get(1));
+        // Same low surrogate, different high one
+        type("a\ud83c\ude01b", 2000);
+        assertEquals("edit 1 2 \ud83c\ude01", mReceiver.updates.get(2));
+        assertEquals("a\ud83c\ude01b", mReceiver.draft);
+    }
+
+    @Test
+    public void coalescesChangesWithinTheDebounceTime() {
+        // After the first update, so that the minimum interval doesn't come into play
+        type("a", 0);
+        assertEquals(TypingStreamer.DEBOUNCE_MILLIS, mStreamer.onChange("ab", 1000));
+        assertEquals(TypingStreamer.DEBOUNCE_MILLIS, mStreamer.onChange("abc", 1010));
+        assertEquals(TypingStreamer.DEBOUNCE_MILLIS, mStreamer.onChange("abcd", 1020));
+        mStreamer.flush(1020 + TypingStreamer.DEBOUNCE_MILLIS);
+        assertEquals(2, mReceiver.updates.size());
+        assertEquals("edit 1 0 bcd", mReceiver.updates.get(1));
+        // Covers the changes since the first one that wasn't sent
+        assertEquals(Long.valueOf(1000), mReceiver.changedAt.get(1));
+    }
+
+    @Test
+    public void sendsContinuousTypingAfterTheMaximumDelay() {
+        type("a", 0);
+        long start = 1000;
+        StringBuilder text = new StringBuilder("a");
+        long delay = -1;
+        for (long now = start; now < start + 2 * TypingStreamer.MAX_DELAY_MILLIS; now += 20) {
+            text.append('x');
+            delay = mStreamer.onChange(text.toString(), now);
+            if (now + TypingStreamer.DEBOUNCE_MILLIS > start + TypingStreamer.MAX_DELAY_MILLIS) {
+                break;
+            }
+            assertEquals(TypingStreamer.DEBOUNCE_MILLIS, delay);
+        }
+        // Keystrokes every 20 ms never pause for the debounce time; the update goes out anyway
+        assertTrue(delay < TypingStreamer.DEBOUNCE_MILLIS);
+    }
+
+    @Test
+    public void keepsTheMinimumIntervalBetweenUpdates() {
+        type("a", 0);
+        long sentAt = TypingStreamer.DEBOUNCE_MILLIS;
+        long delay = mStreamer.onChange("ab", sentAt + 1);
+        assertEquals(TypingStreamer.MIN_INTERVAL_MILLIS - 1, delay);
+    }
+
+    @Test
+    public void ignoresChangesBackToWhatWasSent() {
+        type("abc", 0);
+        assertEquals(-1, mStreamer.onChange("abc", 1000));
+        assertEquals(1, mReceiver.updates.size());
+        // But not if they happen while another change is pending
+        mStreamer.onChange("abcd", 2000);
+        assertTrue(mStreamer.onChange("abc", 2010) >= 0);
+        mStreamer.flush(3000);
+        assertEquals("edit 3 0 ", mReceiver.updates.get(1));
+    }
+
+    @Test
+    public void resendsTheFullTextAfterAFailure() {
+        type("abc", 0);
+        mReceiver.failing = true;
+        type("abcd", 1000);
+        mReceiver.failing = false;
+        type("abcde", 2000);
+        assertEquals("full abcde", mReceiver.updates.get(1));
+        type("abcdef", 3000);
+        assertEquals("edit 5 0 f", mReceiver.updates.get(2));
+    }
+
+    @Test
+    public void streamsOnlyTheStartOfALongText() {
+        StringBuilder pasted = new StringBuilder();
+        while (pasted.length() < TypingStreamer.MAX_DRAFT_LENGTH * 10) {
+            pasted.append("pasted ");
+        }
+        type(pasted.toString(), 0);
+        assertEquals(TypingStreamer.MAX_DRAFT_LENGTH, mReceiver.draft.length());
+        // Typing at the end doesn't change the draft
+        assertEquals(-1, mStreamer.onChange(pasted + "y", 1000));
+        // After a failure, only the start is sent again in full
+        mReceiver.failing = true;
+        type("x" + pasted, 2000);
+        mReceiver.failing = false;
+        type("xy" + pasted, 3000);
+        assertEquals(2, mReceiver.updates.size());
+        assertEquals(("xy" + pasted).substring(0, TypingStreamer.MAX_DRAFT_LENGTH), mReceiver.draft);
+    }
+
+    @Test
+    public void replaysATypingTraceWithFewSmallUpdates() {
+        TypingTrace trace = TypingTrace.typing(
+                "The quick brown fox jumps over the lazy dog while the cat watches from the window sill", 60);
+        TypingTraceReplay.Result result = new TypingTraceReplay(1).replay(trace);
+        assertEquals(trace.size(), result.changes);
+        // Rate capped by the minimum interval
+        assertTrue(result.toString(),
+                result.updates <= result.durationMillis / TypingStreamer.MIN_INTERVAL_MILLIS + 1);
+        assertTrue(result.toString(), result.updates < result.changes);
+        // Edits don't grow with the text, unlike sending it in full on every change
+        assertTrue(result.toString(), result.bytes * 3 < result.fullTextBytes);
+        assertFalse(result.toString(), result.updatesPerSecond > 1000f / TypingStreamer.MIN_INTERVAL_MILLIS + 1);
+    }
+
+    @Test
+    public void endsUpWithTheTypedText() {
+        TypingTrace trace = TypingTrace.typing("Typed with a typo every three words, fixed right away", 45);
+        long sendAt = -1;
+        for (int i = 0; i < trace.size(); i++) {
+            long time = trace.getTime(i);
+            if (sendAt >= 0 && sendAt <= time) {
+                mStreamer.flush(sendAt);
+            }
+            long delay = mStreamer.onChange(trace.getText(i), time);
+            sendAt = delay < 0 ? -1 : time + delay;
+        }
+        mStreamer.flush(sendAt);
+        assertEquals(trace.getText(trace.size() - 1), mReceiver.draft);
+        assertTrue(mStreamer.getStatsSummary(), mStreamer.getStatsSummary().contains("fullTexts=1"));
+    }
+
+}
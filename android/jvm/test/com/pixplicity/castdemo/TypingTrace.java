@@ -0,0 +1,81 @@
+package com.pixplicity.castdemo;
+
+import java.util.ArrayList;
+
+/**
+ * Recording of a text field's contents after every change, with the time of the change, to replay
+ * typing through {@link TypingTraceReplay}. Stops recording once full.
+ */
+class TypingTrace {
+
+    private static final int MAX_CHANGES = 4096;
+
+    private final ArrayList<String> mTexts = new ArrayList<String>();
+    private long[] mTimes = new long[64];
+
+    /**
+     * @param time
+     *            Time of the change in milliseconds, not before the previous one
+     * @param text
+     *            Contents of the field after the change
+     */
+    public synchronized void add(long time, String text) {
+        int size = mTexts.size();
+        if (size == MAX_CHANGES) {
+            return;
+        }
+        if (size == mTimes.length) {
+            long[] times = new long[size * 2];
+            System.arraycopy(mTimes, 0, times, 0, size);
+            mTimes = times;
+        }
+        mTimes[size] = time;
+        mTexts.add(text);
+    }
+
+    public synchronized int size() {
+        return mTexts.size();
+    }
+
+    public synchronized long getTime(int index) {
+        return mTimes[index];
+    }
+
+    public synchronized String getText(int index) {
+        return mTexts.get(index);
+    }
+
+    public synchronized void clear() {
+        mTexts.clear();
+    }
+
+    /**
+     * Makes a trace of someone typing a phrase at a steady pace, correcting the last character of
+     * every few words
+     *
+     * @param phrase
+     * @param keyMillis
+     *            Time between keystrokes
+     * @return The trace
+     */
+    public static TypingTrace typing(String phrase, long keyMillis) {
+        TypingTrace trace = new TypingTrace();
+        StringBuilder text = new StringBuilder();
+        long time = 0;
+        int words = 0;
+        for (int i = 0; i < phrase.length(); i++) {
+            char c = phrase.charAt(i);
+            if (c == ' ' && ++words % 3 == 0 && text.length() > 0) {
+                // A typo, noticed and backspaced over
+                text.append('x');
+                trace.add(time += keyMillis, text.toString());
+                text.setLength(text.length() - 1);
+                trace.add(time += keyMillis, text.toString());
+            }
+            text.append(c);
+            trace.add(time += keyMillis, text.toString());
+        }
+        return trace;
+    }
+
+}
@@ -0,0 +1,113 @@
+package com.pixplicity.castdemo;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Replays a {@link TypingTrace} through a {@link TypingStreamer} in simulated time, and compares
+ * what it sends with sending the full text on every change.
+ */
+class TypingTraceReplay {
+
+    static class Result {
+
+        public final int changes;
+        public final int updates;
+        public final long bytes;
+        public final long fullTextBytes;
+        public final long durationMillis;
+        public final float updatesPerSecond;
+        public final float bytesPerSecond;
+        public final String streamerStats;
+
+        private Result(int changes, int updates, long bytes, long fullTextBytes, long durationMillis,
+                String streamerStats) {
+            this.changes = changes;
+            this.updates = updates;
+            this.bytes = bytes;
+            this.fullTextBytes = fullTextBytes;
+            this.durationMillis = durationMillis;
+            this.updatesPerSecond = durationMillis == 0 ? 0 : updates * 1000f / durationMillis;
+            this.bytesPerSecond = durationMillis == 0 ? 0 : bytes * 1000f / durationMillis;
+            this.streamerStats = streamerStats;
+        }
+
+        @Override
+        public String toString() {
+            return "changes=" + changes
+                    + ", updates=" + updates
+                    + ", bytes=" + bytes
+                    + ", fullTextBytes=" + fullTextBytes
+                    + ", updatesPerSec=" + updatesPerSecond
+                    + ", bytesPerSec=" + bytesPerSecond
+                    + ", " + streamerStats;
+        }
+
+    }
+
+    private final EnvelopeCodec mEncoder = new EnvelopeCodec();
+    private final int mSenderId;
+
+    private int mUpdates;
+    private long mBytes;
+
+    /**
+     * @param senderId
+     *            Sender id to encode the updates with, as in the compact format
+     */
+    TypingTraceReplay(int senderId) {
+        mSenderId = senderId;
+    }
+
+    private static int utf8Length(String envelope) {
+        try {
+            return envelope.getBytes("UTF-8").length;
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    synchronized Result replay(TypingTrace trace) {
+        mUpdates = 0;
+        mBytes = 0;
+        TypingStreamer streamer = new TypingStreamer(new TypingStreamer.Output() {
+
+            @Override
+            public boolean sendDraft(String text, long version, long changedAt) {
+                mUpdates++;
+                mBytes += utf8Length(mEncoder.encodeCompact(EnvelopeCodec.CODE_DRAFT, text, mSenderId, version,
+                        changedAt));
+                return true;
+            }
+
+            @Override
+            public boolean sendDraftEdit(int at, int del, String insert, long version, long changedAt) {
+                mUpdates++;
+                mBytes += utf8Length(mEncoder.encodeCompactDraftEdit(at, del, insert, mSenderId, version,
+                        changedAt));
+                return true;
+            }
+        });
+        long fullTextBytes = 0;
+        long sendAt = -1;
+        int size = trace.size();
+        for (int i = 0; i < size; i++) {
+            long time = trace.getTime(i);
+            String text = trace.getText(i);
+            if (sendAt >= 0 && sendAt <= time) {
+                streamer.flush(sendAt);
+            }
+            fullTextBytes += utf8Length(mEncoder.encodeCompact(EnvelopeCodec.CODE_DRAFT, text, mSenderId, i + 1,
+                    time));
+            long delay = streamer.onChange(text, time);
+            sendAt = delay < 0 ? -1 : time + delay;
+        }
+        long end = size == 0 ? 0 : trace.getTime(size - 1);
+        if (sendAt >= 0) {
+            streamer.flush(sendAt);
+            end = sendAt;
+        }
+        long duration = size == 0 ? 0 : end - trace.getTime(0);
+        return new Result(size, mUpdates, mBytes, fullTextBytes, duration, streamer.getStatsSummary());
+    }
+
+}
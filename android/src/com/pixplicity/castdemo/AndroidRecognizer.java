@@ -0,0 +1,132 @@
+package com.pixplicity.castdemo;
+
+import java.util.ArrayList;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+import android.speech.RecognitionListener;
+import android.speech.RecognizerIntent;
+import android.speech.SpeechRecognizer;
+import android.util.Log;
+
+/**
+ * {@link Recognizer} on top of the platform's {@link SpeechRecognizer}, with partial results
+ */
+public class AndroidRecognizer implements Recognizer, RecognitionListener {
+
+    private static final String TAG = AndroidRecognizer.class.getSimpleName();
+
+    private final Context mContext;
+    private SpeechRecognizer mSpeechRecognizer;
+    private Listener mListener;
+
+    public AndroidRecognizer(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * @param context
+     * @return Whether the device has a recognition service to stream from
+     */
+    public static boolean isAvailable(Context context) {
+        return SpeechRecognizer.isRecognitionAvailable(context);
+    }
+
+    @Override
+    public void start(Listener listener) {
+        mListener = listener;
+        if (mSpeechRecognizer == null) {
+            mSpeechRecognizer = SpeechRecognizer.createSpeechRecognizer(mContext);
+            mSpeechRecognizer.setRecognitionListener(this);
+        }
+        Intent intent = new Intent(RecognizerIntent.ACTION_RECOGNIZE_SPEECH);
+        intent.putExtra(RecognizerIntent.EXTRA_LANGUAGE_MODEL, RecognizerIntent.LANGUAGE_MODEL_FREE_FORM);
+        intent.putExtra(RecognizerIntent.EXTRA_LANGUAGE, "en-US");
+        intent.putExtra(RecognizerIntent.EXTRA_PARTIAL_RESULTS, true);
+        intent.putExtra(RecognizerIntent.EXTRA_CALLING_PACKAGE, mContext.getPackageName());
+        mSpeechRecognizer.startListening(intent);
+    }
+
+    @Override
+    public void stop() {
+        if (mSpeechRecognizer != null) {
+            mSpeechRecognizer.stopListening();
+        }
+    }
+
+    @Override
+    public void cancel() {
+        if (mSpeechRecognizer != null) {
+            mSpeechRecognizer.cancel();
+        }
+        mListener = null;
+    }
+
+    @Override
+    public void destroy() {
+        if (mSpeechRecognizer != null) {
+            mSpeechRecognizer.destroy();
+            mSpeechRecognizer = null;
+        }
+        mListener = null;
+    }
+
+    private static String getBestMatch(Bundle results) {
+        ArrayList<String> matches = results == null ? null
+                : results.getStringArrayList(SpeechRecognizer.RESULTS_RECOGNITION);
+        return matches == null || matches.isEmpty() ? null : matches.get(0);
+    }
+
+    @Override
+    public void onPartialResults(Bundle partialResults) {
+        String text = getBestMatch(partialResults);
+        if (mListener != null && text != null) {
+            mListener.onPartialResult(text);
+        }
+    }
+
+    @Override
+    public void onResults(Bundle results) {
+        Listener listener = mListener;
+        mListener = null;
+        if (listener != null) {
+            listener.onFinalResult(getBestMatch(results));
+        }
+    }
+
+    @Override
+    public void onError(int error) {
+        Log.w(TAG, "recognition failed: " + error);
+        Listener listener = mListener;
+        mListener = null;
+        if (listener != null) {
+            listener.onError(error);
+        }
+    }
+
+    @Override
+    public void onReadyForSpeech(Bundle params) {
+    }
+
+    @Override
+    public void onBeginningOfSpeech() {
+    }
+
+    @Override
+    public void onRmsChanged(float rmsdB) {
+    }
+
+    @Override
+    public void onBufferReceived(byte[] buffer) {
+    }
+
+    @Override
+    public void onEndOfSpeech() {
+    }
+
+    @Override
+    public void onEvent(int eventType, Bundle params) {
+    }
+
+}
@@ -1,9 +1,17 @@
 package com.pixplicity.castdemo;
 
 import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.os.Bundle;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
 import android.support.v7.media.MediaRouteSelector;
 import android.support.v7.media.MediaRouter;
 import android.support.v7.media.MediaRouter.RouteInfo;
@@ -25,28 +33,71 @@ public class CastProxy {
 
     private static final String TAG = CastProxy.class.getSimpleName();
 
-    private static CastProxy sInstance;
+    /**
+     * Send queue priorities, as thread priorities of the queue's sender thread
+     */
+    public static final int PRIORITY_CONTROL = Process.THREAD_PRIORITY_MORE_FAVORABLE;
+    public static final int PRIORITY_CHAT = Process.THREAD_PRIORITY_DEFAULT;
+    public static final int PRIORITY_TELEMETRY = Process.THREAD_PRIORITY_BACKGROUND;
+
+    private static final int SEND_QUEUE_CAPACITY = 128;
+    private static final int SEND_MAX_BATCH_SIZE = 16;
+    private static final long SEND_LINGER_MS = 30;
+
+    private static final String PREFS_NAME = "cast_proxy";
+    private static final String PREF_LAST_ROUTE_ID = "last_route_id";
+    private static final String PREF_LAST_SESSION_ID = "last_session_id";
+
+    // Read without locking from any thread; only created and counted on the main thread, which
+    // MediaRouter requires anyway
+    private static volatile CastProxy sInstance;
     private static int sInstanceCount;
 
     private final MediaRouter mMediaRouter;
     private final MediaRouteSelector mMediaRouteSelector;
     private final MediaRouter.Callback mMediaRouterCallback;
-    private CastDevice mSelectedDevice;
 
-    private GoogleApiClient mApiClient;
-    private Cast.Listener mCastListener;
-    private ConnectionCallbacks mConnectionCallbacks;
-    private ConnectionFailedListener mConnectionFailedListener;
+    // Sessions by route ID; read from sender threads, modified on the main thread
+    private final Map<String, DeviceSession> mSessions = new ConcurrentHashMap<String, DeviceSession>();
+    private boolean mMultiScreen;
+
+    // Channels by namespace; looked up without locking for every inbound message
+    private final Map<String, CastChannel> mChannels = new ConcurrentHashMap<String, CastChannel>();
+    // Send queues by namespace; these outlive channel instances that are registered again
+    private final Map<String, SendQueue> mSendQueues = new ConcurrentHashMap<String, SendQueue>();
+    private final Transport.MessageListener<CastDevice> mDispatcher = new Transport.MessageListener<CastDevice>() {
+
+        @Override
+        public void onMessageReceived(CastDevice castDevice, String namespace, String message) {
+            CastChannel channel = mChannels.get(namespace);
+            if (channel == null) {
+                Log.w(TAG, "No channel registered for " + namespace);
+                return;
+            }
+            channel.onMessageReceived(castDevice, namespace, message);
+        }
+    };
 
-    private CastChannel mChannel;
-    private boolean mWaitingForReconnect;
-    private boolean mApplicationStarted;
-    private String mSessionId;
+    // Messages go through the Cast sessions
+    private final CastTransport mTransport = new CastTransport();
+    // Times out the acknowledgements of the sessions' frame windows
+    private final Timer mTimer = new HandlerTimer();
 
     private final boolean mSingleUserMode = false;
 
+    // Serves media to the receivers; started on first use
+    private final MediaServer mMediaServer = new MediaServer();
+    // Path of the media the receivers were last sent; replaced media isn't served anymore
+    private final AtomicReference<String> mServedPath = new AtomicReference<String>();
+
     private final Context mApplicationContext;
 
+    // Last used route and receiver session, to resume them on the next start
+    private final SharedPreferences mPreferences;
+    private String mResumeRouteId;
+    private final long mCreatedAt;
+    private boolean mStartupTimeReported;
+
     public static interface CastChannel extends Cast.MessageReceivedCallback {
 
         public String getNamespace();
@@ -62,7 +113,9 @@ public class CastProxy {
     }
 
     public CastProxy(Context applicationContext, CastChannel castChannel) {
+        mCreatedAt = SystemClock.elapsedRealtime();
         mApplicationContext = applicationContext;
+        mPreferences = applicationContext.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
         // Configure Cast device discovery
         mMediaRouter = MediaRouter.getInstance(applicationContext);
         mMediaRouteSelector = new MediaRouteSelector.Builder()
@@ -76,157 +129,506 @@ public class CastProxy {
             @Override
             public void onRouteSelected(MediaRouter router, RouteInfo info) {
                 Log.d(TAG, "onRouteSelected");
+                // Any selection supersedes resuming the last route
+                mResumeRouteId = null;
                 // Handle the user route selection.
-                mSelectedDevice = CastDevice.getFromBundle(info.getExtras());
+                if (!mMultiScreen) {
+                    disconnectAll();
+                }
+                DeviceSession session = mSessions.get(info.getId());
+                if (session == null) {
+                    session = new DeviceSession(info.getId(), CastDevice.getFromBundle(info.getExtras()));
+                    mSessions.put(info.getId(), session);
+                }
                 // Launch the receiver app
-                connect();
+                session.connect();
             }
 
             @Override
             public void onRouteUnselected(MediaRouter router, RouteInfo info) {
                 Log.d(TAG, "onRouteUnselected: info=" + info);
-                disconnect();
+                // The router selects the default route when the user stops casting, and only then
+                RouteInfo selected = router.getSelectedRoute();
+                boolean stopped = selected == null || selected.isDefault();
+                if (mMultiScreen && !stopped) {
+                    // Selecting another screen unselects this one; keep its session running
+                    return;
+                }
+                if (stopped) {
+                    // No screen is selected anymore, including the ones kept in multi-screen mode
+                    disconnectAll();
+                    // The user chose to stop casting; don't resume on the next start
+                    forgetLastRoute();
+                } else {
+                    DeviceSession session = mSessions.get(info.getId());
+                    if (session != null) {
+                        session.disconnect();
+                    }
+                }
+            }
+
+            @Override
+            public void onRouteAdded(MediaRouter router, RouteInfo info) {
+                if (info.getId().equals(mResumeRouteId)) {
+                    Log.d(TAG, "last route discovered; resuming " + mResumeRouteId);
+                    mMediaRouter.selectRoute(info);
+                }
             }
 
         };
-        setChannel(castChannel);
+        mTransport.setMessageListener(mDispatcher);
+        addChannel(castChannel, PRIORITY_CHAT);
     }
 
     /**
-     * Replaces any previous channel with a new one, updating callbacks as needed
-     * 
+     * Registers a channel for its namespace, replacing any channel previously registered for it
+     *
      * @param castChannel
+     * @param priority
+     *            Priority of the namespace's send queue; one of the <code>PRIORITY_</code> constants
      */
-    private void setChannel(CastChannel castChannel) {
-        if (mChannel != null && mApiClient != null) {
-            try {
-                removeMessageChannel();
-            } catch (IOException e) {
-                throw new RuntimeException("Could not remove channel", e);
+    private void addChannel(CastChannel castChannel, int priority) {
+        final String namespace = castChannel.getNamespace();
+        boolean isNew = mChannels.put(namespace, castChannel) == null;
+        SendQueue sendQueue = mSendQueues.get(namespace);
+        if (sendQueue == null) {
+            sendQueue = new SendQueue("CastProxy-sender-" + namespace, SEND_QUEUE_CAPACITY,
+                    SEND_MAX_BATCH_SIZE, SEND_LINGER_MS, priority, new SendQueue.FrameSender() {
+
+                        @Override
+                        public boolean hasCredit() {
+                            boolean connected = false;
+                            for (DeviceSession session : mSessions.values()) {
+                                if (session.canSend()) {
+                                    if (session.getWindow(namespace).hasCredit()) {
+                                        return true;
+                                    }
+                                    connected = true;
+                                }
+                            }
+                            // Without a device to wait for, the frame is dropped right away
+                            return !connected;
+                        }
+
+                        @Override
+                        public boolean sendFrame(String frame, int envelopeCount) {
+                            // Fans out to every connected device, each within its own window
+                            int count = 0;
+                            for (DeviceSession session : mSessions.values()) {
+                                if (!session.canSend()) {
+                                    continue;
+                                }
+                                try {
+                                    if (session.getWindow(namespace).offer(frame, envelopeCount)) {
+                                        count++;
+                                    }
+                                } catch (Exception e) {
+                                    Log.e(TAG, "Exception while sending frame to " + session.mRouteId, e);
+                                }
+                            }
+                            if (count == 0) {
+                                Log.w(TAG, "Dropping frame of " + envelopeCount + " messages for "
+                                        + namespace + "; no connection");
+                                return false;
+                            }
+                            return true;
+                        }
+                    });
+            mSendQueues.put(namespace, sendQueue);
+        }
+        if (isNew) {
+            for (DeviceSession session : mSessions.values()) {
+                GoogleApiClient apiClient = session.mConnection.get().client;
+                if (apiClient != null) {
+                    session.createMessageChannel(apiClient, namespace);
+                }
             }
         }
-        mChannel = castChannel;
-        if (mApiClient != null) {
-            createMessageChannel();
+        if (hasOtherStartedSession(null)) {
+            sendQueue.start();
+        }
+    }
+
+    private void removeChannel(String namespace) {
+        if (mChannels.remove(namespace) == null) {
+            return;
+        }
+        SendQueue sendQueue = mSendQueues.remove(namespace);
+        if (sendQueue != null) {
+            sendQueue.stop();
+        }
+        for (DeviceSession session : mSessions.values()) {
+            session.removeWindow(namespace);
+            GoogleApiClient apiClient = session.mConnection.get().client;
+            if (apiClient != null) {
+                try {
+                    session.removeMessageChannel(apiClient, namespace);
+                } catch (IOException e) {
+                    Log.e(TAG, "Exception while removing channel", e);
+                }
+            }
         }
     }
 
     /**
-     * Connect to a device
-     * 
-     * @param device
-     *            Device to launch onto
+     * Starts the send queues and informs all channels that the first device is connected
      */
-    private void connect() {
-        Log.d(TAG, "connecting...");
-        try {
-            mCastListener = new Cast.Listener() {
+    private void notifyConnected() {
+        for (SendQueue sendQueue : mSendQueues.values()) {
+            sendQueue.start();
+        }
+        for (CastChannel channel : mChannels.values()) {
+            channel.onConnected();
+        }
+    }
 
-                @Override
-                public void onApplicationDisconnected(int errorCode) {
-                    Log.d(TAG, "application has stopped; errorCode=" + errorCode);
-                    disconnect();
-                }
+    /**
+     * Starts the send queues and informs all channels that a device is connected again
+     */
+    private void notifyReconnected() {
+        for (SendQueue sendQueue : mSendQueues.values()) {
+            sendQueue.start();
+        }
+        for (CastChannel channel : mChannels.values()) {
+            channel.onReconnected();
+        }
+    }
 
-            };
-            // Connect to Google Play services
-            mConnectionCallbacks = new ConnectionCallbacks();
-            mConnectionFailedListener = new ConnectionFailedListener();
-            Cast.CastOptions.Builder apiOptionsBuilder = Cast.CastOptions
-                    .builder(mSelectedDevice, mCastListener);
-            if (mApiClient != null) {
-                Log.d(TAG, "existing API client during connection; disconnecting first...");
-                // It's possible that we already had a connection; disconnect first to avoid a
-                // conflicted state
-                disconnect();
-            }
-            mApiClient = new GoogleApiClient.Builder(mApplicationContext)
-                    .addApi(Cast.API, apiOptionsBuilder.build())
-                    .addConnectionCallbacks(mConnectionCallbacks)
-                    .addOnConnectionFailedListener(mConnectionFailedListener)
-                    .build();
+    /**
+     * Stops the send queues and informs all channels that the last device is disconnected
+     */
+    private void notifyDisconnected() {
+        for (SendQueue sendQueue : mSendQueues.values()) {
+            sendQueue.stop();
+        }
+        for (CastChannel channel : mChannels.values()) {
+            channel.onDisconnected();
+        }
+    }
 
-            mApiClient.connect();
-        } catch (Exception e) {
-            Log.e(TAG, "Failed launchReceiver", e);
+    /**
+     * @return Whether any session other than the given one has a running receiver application
+     */
+    private boolean hasOtherStartedSession(DeviceSession except) {
+        for (DeviceSession session : mSessions.values()) {
+            if (session != except && session.isStarted()) {
+                return true;
+            }
         }
+        return false;
     }
 
     /**
-     * Disconnect from the receiver
+     * Selects the route that was used last, if it's known already; otherwise it's selected as soon
+     * as discovery finds it. Its session then joins the receiver application that was running.
      */
-    private void disconnect() {
-        Log.d(TAG, "disconnecting...");
-        if (mApiClient != null) {
-            if (mApplicationStarted) {
-                if (mApiClient.isConnected() || mApiClient.isConnecting()) {
-                    try {
-                        if (mSingleUserMode) {
-                            Cast.CastApi.stopApplication(mApiClient, mSessionId);
-                        } else {
-                            Cast.CastApi.leaveApplication(mApiClient);
-                        }
-                        removeMessageChannel();
-                    } catch (IOException e) {
-                        Log.e(TAG, "Exception while removing channel", e);
-                    }
-                    mApiClient.disconnect();
-                    mChannel.onDisconnected();
-                }
-                mApplicationStarted = false;
+    private void resumeLastRoute() {
+        String routeId = mPreferences.getString(PREF_LAST_ROUTE_ID, null);
+        if (routeId == null || !mSessions.isEmpty()) {
+            return;
+        }
+        mResumeRouteId = routeId;
+        for (RouteInfo route : mMediaRouter.getRoutes()) {
+            if (route.getId().equals(routeId) && route.matchesSelector(mMediaRouteSelector)) {
+                Log.d(TAG, "last route known; resuming " + routeId);
+                mMediaRouter.selectRoute(route);
+                return;
             }
-            mApiClient = null;
         }
-        mSelectedDevice = null;
-        mWaitingForReconnect = false;
-        mSessionId = null;
+        Log.d(TAG, "waiting for discovery of last route " + routeId);
+    }
+
+    private void rememberLastRoute(String routeId, String sessionId) {
+        mPreferences.edit()
+                .putString(PREF_LAST_ROUTE_ID, routeId)
+                .putString(PREF_LAST_SESSION_ID, sessionId)
+                .apply();
+    }
+
+    private void forgetLastRoute() {
+        mResumeRouteId = null;
+        mPreferences.edit()
+                .remove(PREF_LAST_ROUTE_ID)
+                .remove(PREF_LAST_SESSION_ID)
+                .apply();
+    }
+
+    private void reportStartupTime(boolean wasLaunched) {
+        if (!mStartupTimeReported) {
+            mStartupTimeReported = true;
+            Log.i(TAG, "startup to connected: " + (SystemClock.elapsedRealtime() - mCreatedAt) + " ms"
+                    + (wasLaunched ? " (launched receiver)" : " (joined receiver)"));
+        }
+    }
+
+    private void disconnectAll() {
+        for (DeviceSession session : mSessions.values()) {
+            session.disconnect();
+        }
     }
 
     /**
-     * Google Play services callbacks
+     * Stops serving the media the receivers were last sent, if any
      */
-    private class ConnectionCallbacks implements
-            GoogleApiClient.ConnectionCallbacks {
+    private void stopServingMedia() {
+        String path = mServedPath.getAndSet(null);
+        if (path != null) {
+            mMediaServer.unregister(path);
+        }
+    }
 
-        @Override
-        public void onConnected(Bundle connectionHint) {
-            Log.d(TAG, "onConnected");
+    /**
+     * Connection to a single receiver device. Every session has its own API client, connection
+     * state and frame windows, so a slow or reconnecting device doesn't hold up the others.
+     */
+    private class DeviceSession {
 
-            if (mApiClient == null) {
-                // We got disconnected while this runnable was pending execution.
-                Log.d(TAG, "disconnected during onConnected");
-                return;
+        /**
+         * Sends a namespace's frames to this device within their window, and acknowledges them as
+         * this device's send results come in
+         */
+        private class ChannelWindow implements FrameWindow.Sink {
+
+            private final String mNamespace;
+            private final FrameWindow mWindow = new FrameWindow(mTimer, this);
+
+            ChannelWindow(String namespace) {
+                mNamespace = namespace;
+            }
+
+            @Override
+            public boolean send(String frame, final long sequence) {
+                return sendMessage(mNamespace, frame, new Transport.SendCallback() {
+
+                    @Override
+                    public void onResult(boolean success) {
+                        mWindow.onAcknowledged(sequence, success);
+                    }
+                });
+            }
+
+            @Override
+            public void onCreditAvailable() {
+                SendQueue sendQueue = mSendQueues.get(mNamespace);
+                if (sendQueue != null) {
+                    sendQueue.onCreditAvailable();
+                }
             }
 
+        }
+
+        private final String mRouteId;
+        private final CastDevice mDevice;
+
+        // Current API client and how far it got; callbacks of replaced clients can't change it
+        private final ConnectionStateMachine<GoogleApiClient> mConnection = new ConnectionStateMachine<GoogleApiClient>();
+        // Kept while reconnecting, so the running receiver application can be joined again
+        private volatile String mSessionId;
+        private final ReconnectScheduler mReconnectScheduler;
+
+        private final AtomicLong mSendCount = new AtomicLong();
+        private final AtomicLong mSendFailures = new AtomicLong();
+        private final AtomicLong mTotalSendLatency = new AtomicLong();
+        private final AtomicLong mMaxSendLatency = new AtomicLong();
+
+        // Frame windows by namespace; created by the sender threads as they first send
+        private final Map<String, ChannelWindow> mWindows = new ConcurrentHashMap<String, ChannelWindow>();
+
+        public DeviceSession(String routeId, CastDevice device) {
+            mRouteId = routeId;
+            mDevice = device;
+            if (routeId.equals(mPreferences.getString(PREF_LAST_ROUTE_ID, null))) {
+                // Try to join the receiver application we left last time
+                mSessionId = mPreferences.getString(PREF_LAST_SESSION_ID, null);
+            }
+            mConnection.addListener(new ConnectionStateMachine.Listener<GoogleApiClient>() {
+
+                @Override
+                public void onStateChanged(ConnectionStateMachine.Snapshot<GoogleApiClient> from,
+                        ConnectionStateMachine.Snapshot<GoogleApiClient> to) {
+                    Log.d(TAG, mRouteId + ": " + from + " -> " + to);
+                }
+            });
+            mReconnectScheduler = new ReconnectScheduler(new ReconnectScheduler.Target() {
+
+                @Override
+                public void reconnect(int attempt) {
+                    Log.d(TAG, "reconnecting to " + mRouteId + ", attempt " + attempt);
+                    connect();
+                }
+
+                @Override
+                public void giveUp() {
+                    Log.d(TAG, "giving up on reconnecting to " + mRouteId);
+                    disconnect();
+                    forgetLastRoute();
+                }
+            });
+        }
+
+        /**
+         * Connect to the device
+         */
+        private void connect() {
+            Log.d(TAG, "connecting to " + mRouteId + "...");
             try {
-                if (mWaitingForReconnect) {
-                    mWaitingForReconnect = false;
-
-                    // Check if the receiver app is still running
-                    if (connectionHint != null
-                            && connectionHint.getBoolean(Cast.EXTRA_APP_NO_LONGER_RUNNING)) {
-                        Log.d(TAG, "App is no longer running");
-                        disconnect();
-                    } else {
-                        // Re-create the custom message channel
-                        createMessageChannel();
+                if (mConnection.get().client != null) {
+                    Log.d(TAG, "existing API client during connection; disconnecting first...");
+                    // It's possible that we already had a connection; disconnect first to avoid a
+                    // conflicted state
+                    disconnect();
+                    mSessions.put(mRouteId, this);
+                }
+                // Connect to Google Play services
+                final ConnectionCallbacks connectionCallbacks = new ConnectionCallbacks(this);
+                ConnectionFailedListener connectionFailedListener = new ConnectionFailedListener(this);
+                Cast.Listener castListener = new Cast.Listener() {
+
+                    @Override
+                    public void onApplicationDisconnected(int errorCode) {
+                        Log.d(TAG, "application has stopped; errorCode=" + errorCode);
+                        connectionLost(connectionCallbacks.mApiClient);
                     }
-                } else {
-                    launchApp(!mSingleUserMode);
+
+                };
+                Cast.CastOptions.Builder apiOptionsBuilder = Cast.CastOptions
+                        .builder(mDevice, castListener);
+                GoogleApiClient apiClient = new GoogleApiClient.Builder(mApplicationContext)
+                        .addApi(Cast.API, apiOptionsBuilder.build())
+                        .addConnectionCallbacks(connectionCallbacks)
+                        .addOnConnectionFailedListener(connectionFailedListener)
+                        .build();
+                connectionCallbacks.mApiClient = apiClient;
+                connectionFailedListener.mApiClient = apiClient;
+                if (mConnection.begin(apiClient)) {
+                    apiClient.connect();
                 }
             } catch (Exception e) {
-                Log.e(TAG, "Failed to launch application", e);
+                Log.e(TAG, "Failed launchReceiver", e);
+            }
+        }
+
+        /**
+         * Disconnect from the receiver and forget about this session
+         */
+        private void disconnect() {
+            Log.d(TAG, "disconnecting from " + mRouteId + "...");
+            mSessions.remove(mRouteId);
+            if (mSessions.isEmpty()) {
+                stopServingMedia();
+            }
+            boolean recovering = mReconnectScheduler.isRecovering();
+            mReconnectScheduler.cancel();
+            ConnectionStateMachine.Snapshot<GoogleApiClient> previous = mConnection.reset();
+            GoogleApiClient apiClient = previous.client;
+            if (apiClient != null && previous.isStarted()
+                    && (apiClient.isConnected() || apiClient.isConnecting())) {
+                try {
+                    if (mSingleUserMode) {
+                        Cast.CastApi.stopApplication(apiClient, mSessionId);
+                    } else {
+                        Cast.CastApi.leaveApplication(apiClient);
+                    }
+                    removeMessageChannels(apiClient);
+                } catch (IOException e) {
+                    Log.e(TAG, "Exception while removing channel", e);
+                }
+            }
+            disconnectClient(apiClient);
+            clearWindows();
+            if ((previous.isStarted() || recovering) && !hasOtherStartedSession(this)) {
+                notifyDisconnected();
+            }
+            mSessionId = null;
+            Log.d(TAG, "session " + mRouteId + " ended; " + getStatsSummary() + "; "
+                    + mReconnectScheduler.getStatsSummary());
+        }
+
+        /**
+         * The connection or the receiver application went away; try to get it back, keeping the
+         * session ID so that the receiver application can be joined again
+         *
+         * @param apiClient
+         *            Client that lost its connection; ignored if it was already replaced
+         */
+        private void connectionLost(GoogleApiClient apiClient) {
+            ConnectionStateMachine.Snapshot<GoogleApiClient> current = mConnection.get();
+            if (current.client != apiClient) {
+                Log.d(TAG, "ignoring lost connection of a previous client");
+                return;
+            }
+            if (mSessionId == null && !mReconnectScheduler.isRecovering()) {
+                // Never got as far as running the receiver application; nothing to resume
+                disconnect();
+                forgetLastRoute();
+                return;
+            }
+            Log.d(TAG, "connection to " + mRouteId + " lost");
+            disconnectClient(mConnection.reset().client);
+            // Acknowledgements of the lost connection may never come; start over when it's back
+            clearWindows();
+            mReconnectScheduler.onConnectionLost();
+        }
+
+        private void disconnectClient(GoogleApiClient apiClient) {
+            if (apiClient != null && (apiClient.isConnected() || apiClient.isConnecting())) {
+                apiClient.disconnect();
+            }
+        }
+
+        /**
+         * @return Whether messages can be sent to this device right now
+         */
+        private boolean canSend() {
+            return mConnection.getConnectedClient() != null;
+        }
+
+        /**
+         * @return The namespace's frame window for this device, created if needed
+         */
+        private FrameWindow getWindow(String namespace) {
+            ChannelWindow window = mWindows.get(namespace);
+            if (window == null) {
+                synchronized (mWindows) {
+                    window = mWindows.get(namespace);
+                    if (window == null) {
+                        window = new ChannelWindow(namespace);
+                        mWindows.put(namespace, window);
+                    }
+                }
+            }
+            return window.mWindow;
+        }
+
+        private void removeWindow(String namespace) {
+            ChannelWindow window = mWindows.remove(namespace);
+            if (window != null) {
+                window.mWindow.clear();
+            }
+        }
+
+        private void clearWindows() {
+            for (ChannelWindow window : mWindows.values()) {
+                window.mWindow.clear();
             }
         }
 
-        private void launchApp(final boolean tryJoin) {
+        /**
+         * @return Whether the receiver application is running, even if the connection to it is
+         *         temporarily suspended
+         */
+        private boolean isStarted() {
+            return mConnection.get().isStarted();
+        }
+
+        private void launchApp(final GoogleApiClient apiClient, final boolean tryJoin) {
             // Launch the receiver app
             PendingResult<ApplicationConnectionResult> result;
             if (tryJoin) {
-                result = Cast.CastApi.joinApplication(mApiClient, mApplicationContext.getString(R.string.app_id),
+                result = Cast.CastApi.joinApplication(apiClient, mApplicationContext.getString(R.string.app_id),
                         mSessionId);
             } else {
-                result = Cast.CastApi.launchApplication(mApiClient, mApplicationContext.getString(R.string.app_id),
+                result = Cast.CastApi.launchApplication(apiClient, mApplicationContext.getString(R.string.app_id),
                         false);
             }
             result.setResultCallback(new ResultCallback<Cast.ApplicationConnectionResult>() {
@@ -237,6 +639,10 @@ public class CastProxy {
                     Log.d(TAG,
                             "ApplicationConnectionResultCallback.onResult: statusCode="
                                     + status.getStatusCode());
+                    if (mConnection.get().client != apiClient) {
+                        // The session was disconnected while launching
+                        return;
+                    }
                     if (status.isSuccess()) {
                         // Just some debug information
                         ApplicationMetadata applicationMetadata = result.getApplicationMetadata();
@@ -252,51 +658,251 @@ public class CastProxy {
                                 + ", wasLaunched: "
                                 + wasLaunched);
 
-                        // Create the custom message channel
-                        createMessageChannel();
+                        rememberLastRoute(mRouteId, mSessionId);
+                        reportStartupTime(wasLaunched);
 
-                        if (!mApplicationStarted) {
-                            // Allow the channel to perform connection events
-                            mChannel.onConnected();
-                        }
+                        // Create the custom message channels
+                        createMessageChannels(apiClient);
 
-                        mApplicationStarted = true;
+                        boolean firstSession = !hasOtherStartedSession(DeviceSession.this);
+                        boolean recovered = mReconnectScheduler.isRecovering();
+                        if (!mConnection.transition(apiClient, ConnectionStateMachine.State.LAUNCHING,
+                                ConnectionStateMachine.State.CONNECTED)) {
+                            Log.d(TAG, "connection changed while launching; now " + mConnection.get());
+                            return;
+                        }
+                        mReconnectScheduler.onRecovered();
+                        if (firstSession) {
+                            // Allow the channels to perform connection events
+                            if (recovered) {
+                                notifyReconnected();
+                            } else {
+                                notifyConnected();
+                            }
+                        }
 
                     } else {
                         if (tryJoin
                                 && status.getStatusCode() == CastStatusCodes.APPLICATION_NOT_RUNNING) {
-                            launchApp(false);
+                            launchApp(apiClient, false);
                             return;
                         }
                         Log.e(TAG, "application could not launch");
-                        disconnect();
+                        if (mReconnectScheduler.isRecovering()) {
+                            connectionLost(apiClient);
+                        } else {
+                            disconnect();
+                            forgetLastRoute();
+                        }
                     }
                 }
             });
         }
 
-        @Override
-        public void onConnectionSuspended(int cause) {
-            Log.d(TAG, "onConnectionSuspended");
-            mWaitingForReconnect = true;
+        private void createMessageChannels(GoogleApiClient apiClient) {
+            for (String namespace : mChannels.keySet()) {
+                createMessageChannel(apiClient, namespace);
+            }
+        }
+
+        private void createMessageChannel(GoogleApiClient apiClient, String namespace) {
+            try {
+                // All namespaces share a dispatcher that routes to the registered channel
+                Cast.CastApi.setMessageReceivedCallbacks(
+                        apiClient,
+                        namespace,
+                        mTransport.mCastCallback);
+            } catch (IOException e) {
+                throw new RuntimeException("Could not create channel", e);
+            }
+        }
+
+        private void removeMessageChannels(GoogleApiClient apiClient) throws IOException {
+            for (String namespace : mChannels.keySet()) {
+                removeMessageChannel(apiClient, namespace);
+            }
+        }
+
+        private void removeMessageChannel(GoogleApiClient apiClient, String namespace) throws IOException {
+            Cast.CastApi.removeMessageReceivedCallbacks(
+                    apiClient,
+                    namespace);
+        }
+
+        /**
+         * Sends a message without waiting for the result; can be called from any thread
+         *
+         * @param callback
+         *            Informed of the result if the message was sent; may be null
+         * @return false if the session isn't ready to send
+         */
+        private boolean sendMessage(String namespace, String message, final Transport.SendCallback callback) {
+            GoogleApiClient apiClient = mConnection.getConnectedClient();
+            if (apiClient == null) {
+                return false;
+            }
+            final long sentAt = SystemClock.elapsedRealtime();
+            Cast.CastApi.sendMessage(apiClient, namespace, message)
+                    .setResultCallback(new ResultCallback<Status>() {
+
+                        @Override
+                        public void onResult(Status result) {
+                            long latency = SystemClock.elapsedRealtime() - sentAt;
+                            mSendCount.incrementAndGet();
+                            mTotalSendLatency.addAndGet(latency);
+                            long maxLatency;
+                            while (latency > (maxLatency = mMaxSendLatency.get())
+                                    && !mMaxSendLatency.compareAndSet(maxLatency, latency)) {
+                                // Retry
+                            }
+                            if (!result.isSuccess()) {
+                                mSendFailures.incrementAndGet();
+                                Log.e(TAG, "Sending message to " + mRouteId + " failed");
+                            }
+                            if (callback != null) {
+                                callback.onResult(result.isSuccess());
+                            }
+                        }
+                    });
+            return true;
+        }
+
+        private String getStatsSummary() {
+            long sends = mSendCount.get();
+            StringBuilder summary = new StringBuilder()
+                    .append("sends=").append(sends)
+                    .append(", failures=").append(mSendFailures.get())
+                    .append(", avgLatencyMs=").append(sends == 0 ? 0 : mTotalSendLatency.get() / sends)
+                    .append(", maxLatencyMs=").append(mMaxSendLatency.get());
+            for (Map.Entry<String, ChannelWindow> entry : mWindows.entrySet()) {
+                summary.append("; ").append(entry.getKey()).append(": ")
+                        .append(entry.getValue().mWindow.getStatsSummary());
+            }
+            return summary.toString();
         }
+
     }
 
-    private void createMessageChannel() {
-        try {
-            Cast.CastApi.setMessageReceivedCallbacks(
-                    mApiClient,
-                    mChannel.getNamespace(),
-                    mChannel);
-        } catch (IOException e) {
-            throw new RuntimeException("Could not create channel", e);
+    /**
+     * Transport over the Cast SDK; fans every message out to all device sessions
+     */
+    private class CastTransport implements Transport<CastDevice> {
+
+        private volatile Transport.MessageListener<? super CastDevice> mListener;
+
+        // Registered with each session's API client as its message channels are created
+        private final Cast.MessageReceivedCallback mCastCallback = new Cast.MessageReceivedCallback() {
+
+            @Override
+            public void onMessageReceived(CastDevice castDevice, String namespace, String message) {
+                Transport.MessageListener<? super CastDevice> listener = mListener;
+                if (listener != null) {
+                    listener.onMessageReceived(castDevice, namespace, message);
+                }
+            }
+        };
+
+        @Override
+        public void setMessageListener(Transport.MessageListener<? super CastDevice> listener) {
+            mListener = listener;
+        }
+
+        @Override
+        public boolean isConnected() {
+            for (DeviceSession session : mSessions.values()) {
+                // Only sessions whose receiver application is running can be sent to
+                if (session.mConnection.getConnectedClient() != null && session.mSessionId != null) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public int sendMessage(String namespace, String message, SendCallback callback) {
+            int count = 0;
+            for (DeviceSession session : mSessions.values()) {
+                try {
+                    if (session.sendMessage(namespace, message, callback)) {
+                        count++;
+                    }
+                } catch (Exception e) {
+                    Log.e(TAG, "Exception while sending message to " + session.mRouteId, e);
+                }
+            }
+            return count;
         }
+
+        @Override
+        public String getStatsSummary() {
+            StringBuilder summary = new StringBuilder();
+            for (DeviceSession session : mSessions.values()) {
+                summary.append(session.mDevice == null ? session.mRouteId : session.mDevice.getFriendlyName())
+                        .append(": ").append(session.getStatsSummary()).append('\n');
+            }
+            return summary.toString();
+        }
+
     }
 
-    public void removeMessageChannel() throws IOException {
-        Cast.CastApi.removeMessageReceivedCallbacks(
-                mApiClient,
-                mChannel.getNamespace());
+    /**
+     * Google Play services callbacks
+     */
+    private class ConnectionCallbacks implements
+            GoogleApiClient.ConnectionCallbacks {
+
+        private final DeviceSession mSession;
+        // The client these callbacks were registered with; set once it's built
+        private GoogleApiClient mApiClient;
+
+        public ConnectionCallbacks(DeviceSession session) {
+            mSession = session;
+        }
+
+        @Override
+        public void onConnected(Bundle connectionHint) {
+            Log.d(TAG, "onConnected");
+            ConnectionStateMachine<GoogleApiClient> connection = mSession.mConnection;
+
+            try {
+                // Check if the receiver app is still running
+                boolean appStopped = connectionHint != null
+                        && connectionHint.getBoolean(Cast.EXTRA_APP_NO_LONGER_RUNNING);
+                if (appStopped && connection.transition(mApiClient, ConnectionStateMachine.State.SUSPENDED,
+                        ConnectionStateMachine.State.LAUNCHING)) {
+                    Log.d(TAG, "App is no longer running");
+                    // Launch it again instead of dropping the session
+                    mSession.launchApp(mApiClient, true);
+                } else if (!appStopped && connection.transition(mApiClient, ConnectionStateMachine.State.SUSPENDED,
+                        ConnectionStateMachine.State.CONNECTED)) {
+                    // Re-create the custom message channels
+                    mSession.createMessageChannels(mApiClient);
+                    mSession.mReconnectScheduler.onRecovered();
+                } else if (connection.transition(mApiClient, ConnectionStateMachine.State.CONNECTING,
+                        ConnectionStateMachine.State.LAUNCHING)) {
+                    // When recovering, always try to rejoin the application that was running
+                    mSession.launchApp(mApiClient, !mSingleUserMode || mSession.mReconnectScheduler.isRecovering());
+                } else {
+                    // We got disconnected while this runnable was pending execution.
+                    Log.d(TAG, "disconnected during onConnected");
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to launch application", e);
+            }
+        }
+
+        @Override
+        public void onConnectionSuspended(int cause) {
+            Log.d(TAG, "onConnectionSuspended");
+            ConnectionStateMachine<GoogleApiClient> connection = mSession.mConnection;
+            // The API client reconnects by itself; just measure how long that takes
+            if (connection.transition(mApiClient, ConnectionStateMachine.State.CONNECTED,
+                    ConnectionStateMachine.State.SUSPENDED)
+                    || connection.transition(mApiClient, ConnectionStateMachine.State.LAUNCHING,
+                            ConnectionStateMachine.State.CONNECTING)) {
+                mSession.mReconnectScheduler.onConnectionSuspended();
+            }
+        }
     }
 
     /**
@@ -305,39 +911,96 @@ public class CastProxy {
     private class ConnectionFailedListener implements
             GoogleApiClient.OnConnectionFailedListener {
 
+        private final DeviceSession mSession;
+        // The client this listener was registered with; set once it's built
+        private GoogleApiClient mApiClient;
+
+        public ConnectionFailedListener(DeviceSession session) {
+            mSession = session;
+        }
+
         @Override
         public void onConnectionFailed(ConnectionResult result) {
             Log.e(TAG, "onConnectionFailed ");
-            disconnect();
+            mSession.connectionLost(mApiClient);
+        }
+    }
+
+    private static void checkMainThread() {
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            throw new IllegalStateException("CastProxy must be set up from the main thread");
         }
     }
 
-    public synchronized static CastProxy init(Context applicationContext, CastChannel castChannel) {
+    /**
+     * Creates the proxy if needed and registers a channel with it; call on the main thread
+     *
+     * @param applicationContext
+     * @param castChannel
+     * @return The proxy
+     */
+    public static CastProxy init(Context applicationContext, CastChannel castChannel) {
+        checkMainThread();
         if (sInstance == null && applicationContext != null) {
             sInstance = new CastProxy(applicationContext, castChannel);
         }
-        sInstance.setChannel(castChannel);
+        sInstance.addChannel(castChannel, PRIORITY_CHAT);
         return sInstance;
     }
 
-    public synchronized static void registerInstance() {
+    /**
+     * Adds a channel for another namespace, sharing the device connections
+     *
+     * @param castChannel
+     * @param priority
+     *            Priority of the namespace's send queue; one of the <code>PRIORITY_</code> constants
+     */
+    public static void registerChannel(CastChannel castChannel, int priority) {
+        checkMainThread();
+        if (sInstance != null) {
+            sInstance.addChannel(castChannel, priority);
+        }
+    }
+
+    public static void unregisterChannel(String namespace) {
+        checkMainThread();
+        if (sInstance != null) {
+            sInstance.removeChannel(namespace);
+        }
+    }
+
+    public static void registerInstance() {
+        checkMainThread();
         if (sInstance != null) {
             if (sInstanceCount == 0) {
                 // Start media router discovery
                 sInstance.mMediaRouter.addCallback(sInstance.mMediaRouteSelector, sInstance.mMediaRouterCallback,
                         MediaRouter.CALLBACK_FLAG_REQUEST_DISCOVERY);
-                if (sInstance.mSelectedDevice != null && sInstance.mApiClient == null) {
-                    sInstance.connect();
+                for (DeviceSession session : sInstance.mSessions.values()) {
+                    if (session.mConnection.get().client != null) {
+                        continue;
+                    }
+                    if (session.mReconnectScheduler.isRecovering()) {
+                        // Don't race the scheduled attempt; make it now instead
+                        session.mReconnectScheduler.retryNow();
+                    } else {
+                        session.connect();
+                    }
+                }
+                // Connect to the route used last time without waiting for the user to pick it
+                sInstance.resumeLastRoute();
+            } else if (!sInstance.mSessions.isEmpty() && isConnected()) {
+                // Inform the channels that we've reconnected
+                for (CastChannel channel : sInstance.mChannels.values()) {
+                    channel.onReconnected();
                 }
-            } else if (sInstance.mSelectedDevice != null && sInstance.mApiClient != null) {
-                // Inform the channel that we've reconnected
-                sInstance.mChannel.onReconnected();
             }
             sInstanceCount++;
         }
     }
 
-    public synchronized static void unregisterInstance(boolean disconnectIfLast) {
+    public static void unregisterInstance(boolean disconnectIfLast) {
+        checkMainThread();
         sInstanceCount--;
         if (sInstanceCount <= 0) {
             if (sInstance != null) {
@@ -345,20 +1008,39 @@ public class CastProxy {
                 sInstance.mMediaRouter.removeCallback(sInstance.mMediaRouterCallback);
                 if (disconnectIfLast) {
                     // Disconnect
-                    sInstance.disconnect();
+                    sInstance.disconnectAll();
+                    sInstance.mMediaServer.stop();
                 }
             }
             sInstanceCount = 0;
         }
     }
 
-    public synchronized static void unregisterAllInstances(boolean disconnect) {
+    public static void unregisterAllInstances(boolean disconnect) {
+        checkMainThread();
         sInstanceCount = 0;
         if (sInstance != null) {
-            sInstance.disconnect();
+            sInstance.disconnectAll();
+            sInstance.mMediaServer.stop();
+        }
+    }
+
+    /**
+     * Keep sessions to previously selected devices when another device is selected, so that
+     * messages are sent to several screens at once
+     *
+     * @param multiScreen
+     */
+    public static void setMultiScreen(boolean multiScreen) {
+        if (sInstance != null) {
+            sInstance.mMultiScreen = multiScreen;
         }
     }
 
+    public static boolean isMultiScreen() {
+        return sInstance != null && sInstance.mMultiScreen;
+    }
+
     public static MediaRouteSelector getMediaRouteSelector() {
         if (sInstance != null) {
             return sInstance.mMediaRouteSelector;
@@ -366,18 +1048,123 @@ public class CastProxy {
         return null;
     }
 
-    public static CastChannel getChannel() {
+    public static CastChannel getChannel(String namespace) {
         if (sInstance != null) {
-            return sInstance.mChannel;
+            return sInstance.mChannels.get(namespace);
         }
         return null;
     }
 
-    public static GoogleApiClient getApiClient() {
+    /**
+     * @return Whether at least one device has a running receiver application
+     */
+    public static boolean isConnected() {
+        CastProxy instance = sInstance;
+        return instance != null && instance.mTransport.isConnected();
+    }
+
+    /**
+     * Queues a message on the namespace's send queue, to be batched and sent to every connected
+     * device
+     *
+     * @param namespace
+     * @param message
+     * @return false if there's no channel for the namespace or its queue is full
+     */
+    public static boolean queueMessage(String namespace, String message) {
         if (sInstance != null) {
-            return sInstance.mApiClient;
+            SendQueue sendQueue = sInstance.mSendQueues.get(namespace);
+            if (sendQueue != null) {
+                return sendQueue.offer(message);
+            }
         }
-        return null;
+        return false;
+    }
+
+    /**
+     * Queues the chunks of a long message on the namespace's send queue; they go out in the room
+     * that frames of regular messages leave
+     *
+     * @param namespace
+     * @param chunks
+     * @return false if there's no channel for the namespace or no room for all chunks
+     */
+    public static boolean queueChunks(String namespace, String[] chunks) {
+        if (sInstance != null) {
+            SendQueue sendQueue = sInstance.mSendQueues.get(namespace);
+            if (sendQueue != null) {
+                return sendQueue.offerChunks(chunks);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sends a message to every connected device right away. Sends are asynchronous and independent per
+     * device; can be called from any thread.
+     *
+     * @param namespace
+     * @param message
+     * @return Number of devices the message was sent to
+     */
+    public static int sendMessage(String namespace, String message) {
+        CastProxy instance = sInstance;
+        if (instance != null) {
+            return instance.mTransport.sendMessage(namespace, message, null);
+        }
+        return 0;
+    }
+
+    /**
+     * Makes media available to the receivers over HTTP, starting the media server if needed. The
+     * media it replaces isn't served anymore, and neither is this once the last session ends.
+     *
+     * @param media
+     * @return URL the receivers can load the media from, or null if we aren't on a Wi-Fi network or
+     *         the server couldn't be started
+     */
+    public static String serveMedia(MediaServer.Media media) {
+        CastProxy instance = sInstance;
+        if (instance == null) {
+            return null;
+        }
+        String address = MediaServer.getWifiAddress(instance.mApplicationContext);
+        if (address == null) {
+            Log.w(TAG, "Not on Wi-Fi; can't serve media to the receivers");
+            return null;
+        }
+        try {
+            // The server is thread-safe by itself
+            int port = instance.mMediaServer.start(0);
+            String path = instance.mMediaServer.register(media);
+            String previous = instance.mServedPath.getAndSet(path);
+            if (previous != null) {
+                instance.mMediaServer.unregister(previous);
+            }
+            return "http://" + address + ":" + port + path;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed starting media server", e);
+            return null;
+        }
+    }
+
+    /**
+     * @return Per-device send statistics, followed by those of the send queues and the media server
+     */
+    public static String getStatsSummary() {
+        CastProxy instance = sInstance;
+        if (instance == null) {
+            return "";
+        }
+        StringBuilder summary = new StringBuilder(instance.mTransport.getStatsSummary());
+        for (Map.Entry<String, SendQueue> entry : instance.mSendQueues.entrySet()) {
+            summary.append(entry.getKey()).append(" queue: ").append(entry.getValue().getStatsSummary())
+                    .append('\n');
+        }
+        if (instance.mMediaServer.isRunning()) {
+            summary.append("media server: ").append(instance.mMediaServer.getStatsSummary()).append('\n');
+        }
+        return summary.toString();
     }
 
 }
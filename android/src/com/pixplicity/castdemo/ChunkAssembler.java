@@ -0,0 +1,146 @@
+package com.pixplicity.castdemo;
+
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Joins the chunks of envelopes that were too long for one Cast message, see
+ * {@link EnvelopeCodec#CODE_CHUNK}. Chunks of different envelopes may arrive interleaved with each
+ * other and with whole envelopes; each envelope is handed out as soon as its last chunk is in.
+ * <p>
+ * Memory is bounded: chunks that would take the buffered text over the limit drop their envelope,
+ * and envelopes that stop receiving chunks are dropped after a timeout. Not thread-safe.
+ */
+public class ChunkAssembler {
+
+    private static class Partial {
+
+        final String[] pieces;
+        int received;
+        int length;
+        long updatedAt;
+
+        Partial(int count) {
+            pieces = new String[count];
+        }
+
+    }
+
+    private final int mMaxBufferedLength;
+    private final long mTimeoutMillis;
+    private final HashMap<String, Partial> mPartials = new HashMap<String, Partial>();
+    private final StringBuilder mKey = new StringBuilder(64);
+    private int mBufferedLength;
+
+    private long mChunks;
+    private long mAssembled;
+    private long mDropped;
+    private long mExpired;
+    private int mMaxBuffered;
+
+    /**
+     * @param maxBufferedLength
+     *            Maximum number of characters held for incomplete envelopes
+     * @param timeoutMillis
+     *            How long an incomplete envelope is kept after its latest chunk
+     */
+    public ChunkAssembler(int maxBufferedLength, long timeoutMillis) {
+        mMaxBufferedLength = maxBufferedLength;
+        mTimeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * @param source
+     *            Where the chunk came from; chunk ids are unique per source
+     * @param cid
+     * @param idx
+     * @param cnt
+     * @param piece
+     *            Text of the chunk
+     * @param now
+     * @return The whole envelope if this was its last missing chunk, otherwise null
+     */
+    public String add(String source, long cid, int idx, int cnt, String piece, long now) {
+        mChunks++;
+        expire(now);
+        mKey.setLength(0);
+        String key = mKey.append(source).append(':').append(cid).toString();
+        Partial partial = mPartials.get(key);
+        if (cnt <= 0 || cnt > EnvelopeCodec.MAX_CHUNKS || idx < 0 || idx >= cnt || piece == null
+                || (partial != null && partial.pieces.length != cnt)) {
+            drop(key, partial);
+            return null;
+        }
+        if (partial == null) {
+            partial = new Partial(cnt);
+            mPartials.put(key, partial);
+        }
+        partial.updatedAt = now;
+        if (partial.pieces[idx] != null) {
+            // Repeated
+            return null;
+        }
+        if (mBufferedLength + piece.length() > mMaxBufferedLength) {
+            drop(key, partial);
+            return null;
+        }
+        partial.pieces[idx] = piece;
+        partial.received++;
+        partial.length += piece.length();
+        mBufferedLength += piece.length();
+        mMaxBuffered = Math.max(mMaxBuffered, mBufferedLength);
+        if (partial.received < cnt) {
+            return null;
+        }
+        mPartials.remove(key);
+        mBufferedLength -= partial.length;
+        mAssembled++;
+        if (cnt == 1) {
+            return partial.pieces[0];
+        }
+        StringBuilder envelope = new StringBuilder(partial.length);
+        for (String p : partial.pieces) {
+            envelope.append(p);
+        }
+        return envelope.toString();
+    }
+
+    private void drop(String key, Partial partial) {
+        mDropped++;
+        if (partial != null) {
+            mPartials.remove(key);
+            mBufferedLength -= partial.length;
+        }
+    }
+
+    /**
+     * Drops the envelopes that didn't receive a chunk within the timeout
+     *
+     * @param now
+     */
+    public void expire(long now) {
+        if (mPartials.isEmpty()) {
+            return;
+        }
+        Iterator<Partial> iterator = mPartials.values().iterator();
+        while (iterator.hasNext()) {
+            Partial partial = iterator.next();
+            if (now - partial.updatedAt > mTimeoutMillis) {
+                iterator.remove();
+                mBufferedLength -= partial.length;
+                mExpired++;
+            }
+        }
+    }
+
+    public String getStatsSummary() {
+        return "chunks=" + mChunks
+                + ", assembled=" + mAssembled
+                + ", pending=" + mPartials.size()
+                + ", bufferedChars=" + mBufferedLength
+                + ", maxBufferedChars=" + mMaxBuffered
+                + ", dropped=" + mDropped
+                + ", expired=" + mExpired;
+    }
+
+}
@@ -0,0 +1,149 @@
+package com.pixplicity.castdemo;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Connection state held in a single atomic reference. Every state is an immutable {@link Snapshot}
+ * of the state and the client it belongs to, and transitions are compare-and-set operations that
+ * only succeed from the expected state of the expected client. A callback of a client that was
+ * replaced or released in the meantime therefore can't move the connection anywhere, and readers
+ * never block.
+ * <p>
+ * Listeners are informed of every transition on the thread that made it.
+ *
+ * @param <C>
+ *            Type of the client a connection is made through
+ */
+public class ConnectionStateMachine<C> {
+
+    public static enum State {
+        /** No client */
+        DISCONNECTED,
+        /** The client is connecting to the device */
+        CONNECTING,
+        /** The client is connected; the receiver application is being launched or joined */
+        LAUNCHING,
+        /** The receiver application is running */
+        CONNECTED,
+        /** The receiver application is running, but the client is reconnecting by itself */
+        SUSPENDED
+    }
+
+    public static final class Snapshot<C> {
+
+        public final State state;
+        public final C client;
+
+        private Snapshot(State state, C client) {
+            this.state = state;
+            this.client = client;
+        }
+
+        /**
+         * @return Whether the receiver application is running, even if the connection to it is
+         *         temporarily suspended
+         */
+        public boolean isStarted() {
+            return state == State.CONNECTED || state == State.SUSPENDED;
+        }
+
+        @Override
+        public String toString() {
+            return state.name();
+        }
+
+    }
+
+    public static interface Listener<C> {
+
+        public void onStateChanged(Snapshot<C> from, Snapshot<C> to);
+
+    }
+
+    private final Snapshot<C> mDisconnected = new Snapshot<C>(State.DISCONNECTED, null);
+    private final AtomicReference<Snapshot<C>> mSnapshot = new AtomicReference<Snapshot<C>>(mDisconnected);
+    private final CopyOnWriteArrayList<Listener<C>> mListeners = new CopyOnWriteArrayList<Listener<C>>();
+
+    public void addListener(Listener<C> listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeListener(Listener<C> listener) {
+        mListeners.remove(listener);
+    }
+
+    public Snapshot<C> get() {
+        return mSnapshot.get();
+    }
+
+    /**
+     * @return The client if the receiver application is running and reachable, otherwise null
+     */
+    public C getConnectedClient() {
+        Snapshot<C> snapshot = mSnapshot.get();
+        return snapshot.state == State.CONNECTED ? snapshot.client : null;
+    }
+
+    /**
+     * Starts connecting through a new client
+     *
+     * @param client
+     * @return false if there already is a client
+     */
+    public boolean begin(C client) {
+        return compareAndSet(mDisconnected, new Snapshot<C>(State.CONNECTING, client));
+    }
+
+    /**
+     * Moves the connection of the given client from one state to another
+     *
+     * @param client
+     * @param from
+     * @param to
+     *            Anything but {@link State#DISCONNECTED}; use {@link #reset()} for that
+     * @return false if the client is no longer current or its connection isn't in the given state
+     */
+    public boolean transition(C client, State from, State to) {
+        if (to == State.DISCONNECTED) {
+            throw new IllegalArgumentException("use reset() to disconnect");
+        }
+        while (true) {
+            Snapshot<C> current = mSnapshot.get();
+            if (current.client != client || current.state != from) {
+                return false;
+            }
+            if (compareAndSet(current, new Snapshot<C>(to, client))) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Drops the current client, whatever state it's in
+     *
+     * @return The state that was left; its client still needs to be disconnected by the caller
+     */
+    public Snapshot<C> reset() {
+        Snapshot<C> previous = mSnapshot.getAndSet(mDisconnected);
+        if (previous != mDisconnected) {
+            notifyListeners(previous, mDisconnected);
+        }
+        return previous;
+    }
+
+    private boolean compareAndSet(Snapshot<C> expected, Snapshot<C> update) {
+        if (mSnapshot.compareAndSet(expected, update)) {
+            notifyListeners(expected, update);
+            return true;
+        }
+        return false;
+    }
+
+    private void notifyListeners(Snapshot<C> from, Snapshot<C> to) {
+        for (Listener<C> listener : mListeners) {
+            listener.onStateChanged(from, to);
+        }
+    }
+
+}
@@ -0,0 +1,56 @@
+package com.pixplicity.castdemo;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Recognizes the receiver's echoes of our own messages by the sequence number and send time they
+ * carry. Remembers the most recent messages only, in a fixed window that is never resized, so
+ * neither sending nor matching allocates. Messages may be sent on one thread and matched on
+ * another.
+ */
+public class EchoMatcher {
+
+    private final AtomicLongArray mSequences;
+    private final AtomicLongArray mSentAt;
+    private final int mMask;
+
+    /**
+     * @param window
+     *            Number of recent messages remembered; a power of two
+     */
+    public EchoMatcher(int window) {
+        if (window <= 0 || (window & (window - 1)) != 0) {
+            throw new IllegalArgumentException("window must be a power of two: " + window);
+        }
+        mSequences = new AtomicLongArray(window);
+        mSentAt = new AtomicLongArray(window);
+        mMask = window - 1;
+    }
+
+    /**
+     * @param sequence
+     *            Sequence number of the message, greater than 0
+     * @param sentAt
+     *            Send time the message carries
+     */
+    public void onSent(long sequence, long sentAt) {
+        int slot = (int) (sequence & mMask);
+        // Send time first: a match that reads the new sequence then also sees the new time
+        mSentAt.set(slot, sentAt);
+        mSequences.set(slot, sequence);
+    }
+
+    /**
+     * @return Whether a received message with the given sequence number and send time is the echo
+     *         of one of the recent messages; other senders use the same sequence numbers, so the
+     *         send time has to match too
+     */
+    public boolean isEcho(long sequence, long sentAt) {
+        if (sequence <= 0) {
+            return false;
+        }
+        int slot = (int) (sequence & mMask);
+        return mSequences.get(slot) == sequence && mSentAt.get(slot) == sentAt;
+    }
+
+}
@@ -0,0 +1,817 @@
+package com.pixplicity.castdemo;
+
+/**
+ * Encoder and decoder for the <code>{code,msg,name,seq,ts}</code> chat envelope. Writes into and parses from
+ * reusable buffers, so apart from the resulting strings nothing is allocated per message.
+ * <p>
+ * Besides the original JSON keys there is a compact format with single-letter keys, in which the
+ * sender is identified by the numeric id the receiver assigned in reply to its hello instead of by
+ * name. The decoder accepts both.
+ * <p>
+ * Instances are not thread-safe: every call writes into and parses from the same buffers. Use one
+ * per thread, the way {@link MainActivity.HelloWorldChannel} encodes on the main thread and decodes
+ * on its decoder thread with separate instances.
+ */
+public class EnvelopeCodec {
+
+    public static final int CODE_HELLO = 1;
+    public static final int CODE_MESSAGE = 2;
+    /** Rendering statistics from the receiver, as text in the message */
+    public static final int CODE_STATS = 3;
+    /**
+     * From a sender, asks for the receiver's history after a history sequence number; from the
+     * receiver, ends the reply with its latest history sequence number
+     */
+    public static final int CODE_SYNC = 4;
+    /** Starts a frame of history the receiver sends in reply to a sync */
+    public static final int CODE_HISTORY = 5;
+    /**
+     * Live line that replaces the sender's previous one until its next message; from the receiver
+     * and without a message, acknowledges that the draft sent at the given time is on screen
+     */
+    public static final int CODE_DRAFT = 6;
+    /**
+     * Edit to the sender's draft line, numbered by the draft's version; from the receiver and
+     * without an edit, asks for the full draft because an edit didn't follow on the version it has
+     */
+    public static final int CODE_DRAFT_EDIT = 7;
+    /** URL of a photo or video for the receiver to show */
+    public static final int CODE_MEDIA = 8;
+    /**
+     * Piece of an envelope that is too long for one Cast message; the pieces of an envelope share
+     * a chunk id and are joined in index order
+     */
+    public static final int CODE_CHUNK = 9;
+
+    /**
+     * Envelopes longer than this are sent as chunks of at most this many characters. With JSON
+     * escaping, a chunk stays well within a frame, see {@link SendQueue#MAX_FRAME_LENGTH}.
+     */
+    public static final int CHUNK_LENGTH = 8000;
+    /** Most chunks an envelope may take */
+    public static final int MAX_CHUNKS = 64;
+    /**
+     * Longest envelope that can be sent; leaves a chunk for what the receiver adds to an envelope
+     * when passing it on
+     */
+    public static final int MAX_ENVELOPE_LENGTH = (MAX_CHUNKS - 1) * CHUNK_LENGTH;
+
+    /** Original format with full key names */
+    public static final int FORMAT_JSON = 0;
+    /** Single-letter keys and a numeric sender id */
+    public static final int FORMAT_COMPACT = 1;
+    private static final int FORMAT_COUNT = 2;
+
+    private static final String KEY_CODE = "code";
+    private static final String KEY_MSG = "msg";
+    private static final String KEY_NAME = "name";
+    private static final String KEY_SEQ = "seq";
+    private static final String KEY_TS = "ts";
+    /** Sender id assigned by the receiver */
+    private static final String KEY_SID = "sid";
+    /** Highest format a hello's sender supports, or the format a hello's reply agrees to */
+    private static final String KEY_FMT = "fmt";
+    /** Position of a message in the receiver's history */
+    private static final String KEY_HSEQ = "hseq";
+    /** Where a draft edit applies, and how many characters it removes there */
+    private static final String KEY_AT = "at";
+    private static final String KEY_DEL = "del";
+    /** Chunk id, index of the chunk, and number of chunks of the envelope */
+    private static final String KEY_CID = "cid";
+    private static final String KEY_IDX = "idx";
+    private static final String KEY_CNT = "cnt";
+
+    private static final String KEY_COMPACT_CODE = "c";
+    private static final String KEY_COMPACT_MSG = "m";
+    private static final String KEY_COMPACT_SID = "s";
+    private static final String KEY_COMPACT_SEQ = "q";
+    private static final String KEY_COMPACT_TS = "t";
+    private static final String KEY_COMPACT_HSEQ = "h";
+    private static final String KEY_COMPACT_AT = "o";
+    private static final String KEY_COMPACT_DEL = "d";
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * Decoded envelope; the same instance is reused for every envelope handed to a
+     * {@link EnvelopeHandler}, so don't keep a reference to it.
+     */
+    public static class Envelope {
+
+        public int code;
+        public String msg;
+        public String name;
+        /** Sender's sequence number, or 0 if absent */
+        public long seq;
+        /** Sender's send time, or 0 if absent */
+        public long ts;
+        /** Sender id assigned by the receiver, or 0 if absent */
+        public int sid;
+        /** Format announced or agreed to in a hello */
+        public int fmt;
+        /** Receiver's history sequence number, or 0 if absent */
+        public long hseq;
+        /** Offset of a draft edit */
+        public int at;
+        /** Number of characters a draft edit removes */
+        public int del;
+        /** Id of the chunked envelope a chunk belongs to */
+        public long cid;
+        /** Index of a chunk */
+        public int idx;
+        /** Number of chunks of the envelope a chunk belongs to */
+        public int cnt;
+        /** Format the envelope was written in */
+        public int format;
+
+        private void reset() {
+            code = 0;
+            msg = null;
+            name = null;
+            seq = 0;
+            ts = 0;
+            sid = 0;
+            fmt = FORMAT_JSON;
+            hseq = 0;
+            at = 0;
+            del = 0;
+            cid = 0;
+            idx = 0;
+            cnt = 0;
+            format = FORMAT_JSON;
+        }
+
+    }
+
+    public static interface EnvelopeHandler {
+
+        public void onEnvelope(Envelope envelope);
+
+    }
+
+    /**
+     * Thrown internally when a frame can't be parsed; never escapes the codec
+     */
+    private static class MalformedFrameException extends Exception {
+
+        private static final long serialVersionUID = 1L;
+
+        public MalformedFrameException(String detail) {
+            super(detail);
+        }
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            // Shared instance used for control flow; a stack trace would be meaningless
+            return this;
+        }
+
+    }
+
+    private static final MalformedFrameException MALFORMED = new MalformedFrameException("malformed frame");
+
+    private final StringBuilder mOut = new StringBuilder(256);
+    private final StringBuilder mScratch = new StringBuilder(256);
+    private final Envelope mEnvelope = new Envelope();
+
+    private char[] mIn = new char[256];
+    private int mLength;
+    private int mPos;
+
+    private long mFramesDecoded;
+    private long mFramesMalformed;
+
+    // Wire cost per format
+    private long mEncodeStart;
+    private final long[] mEnvelopesEncoded = new long[FORMAT_COUNT];
+    private final long[] mBytesEncoded = new long[FORMAT_COUNT];
+    private final long[] mEncodeNanos = new long[FORMAT_COUNT];
+    private final long[] mEnvelopesDecoded = new long[FORMAT_COUNT];
+    private final long[] mDecodeNanos = new long[FORMAT_COUNT];
+    private int mFrameFormat;
+
+    /**
+     * Encodes a single envelope
+     *
+     * @param code
+     * @param msg
+     *            Message text, or null to omit
+     * @param name
+     *            Sender name, or null to omit
+     * @return JSON text of the envelope
+     */
+    public String encode(int code, String msg, String name) {
+        return encode(code, msg, name, 0, 0);
+    }
+
+    /**
+     * Encodes a single envelope that can be matched up with its echo
+     *
+     * @param code
+     * @param msg
+     *            Message text, or null to omit
+     * @param name
+     *            Sender name, or null to omit
+     * @param seq
+     *            Sequence number, or 0 to omit
+     * @param ts
+     *            Send time, or 0 to omit
+     * @return JSON text of the envelope
+     */
+    public String encode(int code, String msg, String name, long seq, long ts) {
+        StringBuilder out = beginEncode();
+        out.append("{\"").append(KEY_CODE).append("\":").append(code);
+        if (msg != null) {
+            out.append(",\"").append(KEY_MSG).append("\":");
+            appendQuoted(out, msg);
+        }
+        if (name != null) {
+            out.append(",\"").append(KEY_NAME).append("\":");
+            appendQuoted(out, name);
+        }
+        if (seq != 0) {
+            out.append(",\"").append(KEY_SEQ).append("\":").append(seq);
+        }
+        if (ts != 0) {
+            out.append(",\"").append(KEY_TS).append("\":").append(ts);
+        }
+        out.append('}');
+        return finishEncode(FORMAT_JSON);
+    }
+
+    /**
+     * Encodes a hello in the original format, so that any receiver understands it
+     *
+     * @param name
+     *            Sender name
+     * @param format
+     *            Highest format the sender supports
+     * @return JSON text of the envelope
+     */
+    public String encodeHello(String name, int format) {
+        StringBuilder out = beginEncode();
+        out.append("{\"").append(KEY_CODE).append("\":").append(CODE_HELLO);
+        if (name != null) {
+            out.append(",\"").append(KEY_NAME).append("\":");
+            appendQuoted(out, name);
+        }
+        out.append(",\"").append(KEY_FMT).append("\":").append(format);
+        out.append('}');
+        return finishEncode(FORMAT_JSON);
+    }
+
+    /**
+     * Encodes a request for the receiver's history, in the original format
+     *
+     * @param hseq
+     *            Last history sequence number the sender has, or 0 for all of it
+     * @param epoch
+     *            Start time of the receiver the sequence number belongs to, or 0 if unknown
+     * @return JSON text of the envelope
+     */
+    public String encodeSync(long hseq, long epoch) {
+        StringBuilder out = beginEncode();
+        out.append("{\"").append(KEY_CODE).append("\":").append(CODE_SYNC);
+        out.append(",\"").append(KEY_HSEQ).append("\":").append(hseq);
+        if (epoch != 0) {
+            out.append(",\"").append(KEY_TS).append("\":").append(epoch);
+        }
+        out.append('}');
+        return finishEncode(FORMAT_JSON);
+    }
+
+    /**
+     * Encodes an edit to the sender's draft line
+     *
+     * @param at
+     *            Offset of the edit in the draft
+     * @param del
+     *            Number of characters removed at the offset
+     * @param insert
+     *            Text inserted at the offset
+     * @param name
+     *            Sender name
+     * @param version
+     *            Version of the draft after the edit
+     * @param ts
+     *            Time of the change, or 0 to omit
+     * @return JSON text of the envelope
+     */
+    public String encodeDraftEdit(int at, int del, String insert, String name, long version, long ts) {
+        StringBuilder out = beginEncode();
+        out.append("{\"").append(KEY_CODE).append("\":").append(CODE_DRAFT_EDIT);
+        out.append(",\"").append(KEY_MSG).append("\":");
+        appendQuoted(out, insert);
+        out.append(",\"").append(KEY_NAME).append("\":");
+        appendQuoted(out, name);
+        out.append(",\"").append(KEY_SEQ).append("\":").append(version);
+        out.append(",\"").append(KEY_AT).append("\":").append(at);
+        out.append(",\"").append(KEY_DEL).append("\":").append(del);
+        if (ts != 0) {
+            out.append(",\"").append(KEY_TS).append("\":").append(ts);
+        }
+        out.append('}');
+        return finishEncode(FORMAT_JSON);
+    }
+
+    /**
+     * Encodes an edit to the sender's draft line in the compact format
+     *
+     * @see #encodeDraftEdit(int, int, String, String, long, long)
+     */
+    public String encodeCompactDraftEdit(int at, int del, String insert, int sid, long version, long ts) {
+        StringBuilder out = beginEncode();
+        out.append("{\"").append(KEY_COMPACT_CODE).append("\":").append(CODE_DRAFT_EDIT);
+        out.append(",\"").append(KEY_COMPACT_MSG).append("\":");
+        appendQuoted(out, insert);
+        out.append(",\"").append(KEY_COMPACT_SID).append("\":").append(sid);
+        out.append(",\"").append(KEY_COMPACT_SEQ).append("\":").append(version);
+        out.append(",\"").append(KEY_COMPACT_AT).append("\":").append(at);
+        out.append(",\"").append(KEY_COMPACT_DEL).append("\":").append(del);
+        if (ts != 0) {
+            out.append(",\"").append(KEY_COMPACT_TS).append("\":").append(ts);
+        }
+        out.append('}');
+        return finishEncode(FORMAT_COMPACT);
+    }
+
+    /**
+     * Encodes a single envelope in the compact format
+     *
+     * @param code
+     * @param msg
+     *            Message text, or null to omit
+     * @param sid
+     *            Sender id the receiver assigned
+     * @param seq
+     *            Sequence number, or 0 to omit
+     * @param ts
+     *            Send time, or 0 to omit
+     * @return JSON text of the envelope
+     */
+    public String encodeCompact(int code, String msg, int sid, long seq, long ts) {
+        StringBuilder out = beginEncode();
+        out.append("{\"").append(KEY_COMPACT_CODE).append("\":").append(code);
+        if (msg != null) {
+            out.append(",\"").append(KEY_COMPACT_MSG).append("\":");
+            appendQuoted(out, msg);
+        }
+        out.append(",\"").append(KEY_COMPACT_SID).append("\":").append(sid);
+        if (seq != 0) {
+            out.append(",\"").append(KEY_COMPACT_SEQ).append("\":").append(seq);
+        }
+        if (ts != 0) {
+            out.append(",\"").append(KEY_COMPACT_TS).append("\":").append(ts);
+        }
+        out.append('}');
+        return finishEncode(FORMAT_COMPACT);
+    }
+
+    /**
+     * Splits an envelope into chunks of at most {@link #CHUNK_LENGTH} characters, without
+     * splitting surrogate pairs. Chunks are always in the original format.
+     *
+     * @param envelope
+     *            JSON text of the envelope
+     * @param cid
+     *            Chunk id, unique among the sender's envelopes
+     * @return JSON text of the chunk envelopes, or null if the envelope is longer than
+     *         {@link #MAX_ENVELOPE_LENGTH}
+     */
+    public String[] encodeChunks(String envelope, long cid) {
+        int length = envelope.length();
+        if (length > MAX_ENVELOPE_LENGTH) {
+            return null;
+        }
+        int[] ends = new int[MAX_CHUNKS];
+        int count = 0;
+        for (int start = 0; start < length; start = ends[count++]) {
+            int end = Math.min(length, start + CHUNK_LENGTH);
+            if (end < length && Character.isHighSurrogate(envelope.charAt(end - 1))) {
+                end--;
+            }
+            ends[count] = end;
+        }
+        String[] chunks = new String[count];
+        for (int i = 0; i < count; i++) {
+            StringBuilder out = beginEncode();
+            out.append("{\"").append(KEY_CODE).append("\":").append(CODE_CHUNK);
+            out.append(",\"").append(KEY_CID).append("\":").append(cid);
+            out.append(",\"").append(KEY_IDX).append("\":").append(i);
+            out.append(",\"").append(KEY_CNT).append("\":").append(count);
+            out.append(",\"").append(KEY_MSG).append("\":");
+            appendQuoted(out, envelope.substring(i == 0 ? 0 : ends[i - 1], ends[i]));
+            out.append('}');
+            chunks[i] = finishEncode(FORMAT_JSON);
+        }
+        return chunks;
+    }
+
+    private StringBuilder beginEncode() {
+        mEncodeStart = System.nanoTime();
+        mOut.setLength(0);
+        return mOut;
+    }
+
+    private String finishEncode(int format) {
+        String envelope = mOut.toString();
+        mEnvelopesEncoded[format]++;
+        mBytesEncoded[format] += utf8Length(mOut);
+        mEncodeNanos[format] += System.nanoTime() - mEncodeStart;
+        return envelope;
+    }
+
+    private static int utf8Length(CharSequence text) {
+        int length = 0;
+        for (int i = 0, n = text.length(); i < n; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800 || (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE)) {
+                // A surrogate pair encodes to four bytes
+                length += 2;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private static void appendQuoted(StringBuilder out, String value) {
+        out.append('"');
+        for (int i = 0, n = value.length(); i < n; i++) {
+            char c = value.charAt(i);
+            switch (c) {
+            case '"':
+                out.append("\\\"");
+                break;
+            case '\\':
+                out.append("\\\\");
+                break;
+            case '\n':
+                out.append("\\n");
+                break;
+            case '\r':
+                out.append("\\r");
+                break;
+            case '\t':
+                out.append("\\t");
+                break;
+            case '\u2028':
+            case '\u2029':
+                // Valid JSON, but not valid inside a JavaScript string literal
+                out.append("\\u").append(HEX[(c >> 12) & 0xf]).append(HEX[(c >> 8) & 0xf])
+                        .append(HEX[(c >> 4) & 0xf]).append(HEX[c & 0xf]);
+                break;
+            default:
+                if (c < 0x20) {
+                    out.append("\\u00").append(HEX[(c >> 4) & 0xf]).append(HEX[c & 0xf]);
+                } else {
+                    out.append(c);
+                }
+            }
+        }
+        out.append('"');
+    }
+
+    /**
+     * Decodes a frame holding either a single envelope or an array of envelopes. Envelopes are
+     * handed to the handler as they are parsed; a malformed frame is counted and the remainder of
+     * it is dropped.
+     *
+     * @param frame
+     * @param handler
+     * @return false if the frame was malformed
+     */
+    public boolean decode(String frame, EnvelopeHandler handler) {
+        long start = System.nanoTime();
+        mFrameFormat = FORMAT_JSON;
+        mLength = frame.length();
+        if (mIn.length < mLength) {
+            mIn = new char[Math.max(mLength, mIn.length * 2)];
+        }
+        frame.getChars(0, mLength, mIn, 0);
+        mPos = 0;
+        try {
+            skipWhitespace();
+            if (peek() == '[') {
+                mPos++;
+                skipWhitespace();
+                if (peek() == ']') {
+                    mPos++;
+                } else {
+                    while (true) {
+                        parseEnvelope(handler);
+                        skipWhitespace();
+                        char c = next();
+                        if (c == ']') {
+                            break;
+                        } else if (c != ',') {
+                            throw MALFORMED;
+                        }
+                        skipWhitespace();
+                    }
+                }
+            } else {
+                parseEnvelope(handler);
+            }
+            skipWhitespace();
+            if (mPos != mLength) {
+                throw MALFORMED;
+            }
+            mFramesDecoded++;
+            // Attributed to the format of the frame's last envelope; senders don't mix formats
+            mDecodeNanos[mFrameFormat] += System.nanoTime() - start;
+            return true;
+        } catch (MalformedFrameException e) {
+            mFramesMalformed++;
+            return false;
+        }
+    }
+
+    private void parseEnvelope(EnvelopeHandler handler) throws MalformedFrameException {
+        Envelope envelope = mEnvelope;
+        envelope.reset();
+        expect('{');
+        skipWhitespace();
+        if (peek() == '}') {
+            mPos++;
+        } else {
+            while (true) {
+                expect('"');
+                int keyStart = mPos;
+                skipString();
+                int keyLength = mPos - 1 - keyStart;
+                skipWhitespace();
+                expect(':');
+                skipWhitespace();
+                if (keyLength == 1) {
+                    envelope.format = FORMAT_COMPACT;
+                }
+                if (keyMatches(keyStart, keyLength, KEY_CODE)
+                        || keyMatches(keyStart, keyLength, KEY_COMPACT_CODE)) {
+                    envelope.code = parseInt();
+                } else if (keyMatches(keyStart, keyLength, KEY_MSG)
+                        || keyMatches(keyStart, keyLength, KEY_COMPACT_MSG)) {
+                    envelope.msg = parseStringOrNull();
+                } else if (keyMatches(keyStart, keyLength, KEY_NAME)) {
+                    envelope.name = parseStringOrNull();
+                } else if (keyMatches(keyStart, keyLength, KEY_SEQ)
+                        || keyMatches(keyStart, keyLength, KEY_COMPACT_SEQ)) {
+                    envelope.seq = parseLong();
+                } else if (keyMatches(keyStart, keyLength, KEY_TS)
+                        || keyMatches(keyStart, keyLength, KEY_COMPACT_TS)) {
+                    envelope.ts = parseLong();
+                } else if (keyMatches(keyStart, keyLength, KEY_SID)
+                        || keyMatches(keyStart, keyLength, KEY_COMPACT_SID)) {
+                    envelope.sid = parseInt();
+                } else if (keyMatches(keyStart, keyLength, KEY_FMT)) {
+                    envelope.fmt = parseInt();
+                } else if (keyMatches(keyStart, keyLength, KEY_HSEQ)
+                        || keyMatches(keyStart, keyLength, KEY_COMPACT_HSEQ)) {
+                    envelope.hseq = parseLong();
+                } else if (keyMatches(keyStart, keyLength, KEY_AT)
+                        || keyMatches(keyStart, keyLength, KEY_COMPACT_AT)) {
+                    envelope.at = parseInt();
+                } else if (keyMatches(keyStart, keyLength, KEY_DEL)
+                        || keyMatches(keyStart, keyLength, KEY_COMPACT_DEL)) {
+                    envelope.del = parseInt();
+                } else if (keyMatches(keyStart, keyLength, KEY_CID)) {
+                    envelope.cid = parseLong();
+                } else if (keyMatches(keyStart, keyLength, KEY_IDX)) {
+                    envelope.idx = parseInt();
+                } else if (keyMatches(keyStart, keyLength, KEY_CNT)) {
+                    envelope.cnt = parseInt();
+                } else {
+                    skipValue();
+                }
+                skipWhitespace();
+                char c = next();
+                if (c == '}') {
+                    break;
+                } else if (c != ',') {
+                    throw MALFORMED;
+                }
+                skipWhitespace();
+            }
+        }
+        mEnvelopesDecoded[envelope.format]++;
+        mFrameFormat = envelope.format;
+        handler.onEnvelope(envelope);
+    }
+
+    private boolean keyMatches(int start, int length, String key) {
+        if (length != key.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (mIn[start + i] != key.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int parseInt() throws MalformedFrameException {
+        return (int) parseLong();
+    }
+
+    private long parseLong() throws MalformedFrameException {
+        boolean negative = false;
+        if (peek() == '-') {
+            negative = true;
+            mPos++;
+        }
+        int start = mPos;
+        long value = 0;
+        while (mPos < mLength && mIn[mPos] >= '0' && mIn[mPos] <= '9') {
+            value = value * 10 + (mIn[mPos++] - '0');
+        }
+        if (mPos == start) {
+            throw MALFORMED;
+        }
+        return negative ? -value : value;
+    }
+
+    private String parseStringOrNull() throws MalformedFrameException {
+        if (peek() == 'n') {
+            skipLiteral("null");
+            return null;
+        }
+        expect('"');
+        int start = mPos;
+        // Fast path: no escapes, copy straight out of the input buffer
+        while (mPos < mLength) {
+            char c = mIn[mPos];
+            if (c == '"') {
+                return new String(mIn, start, mPos++ - start);
+            } else if (c == '\\') {
+                break;
+            }
+            mPos++;
+        }
+        StringBuilder scratch = mScratch;
+        scratch.setLength(0);
+        scratch.append(mIn, start, mPos - start);
+        while (true) {
+            char c = next();
+            if (c == '"') {
+                return scratch.toString();
+            } else if (c != '\\') {
+                scratch.append(c);
+                continue;
+            }
+            c = next();
+            switch (c) {
+            case 'n':
+                scratch.append('\n');
+                break;
+            case 'r':
+                scratch.append('\r');
+                break;
+            case 't':
+                scratch.append('\t');
+                break;
+            case 'b':
+                scratch.append('\b');
+                break;
+            case 'f':
+                scratch.append('\f');
+                break;
+            case 'u':
+                if (mPos + 4 > mLength) {
+                    throw MALFORMED;
+                }
+                int code = 0;
+                for (int i = 0; i < 4; i++) {
+                    int digit = Character.digit(mIn[mPos++], 16);
+                    if (digit < 0) {
+                        throw MALFORMED;
+                    }
+                    code = (code << 4) | digit;
+                }
+                scratch.append((char) code);
+                break;
+            default:
+                // Covers \" \\ and \/
+                scratch.append(c);
+            }
+        }
+    }
+
+    private void skipString() throws MalformedFrameException {
+        while (true) {
+            char c = next();
+            if (c == '"') {
+                return;
+            } else if (c == '\\') {
+                next();
+            }
+        }
+    }
+
+    private void skipValue() throws MalformedFrameException {
+        char c = peek();
+        if (c == '"') {
+            mPos++;
+            skipString();
+        } else if (c == '{' || c == '[') {
+            // Skip a nested structure by tracking depth; strings may contain brackets
+            int depth = 0;
+            do {
+                c = next();
+                if (c == '"') {
+                    skipString();
+                } else if (c == '{' || c == '[') {
+                    depth++;
+                } else if (c == '}' || c == ']') {
+                    depth--;
+                }
+            } while (depth > 0);
+        } else if (c == 't') {
+            skipLiteral("true");
+        } else if (c == 'f') {
+            skipLiteral("false");
+        } else if (c == 'n') {
+            skipLiteral("null");
+        } else {
+            int start = mPos;
+            while (mPos < mLength && "+-.eE0123456789".indexOf(mIn[mPos]) >= 0) {
+                mPos++;
+            }
+            if (mPos == start) {
+                throw MALFORMED;
+            }
+        }
+    }
+
+    private void skipLiteral(String literal) throws MalformedFrameException {
+        if (!keyMatches(mPos, Math.min(literal.length(), mLength - mPos), literal)) {
+            throw MALFORMED;
+        }
+        mPos += literal.length();
+    }
+
+    private void skipWhitespace() {
+        while (mPos < mLength) {
+            char c = mIn[mPos];
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+                return;
+            }
+            mPos++;
+        }
+    }
+
+    private void expect(char expected) throws MalformedFrameException {
+        if (next() != expected) {
+            throw MALFORMED;
+        }
+    }
+
+    private char peek() throws MalformedFrameException {
+        if (mPos >= mLength) {
+            throw MALFORMED;
+        }
+        return mIn[mPos];
+    }
+
+    private char next() throws MalformedFrameException {
+        if (mPos >= mLength) {
+            throw MALFORMED;
+        }
+        return mIn[mPos++];
+    }
+
+    public long getFramesDecoded() {
+        return mFramesDecoded;
+    }
+
+    public long getFramesMalformed() {
+        return mFramesMalformed;
+    }
+
+    /**
+     * @return Envelopes, bytes per envelope and time per envelope for each format
+     */
+    public String getStatsSummary() {
+        StringBuilder summary = new StringBuilder();
+        for (int format = 0; format < FORMAT_COUNT; format++) {
+            long encoded = mEnvelopesEncoded[format];
+            long decoded = mEnvelopesDecoded[format];
+            if (encoded == 0 && decoded == 0) {
+                continue;
+            }
+            if (summary.length() > 0) {
+                summary.append("; ");
+            }
+            summary.append(format == FORMAT_COMPACT ? "compact" : "json")
+                    .append(": encoded=").append(encoded)
+                    .append(", bytesPerEnvelope=").append(encoded == 0 ? 0 : (float) mBytesEncoded[format] / encoded)
+                    .append(", encodeNs=").append(encoded == 0 ? 0 : mEncodeNanos[format] / encoded)
+                    .append(", decoded=").append(decoded)
+                    .append(", decodeNs=").append(decoded == 0 ? 0 : mDecodeNanos[format] / decoded);
+        }
+        return summary.toString();
+    }
+
+}
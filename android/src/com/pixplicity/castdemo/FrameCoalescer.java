@@ -0,0 +1,113 @@
+package com.pixplicity.castdemo;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+/**
+ * Runs a publisher on the main thread at most once per display frame, no matter how often
+ * {@link #schedule()} is called in between. Keeps count of how many items each publish covered.
+ */
+public class FrameCoalescer {
+
+    /**
+     * Fallback frame interval for devices without {@link Choreographer}
+     */
+    private static final long FRAME_INTERVAL_MS = 16;
+
+    public static interface Publisher {
+
+        /**
+         * Called on the main thread to publish whatever was staged since the previous frame
+         *
+         * @return Number of items published
+         */
+        public int publish();
+
+    }
+
+    private final Publisher mPublisher;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final AtomicBoolean mScheduled = new AtomicBoolean();
+
+    private final Runnable mPublishRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+            publish();
+        }
+    };
+    private final Runnable mPostFrameCallbackRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+            postFrameCallback();
+        }
+    };
+    private Object mFrameCallback;
+
+    private long mPublishCount;
+    private long mItemCount;
+
+    public FrameCoalescer(Publisher publisher) {
+        mPublisher = publisher;
+    }
+
+    /**
+     * Requests a publish on the next frame; can be called from any thread
+     */
+    public void schedule() {
+        if (!mScheduled.compareAndSet(false, true)) {
+            // Already pending for the upcoming frame
+            return;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            // Choreographer is bound to the looper of the calling thread
+            mMainHandler.post(mPostFrameCallbackRunnable);
+        } else {
+            mMainHandler.postDelayed(mPublishRunnable, FRAME_INTERVAL_MS);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void postFrameCallback() {
+        if (mFrameCallback == null) {
+            mFrameCallback = new Choreographer.FrameCallback() {
+
+                @Override
+                public void doFrame(long frameTimeNanos) {
+                    publish();
+                }
+            };
+        }
+        Choreographer.getInstance().postFrameCallback((Choreographer.FrameCallback) mFrameCallback);
+    }
+
+    private void publish() {
+        // Clear the flag first, so anything staged during the publish schedules the next frame
+        mScheduled.set(false);
+        int count = mPublisher.publish();
+        if (count > 0) {
+            mPublishCount++;
+            mItemCount += count;
+        }
+    }
+
+    /**
+     * @return Average number of items per publish; only read this on the main thread
+     */
+    public float getItemsPerPublish() {
+        return mPublishCount == 0 ? 0 : (float) mItemCount / mPublishCount;
+    }
+
+    public String getStatsSummary() {
+        return "publishes=" + mPublishCount
+                + ", items=" + mItemCount
+                + ", itemsPerPublish=" + getItemsPerPublish();
+    }
+
+}
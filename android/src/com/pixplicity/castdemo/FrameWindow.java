@@ -0,0 +1,326 @@
+package com.pixplicity.castdemo;
+
+import java.util.ArrayDeque;
+
+/**
+ * Flow control of one namespace's frames to one receiver, so that a slow receiver only holds up
+ * its own frames. Frames are sent within a window of unacknowledged frames, which grows by one
+ * frame per window of successful acknowledgements and halves on a failure. Every frame has a
+ * sequence number its acknowledgement refers to; acknowledgements of frames that aren't in flight
+ * anymore, because they were written off or the window was cleared since, are ignored.
+ * <p>
+ * While the window is full, frames wait and are coalesced into as few frames as fit in
+ * {@link SendQueue#MAX_FRAME_LENGTH}; past {@link #MAX_PENDING_FRAMES}, the oldest waiting frame is
+ * dropped. Frames that aren't acknowledged within {@link #ACK_TIMEOUT_MS} are written off.
+ * <p>
+ * Thread-safe. Frames are handed to the sink with the lock held, so that they go out in order;
+ * the sink must not block.
+ */
+public class FrameWindow {
+
+    public static interface Sink {
+
+        /**
+         * Sends a frame without waiting for the result; called with the window's lock held
+         *
+         * @param frame
+         *            Either a single envelope or a JSON array of envelopes
+         * @param sequence
+         *            To pass to {@link FrameWindow#onAcknowledged(long, boolean)} exactly once, from
+         *            any thread, if this method returns true
+         * @return false if the frame couldn't be sent at all
+         */
+        public boolean send(String frame, long sequence);
+
+        /**
+         * Called when the window has room again after it was full; never with the lock held
+         */
+        public void onCreditAvailable();
+
+    }
+
+    public static final int MIN_WINDOW = 1;
+    public static final int MAX_WINDOW = 32;
+    static final int INITIAL_WINDOW = 4;
+    // Acknowledgements that don't arrive within this time are written off as failures
+    static final long ACK_TIMEOUT_MS = 5000;
+    // Frames that wait for room; coalesced, so each holds up to SendQueue.MAX_FRAME_LENGTH
+    static final int MAX_PENDING_FRAMES = 8;
+
+    private final Timer mTimer;
+    private final Sink mSink;
+
+    private float mWindow = INITIAL_WINDOW;
+    // Sequence numbers and send times of the frames in flight, 0 for free slots
+    private final long[] mFramesInFlight = new long[MAX_WINDOW];
+    private final long[] mSentAt = new long[MAX_WINDOW];
+    private int mInFlight;
+    private long mLastSequence;
+    private boolean mTimeoutScheduled;
+    // Frames waiting for room, oldest first, and the number of envelopes in each
+    private final ArrayDeque<String> mPending = new ArrayDeque<String>();
+    private final ArrayDeque<Integer> mPendingCounts = new ArrayDeque<Integer>();
+
+    private long mAcks;
+    private long mNacks;
+    private long mAckTimeouts;
+    private long mStaleAcks;
+    private long mWindowStalls;
+    private long mCoalesced;
+    private long mEnvelopesDropped;
+
+    // Only used while holding the lock
+    private final StringBuilder mFrameBuilder = new StringBuilder(1024);
+
+    private final Runnable mTimeoutRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+            synchronized (FrameWindow.this) {
+                mTimeoutScheduled = false;
+                long now = mTimer.now();
+                int writtenOff = 0;
+                for (int i = 0; i < mFramesInFlight.length; i++) {
+                    if (mFramesInFlight[i] != 0 && now - mSentAt[i] >= ACK_TIMEOUT_MS) {
+                        // Its acknowledgement is ignored if it still comes
+                        mFramesInFlight[i] = 0;
+                        mInFlight--;
+                        writtenOff++;
+                    }
+                }
+                if (writtenOff > 0) {
+                    mAckTimeouts += writtenOff;
+                    mWindow = MIN_WINDOW;
+                }
+                scheduleTimeout();
+            }
+            flush();
+        }
+    };
+
+    /**
+     * @param timer
+     *            Times out acknowledgements
+     * @param sink
+     *            Performs the actual send
+     */
+    public FrameWindow(Timer timer, Sink sink) {
+        mTimer = timer;
+        mSink = sink;
+    }
+
+    /**
+     * @return Whether a frame offered now would be sent right away
+     */
+    public synchronized boolean hasCredit() {
+        return mPending.isEmpty() && mInFlight < (int) mWindow;
+    }
+
+    /**
+     * Sends a frame if the window has room for it; otherwise it waits, coalesced with the frames
+     * that are waiting already
+     *
+     * @param frame
+     *            Either a single envelope or a JSON array of envelopes
+     * @param envelopeCount
+     *            Number of envelopes in the frame
+     * @return false if the frame was to be sent but couldn't be
+     */
+    public synchronized boolean offer(String frame, int envelopeCount) {
+        if (!hasCredit()) {
+            mWindowStalls++;
+            enqueue(frame, envelopeCount);
+            return true;
+        }
+        return send(frame);
+    }
+
+    /**
+     * Acknowledges a frame that was sent, and sends waiting frames the window now has room for
+     *
+     * @param sequence
+     *            Sequence number the frame was sent with
+     * @param success
+     *            Whether the frame was delivered
+     */
+    public void onAcknowledged(long sequence, boolean success) {
+        synchronized (this) {
+            if (!removeFrameInFlight(sequence)) {
+                // Written off, or sent before the window was cleared
+                mStaleAcks++;
+                return;
+            }
+            if (success) {
+                mAcks++;
+                // Additive increase: one frame per window's worth of acknowledgements
+                mWindow = Math.min(MAX_WINDOW, mWindow + 1 / mWindow);
+            } else {
+                mNacks++;
+                // Multiplicative decrease
+                mWindow = Math.max(MIN_WINDOW, mWindow / 2);
+            }
+        }
+        flush();
+    }
+
+    /**
+     * Sends waiting frames while there's room, then reports credit if there's room left
+     */
+    private void flush() {
+        boolean credit;
+        synchronized (this) {
+            while (!mPending.isEmpty() && mInFlight < (int) mWindow) {
+                mPendingCounts.poll();
+                send(mPending.poll());
+            }
+            credit = hasCredit();
+        }
+        if (credit) {
+            mSink.onCreditAvailable();
+        }
+    }
+
+    /**
+     * Sends a frame in a slot of the window; called with the lock held
+     */
+    private boolean send(String frame) {
+        long sequence = addFrameInFlight();
+        boolean sent = false;
+        try {
+            sent = mSink.send(frame, sequence);
+        } finally {
+            if (!sent) {
+                // Nothing will be acknowledged
+                removeFrameInFlight(sequence);
+            }
+        }
+        return sent;
+    }
+
+    /**
+     * Adds a frame to the waiting ones, merged into the newest if both fit in one frame
+     */
+    private void enqueue(String frame, int envelopeCount) {
+        String last = mPending.peekLast();
+        // The separator, and brackets if neither is an array yet
+        if (last != null && last.length() + 1 + frame.length() + 2 <= SendQueue.MAX_FRAME_LENGTH) {
+            mFrameBuilder.setLength(0);
+            mFrameBuilder.append('[');
+            appendEnvelopes(mFrameBuilder, last);
+            mFrameBuilder.append(',');
+            appendEnvelopes(mFrameBuilder, frame);
+            mFrameBuilder.append(']');
+            mPending.pollLast();
+            mPending.addLast(mFrameBuilder.toString());
+            mPendingCounts.addLast(mPendingCounts.pollLast() + envelopeCount);
+            mCoalesced++;
+            return;
+        }
+        if (mPending.size() == MAX_PENDING_FRAMES) {
+            mPending.poll();
+            mEnvelopesDropped += mPendingCounts.poll();
+        }
+        mPending.addLast(frame);
+        mPendingCounts.addLast(envelopeCount);
+    }
+
+    /**
+     * Appends the envelopes of a frame, without the brackets if it's an array
+     */
+    private static void appendEnvelopes(StringBuilder builder, String frame) {
+        if (frame.charAt(0) == '[') {
+            builder.append(frame, 1, frame.length() - 1);
+        } else {
+            builder.append(frame);
+        }
+    }
+
+    private long addFrameInFlight() {
+        long sequence = ++mLastSequence;
+        for (int i = 0; i < mFramesInFlight.length; i++) {
+            if (mFramesInFlight[i] == 0) {
+                mFramesInFlight[i] = sequence;
+                mSentAt[i] = mTimer.now();
+                mInFlight++;
+                break;
+            }
+        }
+        scheduleTimeout();
+        return sequence;
+    }
+
+    /**
+     * @return false if the frame wasn't in flight
+     */
+    private boolean removeFrameInFlight(long sequence) {
+        for (int i = 0; i < mFramesInFlight.length; i++) {
+            if (mFramesInFlight[i] == sequence) {
+                mFramesInFlight[i] = 0;
+                mInFlight--;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Schedules the timeout check for the oldest frame in flight, if it isn't scheduled yet
+     */
+    private void scheduleTimeout() {
+        if (mTimeoutScheduled || mInFlight == 0) {
+            return;
+        }
+        long oldest = Long.MAX_VALUE;
+        for (int i = 0; i < mFramesInFlight.length; i++) {
+            if (mFramesInFlight[i] != 0) {
+                oldest = Math.min(oldest, mSentAt[i]);
+            }
+        }
+        mTimeoutScheduled = true;
+        mTimer.schedule(mTimeoutRunnable, Math.max(0, oldest + ACK_TIMEOUT_MS - mTimer.now()));
+    }
+
+    /**
+     * Forgets the frames in flight and the waiting ones, and starts over with the initial window,
+     * e.g. because the connection was lost
+     */
+    public synchronized void clear() {
+        for (int i = 0; i < mFramesInFlight.length; i++) {
+            mFramesInFlight[i] = 0;
+        }
+        mInFlight = 0;
+        for (Integer count : mPendingCounts) {
+            mEnvelopesDropped += count;
+        }
+        mPending.clear();
+        mPendingCounts.clear();
+        mWindow = INITIAL_WINDOW;
+        mTimer.cancel(mTimeoutRunnable);
+        mTimeoutScheduled = false;
+    }
+
+    /**
+     * @return Current number of frames that may be unacknowledged at once
+     */
+    public synchronized int getWindowSize() {
+        return (int) mWindow;
+    }
+
+    public synchronized int getPendingFrames() {
+        return mPending.size();
+    }
+
+    public synchronized String getStatsSummary() {
+        return "window=" + (int) mWindow
+                + ", inFlight=" + mInFlight
+                + ", pending=" + mPending.size()
+                + ", acks=" + mAcks
+                + ", nacks=" + mNacks
+                + ", ackTimeouts=" + mAckTimeouts
+                + ", staleAcks=" + mStaleAcks
+                + ", windowStalls=" + mWindowStalls
+                + ", coalesced=" + mCoalesced
+                + ", dropped=" + mEnvelopesDropped;
+    }
+
+}
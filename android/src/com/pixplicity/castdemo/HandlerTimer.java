@@ -0,0 +1,29 @@
+package com.pixplicity.castdemo;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+/**
+ * Timer that runs tasks on the main thread, on {@link SystemClock#elapsedRealtime()}
+ */
+public class HandlerTimer implements Timer {
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    @Override
+    public long now() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    @Override
+    public void schedule(Runnable task, long delayMillis) {
+        mHandler.postDelayed(task, delayMillis);
+    }
+
+    @Override
+    public void cancel(Runnable task) {
+        mHandler.removeCallbacks(task);
+    }
+
+}
@@ -0,0 +1,497 @@
+package com.pixplicity.castdemo;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.media.ExifInterface;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.provider.MediaStore;
+import android.provider.OpenableColumns;
+import android.util.Log;
+import android.util.LruCache;
+
+/**
+ * Makes renditions of images that fit the receiver's screen, so that a 12 MP photo goes out as a
+ * JPEG of a few hundred KB that the receiver decodes quickly. Images are downsampled while
+ * decoding, turned upright as their EXIF orientation says, scaled to fit and re-encoded on a small
+ * pool of threads.
+ * <p>
+ * Renditions are kept in a size-bounded disk cache, keyed by source, its size and modification
+ * time, and target size, so that an edited image gets a new rendition. The least recently used
+ * entries are indexed in memory. The memory level holds the rendition's file rather than its bytes:
+ * the {@link MediaServer} streams from files, and recently served ones are in the page cache
+ * already.
+ */
+public class ImagePipeline {
+
+    private static final String TAG = ImagePipeline.class.getSimpleName();
+
+    /**
+     * Size of the receiver's screen
+     */
+    public static final int DEFAULT_MAX_WIDTH = 1920;
+    public static final int DEFAULT_MAX_HEIGHT = 1080;
+
+    private static final int WORKERS = 2;
+    private static final int MAX_QUEUED = 8;
+    private static final int MEMORY_ENTRIES = 64;
+    private static final int JPEG_QUALITY = 85;
+    private static final int COPY_BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * Leaves out files that are still being written
+     */
+    private static final FileFilter RENDITIONS = new FileFilter() {
+
+        @Override
+        public boolean accept(File file) {
+            return !file.getName().endsWith(".tmp");
+        }
+    };
+
+    /**
+     * What's known about an image before decoding it
+     */
+    private static class Source {
+
+        final Uri uri;
+        /** Changes when the image does */
+        final String version;
+        /** Clockwise rotation that makes the image upright, or -1 if it has to be read from EXIF */
+        final int rotation;
+
+        Source(Uri uri, String version, int rotation) {
+            this.uri = uri;
+            this.version = version;
+            this.rotation = rotation;
+        }
+
+    }
+
+    public static interface Callback {
+
+        /**
+         * Called on the thread that made the request
+         *
+         * @param rendition
+         *            JPEG that fits the target size, or null if the image couldn't be read
+         */
+        public void onRendition(File rendition);
+
+    }
+
+    private final ContentResolver mContentResolver;
+    private final File mDirectory;
+    private final long mMaxDiskBytes;
+    private final int mMaxWidth;
+    private final int mMaxHeight;
+    private final LruCache<String, File> mMemoryCache = new LruCache<String, File>(MEMORY_ENTRIES);
+    private final ThreadPoolExecutor mWorkers;
+
+    private long mDiskBytes = -1;
+
+    private final AtomicLong mRequests = new AtomicLong();
+    private final AtomicLong mMemoryHits = new AtomicLong();
+    private final AtomicLong mDiskHits = new AtomicLong();
+    private final AtomicLong mTranscodes = new AtomicLong();
+    private final AtomicLong mTranscodeMillis = new AtomicLong();
+    private final AtomicLong mMaxTranscodeMillis = new AtomicLong();
+    private final AtomicLong mFailures = new AtomicLong();
+    private final AtomicLong mRejected = new AtomicLong();
+    private final AtomicLong mEvictions = new AtomicLong();
+
+    /**
+     * @param contentResolver
+     * @param directory
+     *            Where to keep renditions; created if needed
+     * @param maxDiskBytes
+     *            Size of the disk cache
+     * @param maxWidth
+     * @param maxHeight
+     *            Box that renditions fit in
+     */
+    public ImagePipeline(ContentResolver contentResolver, File directory, long maxDiskBytes, int maxWidth,
+            int maxHeight) {
+        mContentResolver = contentResolver;
+        mDirectory = directory;
+        mMaxDiskBytes = maxDiskBytes;
+        mMaxWidth = maxWidth;
+        mMaxHeight = maxHeight;
+        // Decoding a full-size photo takes tens of MB, so few run at once and few wait
+        mWorkers = new ThreadPoolExecutor(WORKERS, WORKERS, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(MAX_QUEUED));
+        mWorkers.allowCoreThreadTimeOut(true);
+    }
+
+    public void shutdown() {
+        mWorkers.shutdownNow();
+    }
+
+    /**
+     * Looks up or makes a rendition of an image
+     *
+     * @param uri
+     * @param callback
+     */
+    public void request(final Uri uri, final Callback callback) {
+        mRequests.incrementAndGet();
+        final Source source = query(uri);
+        final String key = uri + "#" + source.version + "@" + mMaxWidth + "x" + mMaxHeight;
+        File cached = mMemoryCache.get(key);
+        if (cached != null && cached.exists()) {
+            mMemoryHits.incrementAndGet();
+            touch(cached);
+            callback.onRendition(cached);
+            return;
+        }
+        final Handler handler = new Handler();
+        try {
+            mWorkers.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    final File rendition = load(key, source);
+                    handler.post(new Runnable() {
+
+                        @Override
+                        public void run() {
+                            callback.onRendition(rendition);
+                        }
+                    });
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Too many images at once; dropped " + uri);
+            mRejected.incrementAndGet();
+            callback.onRendition(null);
+        }
+    }
+
+    /**
+     * Looks up the size and modification time of an image, and its orientation if the provider
+     * knows it; a single-row query, cheap enough for the calling thread
+     */
+    private Source query(Uri uri) {
+        if (ContentResolver.SCHEME_FILE.equals(uri.getScheme())) {
+            File file = new File(uri.getPath());
+            return new Source(uri, file.length() + "-" + file.lastModified(), -1);
+        }
+        Cursor cursor = null;
+        try {
+            cursor = mContentResolver.query(uri, null, null, null, null);
+            if (cursor != null && cursor.moveToFirst()) {
+                return new Source(uri, getString(cursor, OpenableColumns.SIZE) + "-"
+                        + getString(cursor, MediaStore.MediaColumns.DATE_MODIFIED),
+                        toRotation(getString(cursor, MediaStore.Images.ImageColumns.ORIENTATION)));
+            }
+        } catch (RuntimeException e) {
+            // E.g. a provider that doesn't let us query; the image may still open
+            Log.w(TAG, "Failed querying " + uri, e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return new Source(uri, "?", -1);
+    }
+
+    private static String getString(Cursor cursor, String column) {
+        int index = cursor.getColumnIndex(column);
+        return index < 0 || cursor.isNull(index) ? "?" : cursor.getString(index);
+    }
+
+    /**
+     * @param degrees
+     *            Orientation column of the media store
+     * @return Rotation in degrees, or -1 if unknown
+     */
+    private static int toRotation(String degrees) {
+        try {
+            int rotation = Integer.parseInt(degrees);
+            return rotation % 90 == 0 ? (rotation % 360 + 360) % 360 : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private File load(String key, Source source) {
+        Uri uri = source.uri;
+        File file = new File(mDirectory, hash(key) + ".jpg");
+        if (file.exists()) {
+            mDiskHits.incrementAndGet();
+            touch(file);
+            mMemoryCache.put(key, file);
+            return file;
+        }
+        long start = SystemClock.elapsedRealtime();
+        try {
+            if (!transcode(source, file)) {
+                mFailures.incrementAndGet();
+                return null;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed transcoding " + uri, e);
+            mFailures.incrementAndGet();
+            return null;
+        }
+        long duration = SystemClock.elapsedRealtime() - start;
+        mTranscodes.incrementAndGet();
+        mTranscodeMillis.addAndGet(duration);
+        long max;
+        while (duration > (max = mMaxTranscodeMillis.get())) {
+            mMaxTranscodeMillis.compareAndSet(max, duration);
+        }
+        mMemoryCache.put(key, file);
+        trim(file.length());
+        Log.d(TAG, "transcoded " + uri + " to " + file.length() + " bytes in " + duration + " ms");
+        return file;
+    }
+
+    /**
+     * Decodes the image at a power-of-two fraction of its size that's still at least the target
+     * size, scales it to fit, turns it upright and writes it as a JPEG
+     *
+     * @return false if the source isn't an image
+     */
+    private boolean transcode(Source source, File file) throws IOException {
+        Uri uri = source.uri;
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        decode(uri, options);
+        int width = options.outWidth;
+        int height = options.outHeight;
+        if (width <= 0 || height <= 0) {
+            return false;
+        }
+        if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+            throw new IOException("can't create " + mDirectory);
+        }
+        int rotation = source.rotation >= 0 ? source.rotation : readRotation(uri);
+        // A sideways image is turned before it's shown, so it fits the box with its sides swapped
+        boolean sideways = rotation == 90 || rotation == 270;
+        int uprightWidth = sideways ? height : width;
+        int uprightHeight = sideways ? width : height;
+        float scale = Math.min(1f, Math.min((float) mMaxWidth / uprightWidth, (float) mMaxHeight / uprightHeight));
+        int targetWidth = Math.max(1, Math.round(width * scale));
+        int targetHeight = Math.max(1, Math.round(height * scale));
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = 1;
+        while (width / (options.inSampleSize * 2) >= targetWidth
+                && height / (options.inSampleSize * 2) >= targetHeight) {
+            options.inSampleSize *= 2;
+        }
+        Bitmap bitmap = decode(uri, options);
+        if (bitmap == null) {
+            return false;
+        }
+        boolean scaled = bitmap.getWidth() > targetWidth || bitmap.getHeight() > targetHeight;
+        if (scaled || rotation != 0) {
+            // Scaled and rotated in one pass, so there's only one more full-size bitmap
+            Matrix matrix = new Matrix();
+            if (scaled) {
+                matrix.setScale((float) targetWidth / bitmap.getWidth(), (float) targetHeight / bitmap.getHeight());
+            }
+            matrix.postRotate(rotation);
+            Bitmap transformed = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix,
+                    true);
+            if (transformed != bitmap) {
+                bitmap.recycle();
+                bitmap = transformed;
+            }
+        }
+        // Written aside and renamed, so that a half-written file is never a hit; concurrent loads
+        // of the same image each write their own
+        File partial;
+        try {
+            partial = File.createTempFile(file.getName(), ".tmp", mDirectory);
+        } catch (IOException e) {
+            bitmap.recycle();
+            throw e;
+        }
+        OutputStream out = new FileOutputStream(partial);
+        boolean written;
+        try {
+            written = bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+        } finally {
+            out.close();
+            bitmap.recycle();
+        }
+        if (!written || !partial.renameTo(file)) {
+            partial.delete();
+            throw new IOException("can't write " + file);
+        }
+        return true;
+    }
+
+    /**
+     * Reads the EXIF orientation of an image. {@link ExifInterface} only reads files, so other
+     * content is copied to one first.
+     *
+     * @return Clockwise rotation in degrees that makes the image upright
+     */
+    private int readRotation(Uri uri) {
+        File copy = null;
+        try {
+            String path;
+            if (ContentResolver.SCHEME_FILE.equals(uri.getScheme())) {
+                path = uri.getPath();
+            } else {
+                copy = File.createTempFile("exif", ".tmp", mDirectory);
+                copy(uri, copy);
+                path = copy.getPath();
+            }
+            int orientation = new ExifInterface(path).getAttributeInt(ExifInterface.TAG_ORIENTATION,
+                    ExifInterface.ORIENTATION_NORMAL);
+            switch (orientation) {
+            case ExifInterface.ORIENTATION_ROTATE_90:
+                return 90;
+            case ExifInterface.ORIENTATION_ROTATE_180:
+                return 180;
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                return 270;
+            default:
+                // Mirrored orientations are left as they are; cameras don't write them
+                return 0;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed reading the orientation of " + uri, e);
+            return 0;
+        } finally {
+            if (copy != null) {
+                copy.delete();
+            }
+        }
+    }
+
+    private void copy(Uri uri, File file) throws IOException {
+        InputStream in = mContentResolver.openInputStream(uri);
+        if (in == null) {
+            throw new IOException("can't open " + uri);
+        }
+        try {
+            OutputStream out = new FileOutputStream(file);
+            try {
+                byte[] buffer = new byte[COPY_BUFFER_SIZE];
+                int read;
+                while ((read = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private Bitmap decode(Uri uri, BitmapFactory.Options options) throws IOException {
+        InputStream in = mContentResolver.openInputStream(uri);
+        if (in == null) {
+            throw new IOException("can't open " + uri);
+        }
+        try {
+            return BitmapFactory.decodeStream(in, null, options);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void touch(File file) {
+        // Marks it as recently used for the disk cache
+        file.setLastModified(System.currentTimeMillis());
+    }
+
+    /**
+     * Removes the least recently used renditions until the cache fits
+     *
+     * @param added
+     *            Size of the rendition that was just written
+     */
+    private synchronized void trim(long added) {
+        File[] files = mDirectory.listFiles(RENDITIONS);
+        if (files == null) {
+            return;
+        }
+        if (mDiskBytes < 0) {
+            mDiskBytes = 0;
+            for (File file : files) {
+                mDiskBytes += file.length();
+            }
+        } else {
+            mDiskBytes += added;
+        }
+        if (mDiskBytes <= mMaxDiskBytes) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        // Keep the newest, even if it's larger than the whole cache
+        for (int i = 0; i < files.length - 1 && mDiskBytes > mMaxDiskBytes; i++) {
+            long length = files[i].length();
+            if (files[i].delete()) {
+                mDiskBytes -= length;
+                mEvictions.incrementAndGet();
+            }
+        }
+    }
+
+    private static String hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes("UTF-8"));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public String getStatsSummary() {
+        long requests = mRequests.get();
+        long hits = mMemoryHits.get() + mDiskHits.get();
+        long transcodes = mTranscodes.get();
+        return "requests=" + requests
+                + ", memoryHits=" + mMemoryHits.get()
+                + ", diskHits=" + mDiskHits.get()
+                + ", hitRate=" + (requests == 0 ? 0 : hits * 100 / requests) + "%"
+                + ", transcodes=" + transcodes
+                + ", avgTranscodeMs=" + (transcodes == 0 ? 0 : mTranscodeMillis.get() / transcodes)
+                + ", maxTranscodeMs=" + mMaxTranscodeMillis.get()
+                + ", failures=" + mFailures.get()
+                + ", rejected=" + mRejected.get()
+                + ", evictions=" + mEvictions.get();
+    }
+
+}
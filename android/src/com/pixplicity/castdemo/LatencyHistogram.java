@@ -0,0 +1,128 @@
+package com.pixplicity.castdemo;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histogram with fixed log-linear buckets: 1 ms wide up to 10 ms, 10 ms wide up to 100 ms,
+ * and so on up to 10 s, plus one overflow bucket. Recording a sample is a few atomic increments and
+ * allocates nothing; percentiles are reported as the upper bound of the bucket they fall in.
+ */
+public class LatencyHistogram {
+
+    private static final int BUCKETS_PER_DECADE = 9;
+    private static final int DECADES = 4;
+    private static final int BUCKET_COUNT = BUCKETS_PER_DECADE * DECADES + 2;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    /**
+     * @param millis
+     *            Latency of one sample; negative values count as 0
+     */
+    public void record(long millis) {
+        if (millis < 0) {
+            millis = 0;
+        }
+        mBuckets.incrementAndGet(bucketOf(millis));
+        mCount.incrementAndGet();
+        mSum.addAndGet(millis);
+        long max;
+        while (millis > (max = mMax.get()) && !mMax.compareAndSet(max, millis)) {
+            // Retry
+        }
+    }
+
+    /**
+     * @return Index of the bucket holding the given latency; bucket 0 holds everything below 1 ms
+     */
+    private static int bucketOf(long millis) {
+        if (millis < 1) {
+            return 0;
+        }
+        long width = 1;
+        int base = 1;
+        for (int decade = 0; decade < DECADES; decade++) {
+            if (millis < width * 10) {
+                // Values [width, 10 * width) map to 9 buckets of the decade's width
+                return base + (int) (millis / width) - 1;
+            }
+            width *= 10;
+            base += BUCKETS_PER_DECADE;
+        }
+        return BUCKET_COUNT - 1;
+    }
+
+    /**
+     * @return Exclusive upper bound of a bucket, or {@link Long#MAX_VALUE} for the overflow bucket
+     */
+    private static long upperBoundOf(int bucket) {
+        if (bucket == BUCKET_COUNT - 1) {
+            return Long.MAX_VALUE;
+        }
+        if (bucket == 0) {
+            return 1;
+        }
+        long width = 1;
+        int index = bucket - 1;
+        while (index >= BUCKETS_PER_DECADE) {
+            index -= BUCKETS_PER_DECADE;
+            width *= 10;
+        }
+        return (index + 2) * width;
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    public long getMax() {
+        return mMax.get();
+    }
+
+    /**
+     * @param percentile
+     *            Between 0 and 100
+     * @return Upper bound of the bucket the percentile falls in, the maximum for the overflow
+     *         bucket, or 0 if nothing was recorded
+     */
+    public long getPercentile(double percentile) {
+        long count = mCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(percentile / 100 * count);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mBuckets.get(i);
+            if (seen >= rank && seen > 0) {
+                long bound = upperBoundOf(i);
+                return Math.min(bound, mMax.get());
+            }
+        }
+        return mMax.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mBuckets.set(i, 0);
+        }
+        mCount.set(0);
+        mSum.set(0);
+        mMax.set(0);
+    }
+
+    public String getStatsSummary() {
+        long count = mCount.get();
+        return "count=" + count
+                + ", avgMs=" + (count == 0 ? 0 : mSum.get() / count)
+                + ", p50Ms=" + getPercentile(50)
+                + ", p90Ms=" + getPercentile(90)
+                + ", p99Ms=" + getPercentile(99)
+                + ", maxMs=" + mMax.get();
+    }
+
+}
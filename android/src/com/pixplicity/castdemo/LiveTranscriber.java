@@ -0,0 +1,166 @@
+package com.pixplicity.castdemo;
+
+import android.os.SystemClock;
+
+/**
+ * Streams partial speech recognition results to the receiver as drafts, which it shows as a single
+ * line that each draft replaces. Partial results come in faster than they can usefully be sent, so
+ * a draft goes out once they pause for {@link #DEBOUNCE_MILLIS}, or after {@link #MAX_DELAY_MILLIS}
+ * of continuous speech. The final result is handed back to be sent as a regular message, which
+ * takes the place of the draft.
+ * <p>
+ * Only used on the main thread.
+ */
+public class LiveTranscriber implements Recognizer.Listener {
+
+    public static final long DEBOUNCE_MILLIS = 150;
+    public static final long MAX_DELAY_MILLIS = 400;
+
+    public static interface Output {
+
+        /**
+         * @param text
+         *            Partial result to show, or an empty string to remove the draft
+         * @param producedAt
+         *            {@link SystemClock#elapsedRealtime()} at which the recognizer produced it
+         * @return false if the draft couldn't be sent
+         */
+        public boolean sendDraft(String text, long producedAt);
+
+        /**
+         * Ends a transcription
+         *
+         * @param text
+         *            Final result, or null if nothing was recognized
+         */
+        public void onFinished(String text);
+
+    }
+
+    private final Recognizer mRecognizer;
+    private final Output mOutput;
+    private final Timer mTimer;
+
+    private boolean mListening;
+    // Latest partial result that wasn't sent yet, and when the first unsent one came in
+    private String mPending;
+    private long mPendingAt;
+    private long mFirstPendingAt;
+    private String mLastSent;
+
+    private long mPartials;
+    private long mDraftsSent;
+
+    private final Runnable mSendDraft = new Runnable() {
+
+        @Override
+        public void run() {
+            sendPending();
+        }
+    };
+
+    public LiveTranscriber(Recognizer recognizer, Output output) {
+        this(recognizer, output, new HandlerTimer());
+    }
+
+    LiveTranscriber(Recognizer recognizer, Output output, Timer timer) {
+        mRecognizer = recognizer;
+        mOutput = output;
+        mTimer = timer;
+    }
+
+    public boolean isListening() {
+        return mListening;
+    }
+
+    public void start() {
+        if (mListening) {
+            return;
+        }
+        mListening = true;
+        mPending = null;
+        mLastSent = null;
+        mRecognizer.start(this);
+    }
+
+    /**
+     * Stops listening; the final result follows through {@link Output#onFinished(String)}
+     */
+    public void stop() {
+        if (mListening) {
+            mRecognizer.stop();
+        }
+    }
+
+    /**
+     * Stops listening and removes the draft, without a final result
+     */
+    public void cancel() {
+        if (mListening) {
+            mRecognizer.cancel();
+            finish(null);
+        }
+    }
+
+    public void destroy() {
+        cancel();
+        mRecognizer.destroy();
+    }
+
+    @Override
+    public void onPartialResult(String text) {
+        mPartials++;
+        if (text.equals(mLastSent) && mPending == null) {
+            return;
+        }
+        long now = mTimer.now();
+        if (mPending == null) {
+            mFirstPendingAt = now;
+        }
+        mPending = text;
+        mPendingAt = now;
+        // Wait for a pause, but not for longer than the maximum delay
+        long sendAt = Math.min(now + DEBOUNCE_MILLIS, mFirstPendingAt + MAX_DELAY_MILLIS);
+        mTimer.cancel(mSendDraft);
+        mTimer.schedule(mSendDraft, Math.max(0, sendAt - now));
+    }
+
+    private void sendPending() {
+        if (mPending == null) {
+            return;
+        }
+        if (mOutput.sendDraft(mPending, mPendingAt)) {
+            mDraftsSent++;
+            mLastSent = mPending;
+        }
+        mPending = null;
+    }
+
+    @Override
+    public void onFinalResult(String text) {
+        finish(text == null || text.length() == 0 ? null : text);
+    }
+
+    @Override
+    public void onError(int error) {
+        finish(null);
+    }
+
+    private void finish(String text) {
+        mTimer.cancel(mSendDraft);
+        mPending = null;
+        mListening = false;
+        if (text == null && mLastSent != null) {
+            // Nothing will take the place of the draft
+            mOutput.sendDraft("", mTimer.now());
+        }
+        mLastSent = null;
+        mOutput.onFinished(text);
+    }
+
+    public String getStatsSummary() {
+        return "partials=" + mPartials
+                + ", draftsSent=" + mDraftsSent;
+    }
+
+}
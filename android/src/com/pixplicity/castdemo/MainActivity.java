@@ -16,21 +16,24 @@ package com.pixplicity.castdemo;
  * limitations under the License.
  */
 
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.ArrayList;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
-import org.json.JSONException;
-import org.json.JSONObject;
-
-import android.accounts.Account;
-import android.accounts.AccountManager;
-import android.annotation.SuppressLint;
+import android.app.AlertDialog;
 import android.content.Context;
 import android.content.Intent;
 import android.graphics.drawable.ColorDrawable;
+import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.speech.RecognizerIntent;
 import android.support.v4.view.MenuItemCompat;
 import android.support.v7.app.ActionBar;
@@ -38,7 +41,6 @@ import android.support.v7.app.ActionBarActivity;
 import android.support.v7.app.MediaRouteActionProvider;
 import android.util.Log;
 import android.view.KeyEvent;
-import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
@@ -46,7 +48,6 @@ import android.view.View.OnClickListener;
 import android.view.ViewGroup;
 import android.view.inputmethod.EditorInfo;
 import android.view.inputmethod.InputMethodManager;
-import android.widget.BaseAdapter;
 import android.widget.EditText;
 import android.widget.ImageButton;
 import android.widget.ListView;
@@ -54,11 +55,7 @@ import android.widget.TextView;
 import android.widget.TextView.OnEditorActionListener;
 import android.widget.Toast;
 
-import com.google.android.gms.cast.Cast;
 import com.google.android.gms.cast.CastDevice;
-import com.google.android.gms.common.api.GoogleApiClient;
-import com.google.android.gms.common.api.ResultCallback;
-import com.google.android.gms.common.api.Status;
 
 /**
  * Main activity to send messages to the receiver.
@@ -68,6 +65,15 @@ public class MainActivity extends ActionBarActivity {
     private static final String TAG = MainActivity.class.getSimpleName();
 
     private static final int REQUEST_SPEECH_RECOGNITION = 101;
+    private static final int REQUEST_MEDIA = 102;
+
+    private static final int MESSAGE_HISTORY_CAPACITY = 1000;
+
+    private static final String STATE_LAST_SEQUENCE = "last_sequence";
+    private static final String STATE_HISTORY_SEQUENCE = "history_sequence";
+    private static final String STATE_HISTORY_EPOCH = "history_epoch";
+
+    private static final long IMAGE_CACHE_BYTES = 32 * 1024 * 1024;
 
     private EditText mEtMessage;
     private ImageButton mBtSend;
@@ -75,23 +81,56 @@ public class MainActivity extends ActionBarActivity {
     private ListView mLvMessages;
     private ViewGroup mVgLogo;
 
-    private String mUsername;
+    private UsernameResolver mUsernameResolver;
+    private ImagePipeline mImagePipeline;
 
-    // private ArrayList<Message> mMessageList = new ArrayList<Message>();
-    private ArrayList<String> mMessageListMessages = new ArrayList<String>();
-    private ArrayList<String> mMessageListUsernames = new ArrayList<String>();
-    private BaseAdapter mMessageAdapter;
+    private final MessageHistory mMessageHistory = new MessageHistory(new MessageStore(MESSAGE_HISTORY_CAPACITY));
+    private MessageAdapter mMessageAdapter;
+    private MessageJournal mJournal;
+    private HelloWorldChannel mChannel;
+    // Streams speech to the receiver while it's recognized; null if the device can't
+    private LiveTranscriber mTranscriber;
+    // Streams typing to the receiver while live typing is on
+    private TypingStreamer mTypingStreamer;
 
     private final Handler mHandler = new Handler();
 
-    public class Message {
+    /**
+     * Send times of staged messages that echo our own, with the histogram they go into
+     */
+    private static class StagedLatencies {
+
+        private LatencyHistogram[] mHistograms = new LatencyHistogram[16];
+        private long[] mSentAt = new long[16];
+        private int mCount;
 
-        public final String username;
-        public final String message;
+        /**
+         * @param histogram
+         *            Null if the message isn't an echo; nothing is recorded for it
+         * @param sentAt
+         */
+        void add(LatencyHistogram histogram, long sentAt) {
+            if (histogram == null) {
+                return;
+            }
+            if (mCount == mSentAt.length) {
+                LatencyHistogram[] histograms = new LatencyHistogram[mCount * 2];
+                long[] sentAtCopy = new long[mCount * 2];
+                System.arraycopy(mHistograms, 0, histograms, 0, mCount);
+                System.arraycopy(mSentAt, 0, sentAtCopy, 0, mCount);
+                mHistograms = histograms;
+                mSentAt = sentAtCopy;
+            }
+            mHistograms[mCount] = histogram;
+            mSentAt[mCount++] = sentAt;
+        }
 
-        public Message(String username, String message) {
-            this.username = username;
-            this.message = message;
+        void recordAndClear(long displayedAt) {
+            for (int i = 0; i < mCount; i++) {
+                mHistograms[i].record(displayedAt - mSentAt[i]);
+                mHistograms[i] = null;
+            }
+            mCount = 0;
         }
 
     }
@@ -103,6 +142,172 @@ public class MainActivity extends ActionBarActivity {
 
         public final Context mApplicationContext;
 
+        // Encoding happens on the main thread, decoding on the decoder thread
+        private final EnvelopeCodec mEncoder = new EnvelopeCodec();
+        private final EnvelopeCodec mDecoder = new EnvelopeCodec();
+        private final EnvelopeCodec.EnvelopeHandler mEnvelopeHandler = new EnvelopeCodec.EnvelopeHandler() {
+
+            @Override
+            public void onEnvelope(EnvelopeCodec.Envelope envelope) {
+                if (envelope.code == EnvelopeCodec.CODE_HELLO) {
+                    onHello(envelope);
+                    return;
+                }
+                if (envelope.code == EnvelopeCodec.CODE_STATS) {
+                    Log.d(TAG, "receiver rendering: " + envelope.msg);
+                    mReceiverStats = envelope.msg;
+                    return;
+                }
+                if (envelope.code == EnvelopeCodec.CODE_HISTORY) {
+                    onHistory(envelope);
+                    return;
+                }
+                if (envelope.code == EnvelopeCodec.CODE_CHUNK) {
+                    String assembled = mChunkAssembler.add(mDecodingSource, envelope.cid, envelope.idx,
+                            envelope.cnt, envelope.msg, SystemClock.elapsedRealtime());
+                    if (assembled != null) {
+                        mAssembled.add(assembled);
+                    }
+                    return;
+                }
+                if (envelope.code == EnvelopeCodec.CODE_SYNC) {
+                    onSynced(envelope);
+                    return;
+                }
+                if (envelope.code == EnvelopeCodec.CODE_DRAFT) {
+                    if (envelope.msg == null && envelope.ts != 0) {
+                        // One of our drafts made it to the screen
+                        mDraftLatencies.record(SystemClock.elapsedRealtime() - envelope.ts);
+                    }
+                    return;
+                }
+                if (envelope.code == EnvelopeCodec.CODE_DRAFT_EDIT) {
+                    if (envelope.msg == null) {
+                        // The receiver lost track of our typing
+                        mHandler.post(mRequestFullDraft);
+                    }
+                    return;
+                }
+                if (envelope.code != EnvelopeCodec.CODE_MESSAGE || envelope.msg == null) {
+                    // Only chat messages are shown
+                    return;
+                }
+                if (envelope.hseq != 0) {
+                    if (mSyncing && !mDecodingHistory) {
+                        // Broadcast before the receiver got our sync, so the reply includes it
+                        return;
+                    }
+                    if (envelope.hseq <= mHistorySequence) {
+                        // Already in the store
+                        return;
+                    }
+                    mHistorySequence = envelope.hseq;
+                    if (mDecodingHistory) {
+                        mHistoryMerged++;
+                    }
+                }
+                String name = envelope.name;
+                if (name == null && envelope.sid != 0) {
+                    // Compact envelopes identify their sender by id
+                    name = mSenderNames.get(envelope.sid);
+                }
+                LatencyHistogram histogram = null;
+                if (!mDecodingHistory && (envelope.sid == 0 || envelope.sid == mSenderId)
+                        && mEchoMatcher.isEcho(envelope.seq, envelope.ts)) {
+                    // Our own message, broadcast back by the receiver; other senders use the same
+                    // sequence numbers, but not under our id
+                    histogram = mDecodingHistogram;
+                }
+                synchronized (mStagingLock) {
+                    mStagedUsernames.add(name);
+                    mStagedMessages.add(envelope.msg);
+                    mStagedLatencies.add(histogram, envelope.ts);
+                }
+            }
+        };
+        private HandlerThread mDecoderThread;
+        private Handler mDecoderHandler;
+
+        // Id the receiver assigned to us when agreeing to the compact format, or 0 to send JSON
+        private volatile int mSenderId;
+        // Sender names by id, as announced by the receiver; only used on the decoder thread
+        private final HashMap<Integer, String> mSenderNames = new HashMap<Integer, String>();
+
+        // Position in the receiver's history up to which messages went into the store, and the
+        // start time of that receiver; written on the decoder thread
+        private volatile long mHistorySequence;
+        private volatile long mHistoryEpoch;
+        // Set from our sync request until the receiver's reply to it is complete
+        private volatile boolean mSyncing;
+        // Time to wait for the reply to a sync before asking for all of the receiver's history
+        private static final long SYNC_TIMEOUT_MS = 10000;
+        private final Runnable mSyncTimeout = new Runnable() {
+
+            @Override
+            public void run() {
+                if (!mSyncing) {
+                    return;
+                }
+                Log.w(TAG, "no reply to sync from " + mHistorySequence + "; requesting the whole history");
+                // Messages that are in the store already are skipped by their history sequence
+                requestHistory(0);
+            }
+        };
+        // Whether the frame being decoded is part of the reply; only used on the decoder thread
+        private boolean mDecodingHistory;
+        private int mHistoryMerged;
+
+        // Recent outbound messages, to recognize their echoes
+        private final EchoMatcher mEchoMatcher = new EchoMatcher(1024);
+        private long mLastSentSequence;
+
+        // Time it took to send the first chat message, or -1 if none was sent yet
+        private long mFirstMessageMicros = -1;
+
+        // Most recent rendering statistics reported by a receiver
+        private volatile String mReceiverStats;
+
+        // Send-to-display latency of echoed messages per device
+        private final Map<String, LatencyHistogram> mLatencies = new ConcurrentHashMap<String, LatencyHistogram>();
+        private final Runnable mRequestFullDraft = new Runnable() {
+
+            @Override
+            public void run() {
+                mTypingStreamer.requestFullText();
+            }
+        };
+
+        // Time from a partial recognition result or a keystroke to its draft being shown
+        private final LatencyHistogram mDraftLatencies = new LatencyHistogram();
+        // Histogram of the device whose frame is being decoded; only used on the decoder thread
+        private LatencyHistogram mDecodingHistogram;
+
+        // Envelopes too long for one Cast message go out in chunks, numbered per channel
+        private static final int CHUNK_BUFFER_LENGTH = 4 * EnvelopeCodec.MAX_CHUNKS * EnvelopeCodec.CHUNK_LENGTH;
+        private static final long CHUNK_TIMEOUT_MS = 10000;
+        private long mLastChunkId;
+        // Joins chunked envelopes per device; only used on the decoder thread
+        private final ChunkAssembler mChunkAssembler = new ChunkAssembler(CHUNK_BUFFER_LENGTH, CHUNK_TIMEOUT_MS);
+        private final ArrayList<String> mAssembled = new ArrayList<String>();
+        private String mDecodingSource;
+
+        // Decoded messages wait here until the next frame publishes them to the message store
+        private final Object mStagingLock = new Object();
+        private ArrayList<String> mStagedUsernames = new ArrayList<String>();
+        private ArrayList<String> mStagedMessages = new ArrayList<String>();
+        private StagedLatencies mStagedLatencies = new StagedLatencies();
+        private ArrayList<String> mPublishingUsernames = new ArrayList<String>();
+        private ArrayList<String> mPublishingMessages = new ArrayList<String>();
+        private StagedLatencies mPublishingLatencies = new StagedLatencies();
+
+        private final FrameCoalescer mFrameCoalescer = new FrameCoalescer(new FrameCoalescer.Publisher() {
+
+            @Override
+            public int publish() {
+                return publishStagedMessages();
+            }
+        });
+
         public HelloWorldChannel(Context applicationContext) {
             mApplicationContext = applicationContext;
         }
@@ -118,85 +323,418 @@ public class MainActivity extends ActionBarActivity {
         @Override
         public void onConnected() {
             Log.d(TAG, "onConnected");
-            // Set the initial instructions on the receiver
+            // Set the initial instructions on the receiver, offering the compact format
+            mSenderId = 0;
             sendMessage(null);
+            requestHistory();
             setConnected(true);
         }
 
         @Override
         public void onReconnected() {
             Log.d(TAG, "onReconnected");
+            // The receiver may have been restarted, forgetting our sender id; agree on it again
+            mSenderId = 0;
+            sendMessage(null);
+            requestHistory();
             setConnected(true);
         }
 
         @Override
         public void onDisconnected() {
             Log.d(TAG, "onDisconnected");
+            Log.d(TAG, "Cast sends per device:\n" + CastProxy.getStatsSummary());
+            Log.d(TAG, "Encoded: " + mEncoder.getStatsSummary());
+            mHandler.removeCallbacks(mSyncTimeout);
+            mSyncing = false;
+            stopDecoder();
             setConnected(false);
         }
 
         @Override
-        public void onMessageReceived(CastDevice castDevice, String namespace, String message) {
+        public void onMessageReceived(CastDevice castDevice, String namespace, final String message) {
             Log.d(TAG, "onMessageReceived: " + message);
-            try {
-                JSONObject json = new JSONObject(message);
-                String name = json.getString("name");
-                mMessageListUsernames.add(name);
-                String msg = json.getString("msg");
-                mMessageListMessages.add(msg);
-                updateMessages();
-                mMessageAdapter.notifyDataSetChanged();
-            } catch (JSONException e) {
-                throw new RuntimeException(e);
+            if (mDecoderHandler == null) {
+                mDecoderThread = new HandlerThread("HelloWorldChannel-decoder");
+                mDecoderThread.start();
+                mDecoderHandler = new Handler(mDecoderThread.getLooper());
+            }
+            final LatencyHistogram histogram = getLatencyHistogram(castDevice);
+            final String source = castDevice.getDeviceId();
+            mDecoderHandler.post(new Runnable() {
+
+                @Override
+                public void run() {
+                    decode(message, histogram, source);
+                }
+            });
+        }
+
+        /**
+         * Handles a hello on the decoder thread. Receivers that understand the compact format reply
+         * to our hello with the format and our sender id; older receivers just echo it, in which
+         * case we keep sending JSON.
+         */
+        private void onHello(EnvelopeCodec.Envelope envelope) {
+            if (envelope.sid == 0) {
+                return;
+            }
+            if (envelope.name != null) {
+                mSenderNames.put(envelope.sid, envelope.name);
+            }
+            if (envelope.fmt == EnvelopeCodec.FORMAT_COMPACT && mSenderId != envelope.sid) {
+                Log.d(TAG, "receiver agreed to the compact format; sender id " + envelope.sid);
+                mSenderId = envelope.sid;
             }
         }
 
         /**
-         * Send a text message to the receiver
+         * Asks the receiver for the messages we missed, i.e. everything after our position in its
+         * history. Receivers without a history echo the request, which ends the sync right away.
+         */
+        private void requestHistory() {
+            requestHistory(mHistorySequence);
+        }
+
+        /**
+         * Asks the receiver for its history after the given position. Broadcasts are ignored until
+         * the reply is complete; if it doesn't come within {@link #SYNC_TIMEOUT_MS}, because the
+         * request or the reply got lost, the whole history is requested instead.
+         *
+         * @param from
+         */
+        private void requestHistory(long from) {
+            mHandler.removeCallbacks(mSyncTimeout);
+            mSyncing = true;
+            if (!queue(mEncoder.encodeSync(from, mHistoryEpoch))) {
+                // No reply is coming; show broadcasts as they arrive
+                mSyncing = false;
+                return;
+            }
+            mHandler.postDelayed(mSyncTimeout, SYNC_TIMEOUT_MS);
+        }
+
+        /**
+         * Handles the start of a frame of history on the decoder thread. The receiver sends all of
+         * it if it isn't the one our position belongs to, in which case we start over.
+         */
+        private void onHistory(EnvelopeCodec.Envelope envelope) {
+            if (envelope.ts != mHistoryEpoch) {
+                Log.d(TAG, "receiver history restarted; was at " + mHistorySequence);
+                mHistoryEpoch = envelope.ts;
+                mHistorySequence = 0;
+            }
+            mDecodingHistory = true;
+        }
+
+        /**
+         * Handles the end of the receiver's reply to our sync on the decoder thread
+         */
+        private void onSynced(EnvelopeCodec.Envelope envelope) {
+            if (!mSyncing) {
+                return;
+            }
+            mSyncing = false;
+            mHandler.removeCallbacks(mSyncTimeout);
+            Log.d(TAG, "synced " + mHistoryMerged + " messages up to " + mHistorySequence + " of "
+                    + envelope.hseq);
+            mHistoryMerged = 0;
+        }
+
+        public long getHistorySequence() {
+            return mHistorySequence;
+        }
+
+        public long getHistoryEpoch() {
+            return mHistoryEpoch;
+        }
+
+        /**
+         * Continues from a position in the receiver's history, once the messages up to it are back
+         * in the store
+         *
+         * @param sequence
+         * @param epoch
+         */
+        public void restoreHistoryPosition(long sequence, long epoch) {
+            mHistorySequence = sequence;
+            mHistoryEpoch = epoch;
+        }
+
+        private LatencyHistogram getLatencyHistogram(CastDevice castDevice) {
+            String device = castDevice.getFriendlyName();
+            LatencyHistogram histogram = mLatencies.get(device);
+            if (histogram == null) {
+                histogram = new LatencyHistogram();
+                mLatencies.put(device, histogram);
+            }
+            return histogram;
+        }
+
+        /**
+         * @return Send-to-display latency of echoed messages for every device
+         */
+        public String getLatencySummary() {
+            StringBuilder summary = new StringBuilder();
+            for (Map.Entry<String, LatencyHistogram> entry : mLatencies.entrySet()) {
+                summary.append(entry.getKey()).append(": ")
+                        .append(entry.getValue().getStatsSummary()).append('\n');
+            }
+            if (mDraftLatencies.getCount() > 0) {
+                summary.append("draft-to-screen: ").append(mDraftLatencies.getStatsSummary()).append('\n');
+            }
+            return summary.toString();
+        }
+
+        /**
+         * @return The receiver's most recent report on its rendering, or null if none came in
+         */
+        public String getReceiverStats() {
+            return mReceiverStats;
+        }
+
+        /**
+         * Decodes a frame on the decoder thread and stages its messages for the next UI frame
+         *
+         * @param message
+         * @param histogram
+         *            Records the latency of echoes of our own messages in the frame
+         */
+        private void decode(String message, LatencyHistogram histogram, String source) {
+            mDecodingHistogram = histogram;
+            mDecodingHistory = false;
+            mDecodingSource = source;
+            mChunkAssembler.expire(SystemClock.elapsedRealtime());
+            // The receiver echoes frames as-is, so a frame may hold a batch of envelopes
+            boolean decoded = mDecoder.decode(message, mEnvelopeHandler);
+            // The decoder can't be reentered from its handler, so joined envelopes come after the frame
+            for (int i = 0; i < mAssembled.size(); i++) {
+                if (!mDecoder.decode(mAssembled.get(i), mEnvelopeHandler)) {
+                    Log.w(TAG, "Dropped malformed chunked envelope");
+                }
+            }
+            mAssembled.clear();
+            if (!decoded) {
+                Log.w(TAG, "Dropped malformed frame; " + mDecoder.getFramesMalformed() + " so far");
+                return;
+            }
+            mFrameCoalescer.schedule();
+        }
+
+        private void stopDecoder() {
+            if (mDecoderThread != null) {
+                final HandlerThread decoderThread = mDecoderThread;
+                // Let the decoder finish the frames it has, then report and stop
+                mDecoderHandler.post(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        Log.d(TAG, "Decoded: " + mDecoder.getStatsSummary());
+                        Log.d(TAG, "Chunks: " + mChunkAssembler.getStatsSummary());
+                        decoderThread.quit();
+                    }
+                });
+                mDecoderThread = null;
+                mDecoderHandler = null;
+            }
+            Log.d(TAG, "UI publishing: " + mFrameCoalescer.getStatsSummary());
+        }
+
+        /**
+         * Moves everything staged since the previous frame into the message store, followed by a
+         * single adapter notification
+         *
+         * @return Number of messages published
+         */
+        private int publishStagedMessages() {
+            synchronized (mStagingLock) {
+                // Swap buffers so the decoder can keep staging while we publish
+                ArrayList<String> usernames = mStagedUsernames;
+                ArrayList<String> messages = mStagedMessages;
+                StagedLatencies latencies = mStagedLatencies;
+                mStagedUsernames = mPublishingUsernames;
+                mStagedMessages = mPublishingMessages;
+                mStagedLatencies = mPublishingLatencies;
+                mPublishingUsernames = usernames;
+                mPublishingMessages = messages;
+                mPublishingLatencies = latencies;
+            }
+            int count = mPublishingMessages.size();
+            if (count == 0) {
+                return 0;
+            }
+            long firstSequence = mMessageHistory.getLastSequence() + 1;
+            for (int i = 0; i < count; i++) {
+                String username = mPublishingUsernames.get(i);
+                String message = mPublishingMessages.get(i);
+                long sequence = mMessageHistory.append(username, message);
+                if (mJournal != null) {
+                    mJournal.append(sequence, username, message);
+                }
+            }
+            mPublishingUsernames.clear();
+            mPublishingMessages.clear();
+            // ListView adapters have no range notifications; one invalidation covers the whole
+            // appended range [firstSequence, lastSequence]
+            updateMessages();
+            mMessageAdapter.notifyDataSetChanged();
+            mPublishingLatencies.recordAndClear(SystemClock.elapsedRealtime());
+            Log.v(TAG, "published messages " + firstSequence + ".." + mMessageHistory.getLastSequence());
+            return count;
+        }
+
+        /**
+         * Queue a text message for sending to the receiver
          * 
          * @param message
          */
         @Override
         public boolean sendMessage(String message) {
-            JSONObject json = new JSONObject();
-            try {
-                if (message != null) {
-                    if (message.length() == 0) {
-                        return false;
-                    }
-                    json.put("code", 2);
-                    json.put("msg", message);
+            long start = System.nanoTime();
+            String envelope;
+            // Only taken once the message is queued, so a failed send doesn't leave a gap
+            long sequence = mLastSentSequence + 1;
+            if (message != null) {
+                if (message.length() == 0) {
+                    return false;
+                }
+                long sentAt = SystemClock.elapsedRealtime();
+                // Before sending, as the echo may be decoded before queue() returns; a failed send
+                // reuses the slot with the next message
+                mEchoMatcher.onSent(sequence, sentAt);
+                int senderId = mSenderId;
+                if (senderId != 0) {
+                    envelope = mEncoder.encodeCompact(EnvelopeCodec.CODE_MESSAGE, message, senderId, sequence,
+                            sentAt);
                 } else {
-                    json.put("code", 1);
+                    envelope = mEncoder.encode(EnvelopeCodec.CODE_MESSAGE, message, getUsername(), sequence,
+                            sentAt);
                 }
-                json.put("name", getUsername());
-            } catch (JSONException e) {
-                throw new RuntimeException(e);
+            } else {
+                envelope = mEncoder.encodeHello(getUsername(), EnvelopeCodec.FORMAT_COMPACT);
+            }
+            boolean queued = queue(envelope);
+            if (queued && message != null) {
+                mLastSentSequence = sequence;
+            }
+            if (queued && message != null && mFirstMessageMicros < 0) {
+                // The account lookup used to happen here, on the first message
+                mFirstMessageMicros = (System.nanoTime() - start) / 1000;
+                Log.d(TAG, "first message queued in " + mFirstMessageMicros + " us; "
+                        + mUsernameResolver.getStatsSummary());
+            }
+            return queued;
+        }
+
+        /**
+         * @return Time spent on the UI thread sending the first message, and the username lookup
+         *         that used to be part of it
+         */
+        public String getFirstMessageSummary() {
+            return "firstMessageUs=" + mFirstMessageMicros + ", " + mUsernameResolver.getStatsSummary();
+        }
+
+        /**
+         * Queue a draft line for the receiver, replacing our previous one. Nothing is reported if
+         * it can't be sent; the final message will be.
+         *
+         * @param text
+         *            Draft text, or an empty string to remove the draft
+         * @param version
+         *            Version that later edits build on, or 0 if there won't be any
+         * @param producedAt
+         *            When the text was produced, echoed back once it's on screen
+         */
+        public boolean sendDraft(String text, long version, long producedAt) {
+            if (!CastProxy.isConnected()) {
+                return false;
+            }
+            String envelope;
+            int senderId = mSenderId;
+            if (senderId != 0) {
+                envelope = mEncoder.encodeCompact(EnvelopeCodec.CODE_DRAFT, text, senderId, version, producedAt);
+            } else {
+                envelope = mEncoder.encode(EnvelopeCodec.CODE_DRAFT, text, getUsername(), version, producedAt);
             }
-            GoogleApiClient apiClient = CastProxy.getApiClient();
-            if (apiClient == null) {
+            return queueDraft(envelope);
+        }
+
+        /**
+         * Queue an edit to our draft line, which the receiver applies if it has the version before
+         *
+         * @see EnvelopeCodec#encodeDraftEdit(int, int, String, String, long, long)
+         */
+        public boolean sendDraftEdit(int at, int del, String insert, long version, long changedAt) {
+            if (!CastProxy.isConnected()) {
+                return false;
+            }
+            String envelope;
+            int senderId = mSenderId;
+            if (senderId != 0) {
+                envelope = mEncoder.encodeCompactDraftEdit(at, del, insert, senderId, version, changedAt);
+            } else {
+                envelope = mEncoder.encodeDraftEdit(at, del, insert, getUsername(), version, changedAt);
+            }
+            return queueDraft(envelope);
+        }
+
+        /**
+         * Like {@link #queue(String)}, but without telling the user; a draft that doesn't go out is
+         * sent in full with the next update
+         */
+        private boolean queueDraft(String envelope) {
+            if (envelope.length() <= EnvelopeCodec.CHUNK_LENGTH) {
+                return CastProxy.queueMessage(getNamespace(), envelope);
+            }
+            // Frames are limited in size, and a long draft, e.g. a transcript, doesn't fit in one
+            String[] chunks = mEncoder.encodeChunks(envelope, ++mLastChunkId);
+            if (chunks == null) {
+                Log.w(TAG, "Draft of " + envelope.length() + " characters is too long to send");
+                return false;
+            }
+            return CastProxy.queueChunks(getNamespace(), chunks);
+        }
+
+        /**
+         * Queue a photo or video for the receiver to show
+         *
+         * @param url
+         *            Where the receiver can load it
+         */
+        public boolean sendMedia(String url) {
+            String envelope;
+            int senderId = mSenderId;
+            if (senderId != 0) {
+                envelope = mEncoder.encodeCompact(EnvelopeCodec.CODE_MEDIA, url, senderId, 0, 0);
+            } else {
+                envelope = mEncoder.encode(EnvelopeCodec.CODE_MEDIA, url, getUsername());
+            }
+            return queue(envelope);
+        }
+
+        private boolean queue(String envelope) {
+            if (!CastProxy.isConnected()) {
                 Toast.makeText(mApplicationContext, R.string.failed_no_connection, Toast.LENGTH_SHORT)
                         .show();
-            } else {
-                try {
-                    Log.d(TAG, "sending: " + message);
-                    Cast.CastApi.sendMessage(apiClient,
-                            getNamespace(), json.toString())
-                            .setResultCallback(new ResultCallback<Status>() {
-
-                                @Override
-                                public void onResult(Status result) {
-                                    if (!result.isSuccess()) {
-                                        Log.e(TAG, "Sending message failed");
-                                    }
-                                }
-                            });
+            } else if (envelope.length() > EnvelopeCodec.CHUNK_LENGTH) {
+                String[] chunks = mEncoder.encodeChunks(envelope, ++mLastChunkId);
+                if (chunks == null) {
+                    Toast.makeText(mApplicationContext, R.string.failed_too_long, Toast.LENGTH_SHORT).show();
+                } else if (CastProxy.queueChunks(getNamespace(), chunks)) {
+                    Log.d(TAG, "queued " + envelope.length() + " characters in " + chunks.length + " chunks");
                     return true;
-                } catch (Exception e) {
-                    Log.e(TAG, "Exception while sending message", e);
-                    Toast.makeText(mApplicationContext, R.string.failed_unknown, Toast.LENGTH_SHORT)
+                } else {
+                    Log.e(TAG, "Send queue full");
+                    Toast.makeText(mApplicationContext, R.string.failed_queue_full, Toast.LENGTH_SHORT)
                             .show();
                 }
+            } else if (CastProxy.queueMessage(getNamespace(), envelope)) {
+                Log.d(TAG, "queued: " + envelope);
+                return true;
+            } else {
+                Log.e(TAG, "Send queue full");
+                Toast.makeText(mApplicationContext, R.string.failed_queue_full, Toast.LENGTH_SHORT)
+                        .show();
             }
             return false;
         }
@@ -208,7 +746,35 @@ public class MainActivity extends ActionBarActivity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
 
-        CastProxy.init(getApplicationContext(), new HelloWorldChannel(getApplicationContext()));
+        try {
+            // A fresh launch starts a new history; otherwise it is restored from the journal
+            mJournal = MessageJournal.acquire(new File(getFilesDir(), "journal"), savedInstanceState == null);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not open message journal; history won't be kept", e);
+        }
+
+        mImagePipeline = new ImagePipeline(getContentResolver(), new File(getCacheDir(), "renditions"),
+                IMAGE_CACHE_BYTES, ImagePipeline.DEFAULT_MAX_WIDTH, ImagePipeline.DEFAULT_MAX_HEIGHT);
+
+        // Started before the channel connects, so a cached name is usually ready for the first hello
+        mUsernameResolver = new UsernameResolver(getApplicationContext(), new UsernameResolver.Listener() {
+
+            @Override
+            public void onUsernameChanged(String username) {
+                if (CastProxy.isConnected()) {
+                    // Announce the new name with another hello
+                    mChannel.sendMessage(null);
+                }
+            }
+        });
+        mUsernameResolver.start();
+
+        mChannel = new HelloWorldChannel(getApplicationContext());
+        if (savedInstanceState != null) {
+            // Before the channel is registered, so that its sync asks for what came after
+            restoreMessages(savedInstanceState);
+        }
+        CastProxy.init(getApplicationContext(), mChannel);
 
         ActionBar actionBar = getSupportActionBar();
         actionBar.setBackgroundDrawable(new ColorDrawable(android.R.color.transparent));
@@ -229,7 +795,46 @@ public class MainActivity extends ActionBarActivity {
 
             @Override
             public void onClick(View v) {
-                startVoiceRecognitionActivity();
+                if (mTranscriber == null) {
+                    startVoiceRecognitionActivity();
+                } else if (mTranscriber.isListening()) {
+                    mTranscriber.stop();
+                } else {
+                    mTranscriber.start();
+                    mBtSpeak.setSelected(true);
+                }
+            }
+        });
+
+        if (AndroidRecognizer.isAvailable(this)) {
+            mTranscriber = new LiveTranscriber(new AndroidRecognizer(this), new LiveTranscriber.Output() {
+
+                @Override
+                public boolean sendDraft(String text, long producedAt) {
+                    return mChannel.sendDraft(text, 0, producedAt);
+                }
+
+                @Override
+                public void onFinished(String text) {
+                    Log.d(TAG, "transcription finished; " + mTranscriber.getStatsSummary());
+                    mBtSpeak.setSelected(false);
+                    if (text != null && !mChannel.sendMessage(text)) {
+                        mEtMessage.setText(text);
+                    }
+                }
+            });
+        }
+
+        mTypingStreamer = new TypingStreamer(new TypingStreamer.Output() {
+
+            @Override
+            public boolean sendDraft(String text, long version, long changedAt) {
+                return mChannel.sendDraft(text, version, changedAt);
+            }
+
+            @Override
+            public boolean sendDraftEdit(int at, int del, String insert, long version, long changedAt) {
+                return mChannel.sendDraftEdit(at, del, insert, version, changedAt);
             }
         });
 
@@ -253,12 +858,18 @@ public class MainActivity extends ActionBarActivity {
         mVgLogo = (ViewGroup) findViewById(R.id.vg_logo);
 
         setConnected(false);
+        if (savedInstanceState != null) {
+            updateMessages();
+        }
     }
 
     private void setConnected(boolean connected) {
         mBtSend.setEnabled(connected);
         mBtSpeak.setEnabled(connected);
         mEtMessage.setEnabled(connected);
+        if (!connected && mTranscriber != null) {
+            mTranscriber.cancel();
+        }
         if (connected) {
             mEtMessage.requestFocus();
             // Implicity request a soft input mode
@@ -269,53 +880,41 @@ public class MainActivity extends ActionBarActivity {
     }
 
     private void updateMessages() {
-        if (mMessageListMessages.size() > 0) {
+        if (mMessageHistory.size() > 0) {
             mVgLogo.setVisibility(View.INVISIBLE);
         }
         if (mMessageAdapter == null) {
-            mMessageAdapter = new BaseAdapter() {
-
-                @SuppressLint("InflateParams")
-                @Override
-                public View getView(int position, View convertView, ViewGroup parent) {
-                    View row;
-                    if (convertView == null) {
-                        LayoutInflater inflater = (LayoutInflater) getApplicationContext().getSystemService(
-                                Context.LAYOUT_INFLATER_SERVICE);
-                        row = inflater.inflate(R.layout.list_messages, null);
-                    } else {
-                        row = convertView;
-                    }
-                    /* TODO
-                    Message msg = getItem(position);
-                    row.getText1().setText(msg.username);
-                    row.getText2().setText(msg.message);
-                    */
-                    ((TextView) row.findViewById(R.id.tv_username)).setText(mMessageListUsernames.get(position));
-                    ((TextView) row.findViewById(R.id.tv_message)).setText(mMessageListMessages.get(position));
-                    return row;
-                }
-
-                @Override
-                public int getCount() {
-                    return mMessageListMessages.size();
-                }
-
-                @Override
-                public Message getItem(int position) {
-                    // TODO return mMessageList.get(position);
-                    return null;
-                }
-
-                @Override
-                public long getItemId(int position) {
-                    return 0;
-                }
-            };
+            mMessageAdapter = new MessageAdapter(this, mMessageHistory);
             mLvMessages.setAdapter(mMessageAdapter);
         }
     }
 
+    /**
+     * Shows the messages of the previous instance again from the journal, and continues from its
+     * position in the receiver's history if the journal has all of its messages
+     */
+    private void restoreMessages(Bundle savedInstanceState) {
+        if (mJournal == null) {
+            return;
+        }
+        long lastSequence = savedInstanceState.getLong(STATE_LAST_SEQUENCE);
+        boolean complete = mJournal.getLastSequence() >= lastSequence;
+        if (!complete) {
+            Log.w(TAG, "Journal ends at " + mJournal.getLastSequence() + ", expected " + lastSequence);
+        }
+        // Only the record numbers are looked up here; the list reads the rows it shows
+        long end = mJournal.getEnd();
+        long first = Math.max(mJournal.getStart(), end - MESSAGE_HISTORY_CAPACITY);
+        mJournal.pin(first);
+        mMessageHistory.restore(mJournal, first, end, mJournal.getLastSequence());
+        Log.d(TAG, "restored " + (end - first) + " messages up to " + mMessageHistory.getLastSequence());
+        if (complete) {
+            // Only ask the receiver for what came after; otherwise it sends all it has
+            mChannel.restoreHistoryPosition(savedInstanceState.getLong(STATE_HISTORY_SEQUENCE),
+                    savedInstanceState.getLong(STATE_HISTORY_EPOCH));
+        }
+    }
+
     /**
      * Android voice recognition
      */
@@ -327,6 +926,64 @@ public class MainActivity extends ActionBarActivity {
         startActivityForResult(intent, REQUEST_SPEECH_RECOGNITION);
     }
 
+    /**
+     * Lets the user pick a photo or video to show on the receiver
+     */
+    private void pickMedia() {
+        Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
+        intent.setType("*/*");
+        intent.addCategory(Intent.CATEGORY_OPENABLE);
+        startActivityForResult(Intent.createChooser(intent, getString(R.string.cast_media)), REQUEST_MEDIA);
+    }
+
+    /**
+     * Serves picked media from the phone and sends its URL to the receiver
+     *
+     * @param uri
+     */
+    private void castMedia(Uri uri) {
+        String type = getContentResolver().getType(uri);
+        if (type == null || !(type.startsWith("image/") || type.startsWith("video/"))) {
+            Toast.makeText(this, R.string.failed_media_type, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        if (type.startsWith("image/")) {
+            // Photos go out at the receiver's resolution
+            mImagePipeline.request(uri, new ImagePipeline.Callback() {
+
+                @Override
+                public void onRendition(File rendition) {
+                    if (rendition == null) {
+                        Toast.makeText(MainActivity.this, R.string.failed_media_image, Toast.LENGTH_SHORT).show();
+                        return;
+                    }
+                    serveMedia(MediaServer.forFile(rendition, "image/jpeg"));
+                }
+            });
+            return;
+        }
+        // The receiver tells images from video by the extension
+        String extension = type.substring(type.indexOf('/') + 1);
+        if (extension.equals("jpeg")) {
+            extension = "jpg";
+        } else if (extension.equals("quicktime")) {
+            extension = "mov";
+        } else if (extension.equals("3gpp")) {
+            extension = "3gp";
+        }
+        serveMedia(MediaServer.forUri(getContentResolver(), uri, "media." + extension, type));
+    }
+
+    private void serveMedia(MediaServer.Media media) {
+        String url = CastProxy.serveMedia(media);
+        if (url == null) {
+            Toast.makeText(this, R.string.failed_media_server, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        Log.d(TAG, "serving " + media.name + " at " + url);
+        mChannel.sendMedia(url);
+    }
+
     /*
      * Handle the voice recognition response
      * 
@@ -335,12 +992,15 @@ public class MainActivity extends ActionBarActivity {
      */
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        if (requestCode == REQUEST_MEDIA && resultCode == RESULT_OK && data != null && data.getData() != null) {
+            castMedia(data.getData());
+        }
         if (requestCode == REQUEST_SPEECH_RECOGNITION && resultCode == RESULT_OK) {
             ArrayList<String> matches = data
                     .getStringArrayListExtra(RecognizerIntent.EXTRA_RESULTS);
             if (matches.size() > 0) {
                 String message = matches.get(0);
-                if (!CastProxy.getChannel().sendMessage(message)) {
+                if (!mChannel.sendMessage(message)) {
                     mEtMessage.setText(message);
                 }
             }
@@ -357,17 +1017,10 @@ public class MainActivity extends ActionBarActivity {
     @Override
     protected void onSaveInstanceState(Bundle outState) {
         super.onSaveInstanceState(outState);
-        outState.putStringArrayList("usernames", mMessageListUsernames);
-        outState.putStringArrayList("messages", mMessageListMessages);
-    }
-
-    @Override
-    protected void onRestoreInstanceState(Bundle savedInstanceState) {
-        super.onRestoreInstanceState(savedInstanceState);
-        mLvMessages.setAdapter(null);
-        mMessageListUsernames = savedInstanceState.getStringArrayList("usernames");
-        mMessageListMessages = savedInstanceState.getStringArrayList("messages");
-        updateMessages();
+        // The history itself lives in the journal
+        outState.putLong(STATE_LAST_SEQUENCE, mMessageHistory.getLastSequence());
+        outState.putLong(STATE_HISTORY_SEQUENCE, mChannel.getHistorySequence());
+        outState.putLong(STATE_HISTORY_EPOCH, mChannel.getHistoryEpoch());
     }
 
     @Override
@@ -383,6 +1036,20 @@ public class MainActivity extends ActionBarActivity {
         super.onStop();
     }
 
+    @Override
+    protected void onDestroy() {
+        mUsernameResolver.stop();
+        mImagePipeline.shutdown();
+        if (mTranscriber != null) {
+            mTranscriber.destroy();
+        }
+        if (mJournal != null) {
+            mJournal.release();
+            mJournal = null;
+        }
+        super.onDestroy();
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         super.onCreateOptionsMenu(menu);
@@ -392,34 +1059,99 @@ public class MainActivity extends ActionBarActivity {
                 .getActionProvider(mediaRouteMenuItem);
         // Set the MediaRouteActionProvider selector for device discovery.
         mediaRouteActionProvider.setRouteSelector(CastProxy.getMediaRouteSelector());
+        menu.findItem(R.id.multi_screen_menu_item).setChecked(CastProxy.isMultiScreen());
+        menu.findItem(R.id.live_typing_menu_item).setChecked(mTypingStreamer.isAttached());
         return true;
     }
 
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        if (item.getItemId() == R.id.media_menu_item) {
+            pickMedia();
+            return true;
+        }
+        if (item.getItemId() == R.id.latency_menu_item) {
+            showLatencies();
+            return true;
+        }
+        if (item.getItemId() == R.id.multi_screen_menu_item) {
+            // Selecting another device adds it instead of replacing the current one
+            item.setChecked(!item.isChecked());
+            CastProxy.setMultiScreen(item.isChecked());
+            return true;
+        }
+        if (item.getItemId() == R.id.live_typing_menu_item) {
+            item.setChecked(!item.isChecked());
+            if (item.isChecked()) {
+                mTypingStreamer.attach(mEtMessage);
+            } else {
+                mTypingStreamer.detach();
+            }
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    private void showLatencies() {
+        String summary = mChannel.getLatencySummary();
+        String receiverStats = mChannel.getReceiverStats();
+        if (receiverStats != null) {
+            summary += getString(R.string.latency_receiver, receiverStats);
+        }
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.latency_title)
+                .setMessage(summary.length() == 0 ? getString(R.string.latency_none) : summary)
+                .setPositiveButton(android.R.string.ok, null)
+                .show();
+    }
+
+    /*
+     * Dumps the latency histograms: adb shell dumpsys activity com.pixplicity.castdemo
+     */
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        writer.print(prefix);
+        writer.println("Send-to-display latency:");
+        for (String line : mChannel.getLatencySummary().split("\n")) {
+            writer.print(prefix);
+            writer.print("  ");
+            writer.println(line);
+        }
+        writer.print(prefix);
+        writer.print("Receiver rendering: ");
+        writer.println(mChannel.getReceiverStats());
+        writer.print(prefix);
+        writer.print("First message: ");
+        writer.println(mChannel.getFirstMessageSummary());
+        writer.print(prefix);
+        writer.print("Live typing: ");
+        writer.println(mTypingStreamer.getStatsSummary());
+        writer.print(prefix);
+        writer.print("Photo renditions: ");
+        writer.println(mImagePipeline.getStatsSummary());
+        writer.print(prefix);
+        writer.println("Cast sends per device:");
+        for (String line : CastProxy.getStatsSummary().split("\n")) {
+            writer.print(prefix);
+            writer.print("  ");
+            writer.println(line);
+        }
+    }
+
     private void sendTextMessage(final EditText textField) {
-        if (CastProxy.getChannel().sendMessage(textField.getText().toString())) {
+        if (mChannel.sendMessage(textField.getText().toString())) {
+            // The message replaces the draft on the receiver
+            mTypingStreamer.reset();
             textField.setText(null);
         }
     }
 
+    /**
+     * @return The username, or a default while it's being resolved
+     */
     public String getUsername() {
-        if (mUsername == null) {
-            mUsername = "anonymous";
-            // Default username
-            AccountManager manager = AccountManager.get(this);
-            Account[] accounts = manager.getAccountsByType("com.google");
-            List<String> possibleEmails = new LinkedList<String>();
-            for (Account account : accounts) {
-                possibleEmails.add(account.name);
-            }
-            if (!possibleEmails.isEmpty() && possibleEmails.get(0) != null) {
-                String email = possibleEmails.get(0);
-                String[] parts = email.split("@");
-                if (parts.length > 0 && parts[0] != null) {
-                    mUsername = parts[0];
-                }
-            }
-        }
-        return mUsername;
+        return mUsernameResolver.getUsername();
     }
 
 }
\ No newline at end of file
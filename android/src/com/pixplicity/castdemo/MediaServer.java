@@ -0,0 +1,451 @@
+package com.pixplicity.castdemo;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.SecureRandom;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.net.Uri;
+import android.net.wifi.WifiInfo;
+import android.net.wifi.WifiManager;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+/**
+ * Minimal HTTP/1.1 server that lets the receiver load media from the phone. Only media that was
+ * registered is served, under an unguessable path. Supports GET and HEAD, a single byte range per
+ * request, and keep-alive, which is what the receiver's video element needs to seek.
+ * <p>
+ * Bodies go from the file to the socket with {@link FileChannel#transferTo(long, long,
+ * java.nio.channels.WritableByteChannel)}, so they aren't copied through the heap, and connections
+ * are served by a bounded pool of threads.
+ */
+public class MediaServer {
+
+    private static final String TAG = MediaServer.class.getSimpleName();
+
+    public static final String PATH_PREFIX = "/media/";
+
+    private static final int MAX_CONNECTIONS = 8;
+    private static final int SO_TIMEOUT_MILLIS = 15000;
+    private static final int MAX_HEADER_LINE_LENGTH = 8192;
+
+    /**
+     * Something to serve; opened once per request
+     */
+    public static abstract class Media {
+
+        public final String name;
+        public final String contentType;
+
+        protected Media(String name, String contentType) {
+            this.name = name;
+            this.contentType = contentType == null ? "application/octet-stream" : contentType;
+        }
+
+        /**
+         * @return A stream whose channel reads the media; closed by the server
+         * @throws IOException
+         */
+        public abstract FileInputStream open() throws IOException;
+
+    }
+
+    public static Media forFile(final File file, String contentType) {
+        return new Media(file.getName(), contentType) {
+
+            @Override
+            public FileInputStream open() throws IOException {
+                return new FileInputStream(file);
+            }
+        };
+    }
+
+    /**
+     * @param contentResolver
+     * @param uri
+     *            Content that can be opened as a file descriptor, e.g. picked from the gallery
+     * @param name
+     *            File name to put in the URL
+     * @param contentType
+     */
+    public static Media forUri(final ContentResolver contentResolver, final Uri uri, String name,
+            String contentType) {
+        return new Media(name, contentType) {
+
+            @Override
+            public FileInputStream open() throws IOException {
+                ParcelFileDescriptor descriptor = contentResolver.openFileDescriptor(uri, "r");
+                if (descriptor == null) {
+                    throw new IOException("can't open " + uri);
+                }
+                return new ParcelFileDescriptor.AutoCloseInputStream(descriptor);
+            }
+        };
+    }
+
+    private final ConcurrentHashMap<String, Media> mMedia = new ConcurrentHashMap<String, Media>();
+    private final SecureRandom mRandom = new SecureRandom();
+
+    private ServerSocketChannel mServerChannel;
+    private Thread mAcceptThread;
+    private ThreadPoolExecutor mWorkers;
+
+    private final AtomicLong mConnections = new AtomicLong();
+    private final AtomicLong mRejected = new AtomicLong();
+    private final AtomicLong mRequests = new AtomicLong();
+    private final AtomicLong mBytesSent = new AtomicLong();
+    private final AtomicInteger mActive = new AtomicInteger();
+    private final AtomicInteger mMaxActive = new AtomicInteger();
+
+    /**
+     * Starts listening on all interfaces, unless already started
+     *
+     * @param port
+     *            Port to listen on, or 0 for any free port
+     * @return The port listened on
+     * @throws IOException
+     */
+    public synchronized int start(int port) throws IOException {
+        if (mServerChannel != null) {
+            return getPort();
+        }
+        final ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.socket().bind(new InetSocketAddress(port));
+        mServerChannel = serverChannel;
+        // Connections beyond the pool wait in a short queue; after that, they're refused
+        mWorkers = new ThreadPoolExecutor(MAX_CONNECTIONS, MAX_CONNECTIONS, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(MAX_CONNECTIONS));
+        mWorkers.allowCoreThreadTimeOut(true);
+        final ThreadPoolExecutor workers = mWorkers;
+        mAcceptThread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                accept(serverChannel, workers);
+            }
+        }, TAG);
+        mAcceptThread.start();
+        Log.d(TAG, "listening on port " + getPort());
+        return getPort();
+    }
+
+    public synchronized void stop() {
+        if (mServerChannel == null) {
+            return;
+        }
+        try {
+            mServerChannel.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed closing server socket", e);
+        }
+        mWorkers.shutdownNow();
+        // Paths handed out before don't survive a restart
+        mMedia.clear();
+        mServerChannel = null;
+        mAcceptThread = null;
+        mWorkers = null;
+        Log.d(TAG, "stopped; " + getStatsSummary());
+    }
+
+    public synchronized boolean isRunning() {
+        return mServerChannel != null;
+    }
+
+    public synchronized int getPort() {
+        return mServerChannel == null ? -1 : mServerChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Makes media available until it's unregistered or the server is stopped
+     *
+     * @param media
+     * @return Path to request the media by
+     */
+    public String register(Media media) {
+        byte[] bytes = new byte[12];
+        mRandom.nextBytes(bytes);
+        StringBuilder token = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            token.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        mMedia.put(token.toString(), media);
+        try {
+            // The name only helps the receiver tell images from video
+            return PATH_PREFIX + token + "/" + URLEncoder.encode(media.name, "UTF-8").replace("+", "%20");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @param path
+     *            As returned by {@link #register(Media)}
+     */
+    public void unregister(String path) {
+        String token = getToken(path);
+        if (token != null) {
+            mMedia.remove(token);
+        }
+    }
+
+    private static String getToken(String path) {
+        if (!path.startsWith(PATH_PREFIX)) {
+            return null;
+        }
+        int end = path.indexOf('/', PATH_PREFIX.length());
+        return path.substring(PATH_PREFIX.length(), end < 0 ? path.length() : end);
+    }
+
+    /**
+     * @param context
+     * @return The address other devices on the Wi-Fi network reach us at, or null if not on Wi-Fi
+     */
+    public static String getWifiAddress(Context context) {
+        WifiManager wifiManager = (WifiManager) context.getApplicationContext().getSystemService(Context.WIFI_SERVICE);
+        WifiInfo info = wifiManager == null ? null : wifiManager.getConnectionInfo();
+        int address = info == null ? 0 : info.getIpAddress();
+        if (address == 0) {
+            return null;
+        }
+        // Little-endian
+        return (address & 0xff) + "." + ((address >> 8) & 0xff) + "." + ((address >> 16) & 0xff) + "."
+                + ((address >> 24) & 0xff);
+    }
+
+    private void accept(ServerSocketChannel serverChannel, ThreadPoolExecutor workers) {
+        while (true) {
+            final SocketChannel channel;
+            try {
+                channel = serverChannel.accept();
+            } catch (IOException e) {
+                // Closed by stop()
+                return;
+            }
+            mConnections.incrementAndGet();
+            try {
+                workers.execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        serve(channel);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                mRejected.incrementAndGet();
+                close(channel);
+            }
+        }
+    }
+
+    private static void close(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Nothing left to do with it
+        }
+    }
+
+    /**
+     * Serves requests on a connection until the client closes it or asks to
+     */
+    private void serve(SocketChannel channel) {
+        int active = mActive.incrementAndGet();
+        int maxActive;
+        while (active > (maxActive = mMaxActive.get()) && !mMaxActive.compareAndSet(maxActive, active)) {
+            // Retry
+        }
+        try {
+            Socket socket = channel.socket();
+            socket.setSoTimeout(SO_TIMEOUT_MILLIS);
+            socket.setTcpNoDelay(true);
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            StringBuilder line = new StringBuilder(128);
+            while (readLine(in, line)) {
+                String[] request = line.toString().split(" ");
+                String range = null;
+                boolean keepAlive = request.length == 3 && "HTTP/1.1".equals(request[2]);
+                while (readLine(in, line) && line.length() > 0) {
+                    int colon = line.indexOf(":");
+                    if (colon < 0) {
+                        continue;
+                    }
+                    String header = line.substring(0, colon).trim().toLowerCase(Locale.US);
+                    String value = line.substring(colon + 1).trim();
+                    if (header.equals("range")) {
+                        range = value;
+                    } else if (header.equals("connection")) {
+                        keepAlive = !value.equalsIgnoreCase("close");
+                    }
+                }
+                if (request.length != 3) {
+                    respond(channel, "400 Bad Request", false);
+                    break;
+                }
+                mRequests.incrementAndGet();
+                if (!handle(channel, request[0], request[1], range, keepAlive) || !keepAlive) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            // Client went away or timed out
+        } finally {
+            mActive.decrementAndGet();
+            close(channel);
+        }
+    }
+
+    /**
+     * @return false if the line couldn't be read because the connection ended
+     */
+    private static boolean readLine(InputStream in, StringBuilder line) throws IOException {
+        line.setLength(0);
+        int c;
+        while ((c = in.read()) >= 0) {
+            if (c == '\n') {
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') {
+                    line.setLength(length - 1);
+                }
+                return true;
+            }
+            if (line.length() == MAX_HEADER_LINE_LENGTH) {
+                throw new IOException("header line too long");
+            }
+            line.append((char) c);
+        }
+        return false;
+    }
+
+    /**
+     * @return Whether the connection can be used for another request
+     */
+    private boolean handle(SocketChannel channel, String method, String path, String range, boolean keepAlive)
+            throws IOException {
+        boolean head = method.equals("HEAD");
+        if (!head && !method.equals("GET")) {
+            respond(channel, "405 Method Not Allowed", keepAlive);
+            return keepAlive;
+        }
+        String token = getToken(path);
+        Media media = token == null ? null : mMedia.get(token);
+        if (media == null) {
+            respond(channel, "404 Not Found", keepAlive);
+            return keepAlive;
+        }
+        FileInputStream in;
+        try {
+            in = media.open();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed opening " + media.name, e);
+            respond(channel, "404 Not Found", keepAlive);
+            return keepAlive;
+        }
+        try {
+            FileChannel file = in.getChannel();
+            long length = file.size();
+            long start = 0;
+            long end = length - 1;
+            String status = "200 OK";
+            String contentRange = null;
+            if (range != null && range.startsWith("bytes=") && range.indexOf(',') < 0) {
+                // A single range; anything else gets the whole file, which is allowed
+                int dash = range.indexOf('-');
+                try {
+                    String first = range.substring(6, dash).trim();
+                    String last = range.substring(dash + 1).trim();
+                    if (first.length() == 0) {
+                        // The last n bytes
+                        start = Math.max(0, length - Long.parseLong(last));
+                    } else {
+                        start = Long.parseLong(first);
+                        if (last.length() > 0) {
+                            end = Math.min(end, Long.parseLong(last));
+                        }
+                    }
+                } catch (RuntimeException e) {
+                    respond(channel, "400 Bad Request", false);
+                    return false;
+                }
+                if (start >= length || start > end) {
+                    writeHeaders(channel, "416 Range Not Satisfiable", null, 0, "bytes */" + length, keepAlive);
+                    return keepAlive;
+                }
+                status = "206 Partial Content";
+                contentRange = "bytes " + start + "-" + end + "/" + length;
+            }
+            long count = end - start + 1;
+            writeHeaders(channel, status, media.contentType, count, contentRange, keepAlive);
+            if (!head) {
+                long position = start;
+                while (count > 0) {
+                    long sent = file.transferTo(position, count, channel);
+                    if (sent <= 0) {
+                        throw new IOException("transfer stalled at " + position);
+                    }
+                    position += sent;
+                    count -= sent;
+                    mBytesSent.addAndGet(sent);
+                }
+            }
+            return true;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void respond(SocketChannel channel, String status, boolean keepAlive) throws IOException {
+        writeHeaders(channel, status, null, 0, null, keepAlive);
+    }
+
+    private static void writeHeaders(SocketChannel channel, String status, String contentType, long contentLength,
+            String contentRange, boolean keepAlive) throws IOException {
+        StringBuilder headers = new StringBuilder(256);
+        headers.append("HTTP/1.1 ").append(status).append("\r\n");
+        if (contentType != null) {
+            headers.append("Content-Type: ").append(contentType).append("\r\n");
+        }
+        headers.append("Content-Length: ").append(contentLength).append("\r\n");
+        if (contentRange != null) {
+            headers.append("Content-Range: ").append(contentRange).append("\r\n");
+        }
+        headers.append("Accept-Ranges: bytes\r\n");
+        headers.append("Access-Control-Allow-Origin: *\r\n");
+        headers.append("Connection: ").append(keepAlive ? "keep-alive" : "close").append("\r\n\r\n");
+        ByteBuffer buffer = ByteBuffer.wrap(headers.toString().getBytes("US-ASCII"));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    public String getStatsSummary() {
+        return "media=" + mMedia.size()
+                + ", connections=" + mConnections.get()
+                + ", rejected=" + mRejected.get()
+                + ", maxActive=" + mMaxActive.get()
+                + ", requests=" + mRequests.get()
+                + ", bytesSent=" + mBytesSent.get();
+    }
+
+}
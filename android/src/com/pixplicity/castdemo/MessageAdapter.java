@@ -0,0 +1,76 @@
+package com.pixplicity.castdemo;
+
+import android.content.Context;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+/**
+ * List adapter that reads chat lines straight from a {@link MessageHistory}. Item IDs are the
+ * message sequence numbers, which stay stable while older messages are evicted.
+ * <p>
+ * Row views are looked up once per recycled view. Rows wrap their text, so they are measured by
+ * the list as usual; binding a row only reads it from the store by position, which doesn't
+ * allocate (see MessageStoreTest in the jvm module). Restored rows are read from the journal a page
+ * at a time, as they scroll into view.
+ */
+public class MessageAdapter extends BaseAdapter {
+
+    private static class ViewHolder {
+
+        final TextView username;
+        final TextView message;
+
+        ViewHolder(View row) {
+            username = (TextView) row.findViewById(R.id.tv_username);
+            message = (TextView) row.findViewById(R.id.tv_message);
+        }
+
+    }
+
+    private final LayoutInflater mInflater;
+    private final MessageHistory mMessageHistory;
+
+    public MessageAdapter(Context context, MessageHistory messageHistory) {
+        mInflater = LayoutInflater.from(context);
+        mMessageHistory = messageHistory;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        ViewHolder holder;
+        if (convertView == null) {
+            convertView = mInflater.inflate(R.layout.list_messages, parent, false);
+            holder = new ViewHolder(convertView);
+            convertView.setTag(holder);
+        } else {
+            holder = (ViewHolder) convertView.getTag();
+        }
+        holder.username.setText(mMessageHistory.getUsername(position));
+        holder.message.setText(mMessageHistory.getMessage(position));
+        return convertView;
+    }
+
+    @Override
+    public int getCount() {
+        return mMessageHistory.size();
+    }
+
+    @Override
+    public String getItem(int position) {
+        return mMessageHistory.getMessage(position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return mMessageHistory.getSequence(position);
+    }
+
+    @Override
+    public boolean hasStableIds() {
+        return true;
+    }
+
+}
@@ -0,0 +1,183 @@
+package com.pixplicity.castdemo;
+
+/**
+ * Chat history as shown in the list: messages restored from an {@link Archive}, followed by the
+ * ones received since, which are kept in a {@link MessageStore}. Restored messages aren't read
+ * up front; they are read in small pages through the archive's index when a row asks for them, and
+ * only the last few pages are cached. Together, no more than the store's capacity is shown; new
+ * messages push the oldest restored ones out.
+ * <p>
+ * Not thread-safe.
+ */
+public class MessageHistory {
+
+    /**
+     * Random access to messages that were written earlier, by record number
+     */
+    public static interface Archive {
+
+        /**
+         * Reads consecutive records; records that can't be read are left empty
+         *
+         * @param first
+         *            Record number of the first record to read
+         * @param count
+         * @param usernames
+         * @param messages
+         * @param sequences
+         */
+        public void read(long first, int count, String[] usernames, String[] messages, long[] sequences);
+
+    }
+
+    static final int PAGE_SIZE = 64;
+    private static final int PAGES = 3;
+
+    private final MessageStore mStore;
+
+    private Archive mArchive;
+    // Record numbers of the restored messages, [mArchiveFirst, mArchiveEnd)
+    private long mArchiveFirst;
+    private long mArchiveEnd;
+
+    // Cached pages, replaced round-robin; a first record of -1 marks an empty page
+    private final long[] mPageFirst = new long[PAGES];
+    private final String[][] mPageUsernames = new String[PAGES][PAGE_SIZE];
+    private final String[][] mPageMessages = new String[PAGES][PAGE_SIZE];
+    private final long[][] mPageSequences = new long[PAGES][PAGE_SIZE];
+    private int mNextPage;
+
+    public MessageHistory(MessageStore store) {
+        mStore = store;
+        clearPages();
+    }
+
+    /**
+     * Shows the given archived records before the messages in the store, which is cleared; new
+     * messages continue the sequence numbering after the restored ones
+     *
+     * @param archive
+     * @param first
+     *            Record number of the oldest message to restore
+     * @param end
+     *            Record number after the newest message to restore
+     * @param lastSequence
+     *            Sequence number of the newest restored message
+     */
+    public void restore(Archive archive, long first, long end, long lastSequence) {
+        mStore.clear();
+        mStore.skipTo(lastSequence);
+        mArchive = archive;
+        mArchiveFirst = Math.max(first, end - mStore.getCapacity());
+        mArchiveEnd = end;
+        clearPages();
+    }
+
+    /**
+     * Appends a message received after the restored ones
+     *
+     * @param username
+     * @param message
+     * @return Sequence number assigned to the message
+     */
+    public long append(String username, String message) {
+        return mStore.append(username, message);
+    }
+
+    private int getArchivedCount() {
+        if (mArchive == null) {
+            return 0;
+        }
+        // The restored messages that still fit next to the received ones
+        return (int) Math.max(0, Math.min(mArchiveEnd - mArchiveFirst, mStore.getCapacity() - mStore.size()));
+    }
+
+    public int size() {
+        return getArchivedCount() + mStore.size();
+    }
+
+    public String getUsername(int position) {
+        int archived = getArchivedCount();
+        if (position >= archived) {
+            return mStore.getUsername(position - archived);
+        }
+        int page = page(position, archived);
+        return mPageUsernames[page][offsetInPage(position, archived)];
+    }
+
+    public String getMessage(int position) {
+        int archived = getArchivedCount();
+        if (position >= archived) {
+            return mStore.getMessage(position - archived);
+        }
+        int page = page(position, archived);
+        return mPageMessages[page][offsetInPage(position, archived)];
+    }
+
+    public long getSequence(int position) {
+        int archived = getArchivedCount();
+        if (position >= archived) {
+            return mStore.getSequence(position - archived);
+        }
+        int page = page(position, archived);
+        return mPageSequences[page][offsetInPage(position, archived)];
+    }
+
+    /**
+     * @return Sequence number of the newest message, restored or received, or 0 if there is none
+     */
+    public long getLastSequence() {
+        return mStore.getLastSequence();
+    }
+
+    /**
+     * Forgets the restored messages and clears the store
+     */
+    public void clear() {
+        mArchive = null;
+        mStore.clear();
+        clearPages();
+    }
+
+    private void clearPages() {
+        for (int i = 0; i < PAGES; i++) {
+            mPageFirst[i] = -1;
+            for (int j = 0; j < PAGE_SIZE; j++) {
+                mPageUsernames[i][j] = null;
+                mPageMessages[i][j] = null;
+            }
+        }
+    }
+
+    private long recordOf(int position, int archived) {
+        if (position < 0) {
+            throw new IndexOutOfBoundsException("position " + position + ", size " + size());
+        }
+        return mArchiveEnd - archived + position;
+    }
+
+    private int offsetInPage(int position, int archived) {
+        return (int) ((recordOf(position, archived) - mArchiveFirst) % PAGE_SIZE);
+    }
+
+    /**
+     * @return Index of the cached page holding the given position, which is read if needed
+     */
+    private int page(int position, int archived) {
+        long record = recordOf(position, archived);
+        // Pages are aligned to the first restored record, so they stay put as rows are pushed out
+        long first = record - (record - mArchiveFirst) % PAGE_SIZE;
+        for (int i = 0; i < PAGES; i++) {
+            if (mPageFirst[i] == first) {
+                return i;
+            }
+        }
+        int page = mNextPage;
+        mNextPage = (mNextPage + 1) % PAGES;
+        int count = (int) Math.min(PAGE_SIZE, mArchiveEnd - first);
+        mArchive.read(first, count, mPageUsernames[page], mPageMessages[page], mPageSequences[page]);
+        mPageFirst[page] = first;
+        return page;
+    }
+
+}
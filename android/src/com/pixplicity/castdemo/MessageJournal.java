@@ -0,0 +1,569 @@
+package com.pixplicity.castdemo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+/**
+ * Append-only on-disk chat history. Records go into a segment file through a {@link FileChannel};
+ * a compact index file holds one 8-byte offset per record, so any record can be read back without
+ * scanning the segment. Writes happen on a background thread and are synced to disk in batches;
+ * until a record is written, reads get it from memory, so they never wait for the writer.
+ * <p>
+ * Records are numbered in the order they were appended since the journal was opened. A
+ * {@link MessageHistory} reads them by number, a page at a time, while they're on screen.
+ * <p>
+ * The segment and index together are kept under a size limit: once they outgrow it, the newest
+ * records that fit in half of it are copied to new files, which then replace the old ones. This
+ * also happens when opening a journal that a previous run left too large.
+ * <p>
+ * There is one journal per process, shared by the activities through {@link #acquire(File, boolean)}
+ * and {@link #release()}, so that a new activity never opens the files while a previous one is
+ * still writing to them. It's closed on its own thread a while after the last release, so an
+ * activity that is recreated, e.g. on rotation, keeps using the open journal.
+ */
+public class MessageJournal implements MessageHistory.Archive {
+
+    private static class Record {
+
+        final long sequence;
+        final String username;
+        final String message;
+
+        Record(long sequence, String username, String message) {
+            this.sequence = sequence;
+            this.username = username;
+            this.message = message;
+        }
+
+    }
+
+    private static final String TAG = MessageJournal.class.getSimpleName();
+
+    private static final String SEGMENT_FILE = "messages.log";
+    private static final String INDEX_FILE = "messages.idx";
+    // Copies made while compacting
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final long MAX_BYTES = 8 * 1024 * 1024;
+    // Same as the delay before MainActivity unregisters from CastProxy
+    private static final long CLOSE_DELAY_MS = 2000;
+
+    private static final long FSYNC_INTERVAL_MS = 1000;
+    private static final int INDEX_ENTRY_SIZE = 8;
+    // Record length, sequence number, username length, message length
+    private static final int RECORD_HEADER_SIZE = 4 + 8 + 4 + 4;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // Guarded by the class
+    private static MessageJournal sInstance;
+    private static int sReferences;
+
+    private final File mDirectory;
+    private final long mMaxBytes;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+
+    // Guarded by this; written on the journal thread, read by the list
+    private FileChannel mSegment;
+    private FileChannel mIndex;
+    private long[] mOffsets;
+    private int mCount;
+    private long mSegmentSize;
+    private long mLastSequence;
+    // Number of the first record in the files; those before were compacted away or reset
+    private long mDropped;
+    // Number of the first record that compacting must keep, if any
+    private long mPinned = Long.MAX_VALUE;
+    // Appended but not written yet, in order
+    private final ArrayList<Record> mPending = new ArrayList<Record>();
+
+    // Only touched on the journal thread
+    private ByteBuffer mWriteBuffer = ByteBuffer.allocate(1024);
+    private final ByteBuffer mIndexBuffer = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+    private boolean mSyncPending;
+
+    private volatile boolean mClosed;
+
+    private final Runnable mSyncRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+            mSyncPending = false;
+            sync();
+        }
+    };
+
+    private final Runnable mCloseRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+            synchronized (MessageJournal.class) {
+                if (sInstance != MessageJournal.this || sReferences > 0) {
+                    // Acquired again in the meantime
+                    return;
+                }
+                sInstance = null;
+                mClosed = true;
+            }
+            close();
+        }
+    };
+
+    /**
+     * Opens the process's journal, or shares it if it's open already
+     *
+     * @param directory
+     *            Where the journal is kept; the same for every caller
+     * @param reset
+     *            Whether to discard any existing history. MainActivity does so when it's launched
+     *            without saved state, so a fresh launch starts an empty chat; when the process was
+     *            killed and the activity is recreated, the history is kept.
+     * @return The journal; call {@link #release()} when done with it
+     * @throws IOException
+     */
+    public static MessageJournal acquire(File directory, boolean reset) throws IOException {
+        synchronized (MessageJournal.class) {
+            if (sInstance == null) {
+                sInstance = new MessageJournal(directory, reset, MAX_BYTES);
+            } else if (reset) {
+                sInstance.reset();
+            }
+            sReferences++;
+            return sInstance;
+        }
+    }
+
+    /**
+     * Releases a reference obtained from {@link #acquire(File, boolean)} without waiting for the
+     * disk. Once the last one has been released for a while, outstanding writes are synced and the
+     * journal is closed on its own thread, unless it was acquired again.
+     */
+    public void release() {
+        synchronized (MessageJournal.class) {
+            if (sInstance != this || --sReferences > 0) {
+                return;
+            }
+            mHandler.removeCallbacks(mCloseRunnable);
+            mHandler.postDelayed(mCloseRunnable, CLOSE_DELAY_MS);
+        }
+    }
+
+    /**
+     * Opens the journal in the given directory
+     *
+     * @param directory
+     * @param reset
+     *            Whether to discard any existing history
+     * @param maxBytes
+     *            Size limit of the segment and index together
+     * @throws IOException
+     */
+    private MessageJournal(File directory, boolean reset, long maxBytes) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        mDirectory = directory;
+        mMaxBytes = maxBytes;
+        recoverCompaction();
+        mSegment = new RandomAccessFile(new File(directory, SEGMENT_FILE), "rw").getChannel();
+        mIndex = new RandomAccessFile(new File(directory, INDEX_FILE), "rw").getChannel();
+        if (reset) {
+            mSegment.truncate(0);
+            mIndex.truncate(0);
+        }
+        loadIndex();
+        compactIfNeeded();
+        mThread = new HandlerThread("MessageJournal");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * Finishes or undoes a compaction that was interrupted. The old index is deleted once both
+     * copies are complete, so a copy of the index without the original means the copies hold the
+     * journal.
+     */
+    private void recoverCompaction() throws IOException {
+        File segment = new File(mDirectory, SEGMENT_FILE);
+        File index = new File(mDirectory, INDEX_FILE);
+        File segmentTemp = new File(mDirectory, SEGMENT_FILE + TEMP_SUFFIX);
+        File indexTemp = new File(mDirectory, INDEX_FILE + TEMP_SUFFIX);
+        if (indexTemp.exists() && !index.exists()) {
+            Log.w(TAG, "finishing interrupted compaction");
+            if (segmentTemp.exists() && !segmentTemp.renameTo(segment)) {
+                throw new IOException("Could not rename " + segmentTemp);
+            }
+            if (!indexTemp.renameTo(index)) {
+                throw new IOException("Could not rename " + indexTemp);
+            }
+        }
+        segmentTemp.delete();
+        indexTemp.delete();
+    }
+
+    private void loadIndex() throws IOException {
+        long segmentSize = mSegment.size();
+        int count = (int) (mIndex.size() / INDEX_ENTRY_SIZE);
+        ByteBuffer buffer = ByteBuffer.allocate(count * INDEX_ENTRY_SIZE);
+        while (buffer.hasRemaining()) {
+            if (mIndex.read(buffer, buffer.position()) < 0) {
+                throw new IOException("Unexpected end of index");
+            }
+        }
+        buffer.flip();
+        mOffsets = new long[Math.max(64, count)];
+        for (int i = 0; i < count; i++) {
+            mOffsets[i] = buffer.getLong();
+        }
+        // Drop trailing records that weren't completely written
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        while (count > 0) {
+            long offset = mOffsets[count - 1];
+            if (offset + RECORD_HEADER_SIZE <= segmentSize) {
+                header.clear();
+                mSegment.read(header, offset);
+                header.flip();
+                int length = header.getInt();
+                if (offset + length <= segmentSize) {
+                    mLastSequence = header.getLong();
+                    mSegmentSize = offset + length;
+                    break;
+                }
+            }
+            count--;
+        }
+        mCount = count;
+        // Cut off anything that was written after the last indexed record
+        mSegment.truncate(mSegmentSize);
+        mIndex.truncate((long) count * INDEX_ENTRY_SIZE);
+        Log.d(TAG, "opened journal with " + count + " messages, last sequence " + mLastSequence);
+    }
+
+    /**
+     * Appends a message on the journal thread
+     *
+     * @param sequence
+     * @param username
+     * @param message
+     */
+    public void append(long sequence, String username, String message) {
+        if (mClosed) {
+            // Late messages for a closed journal, e.g. from a channel outliving its activity
+            return;
+        }
+        final Record record = new Record(sequence, username, message);
+        synchronized (this) {
+            mPending.add(record);
+        }
+        mHandler.post(new Runnable() {
+
+            @Override
+            public void run() {
+                write(record);
+            }
+        });
+    }
+
+    private void write(Record record) {
+        long sequence = record.sequence;
+        String username = record.username;
+        String message = record.message;
+        byte[] usernameBytes = username == null ? null : username.getBytes(UTF_8);
+        byte[] messageBytes = message == null ? null : message.getBytes(UTF_8);
+        int length = RECORD_HEADER_SIZE
+                + (usernameBytes == null ? 0 : usernameBytes.length)
+                + (messageBytes == null ? 0 : messageBytes.length);
+        if (mWriteBuffer.capacity() < length) {
+            mWriteBuffer = ByteBuffer.allocate(Math.max(length, mWriteBuffer.capacity() * 2));
+        }
+        ByteBuffer buffer = mWriteBuffer;
+        buffer.clear();
+        buffer.putInt(length);
+        buffer.putLong(sequence);
+        putBytes(buffer, usernameBytes);
+        putBytes(buffer, messageBytes);
+        buffer.flip();
+        try {
+            long offset;
+            synchronized (this) {
+                offset = mSegmentSize;
+            }
+            while (buffer.hasRemaining()) {
+                mSegment.write(buffer, offset + buffer.position());
+            }
+            mIndexBuffer.clear();
+            mIndexBuffer.putLong(offset);
+            mIndexBuffer.flip();
+            while (mIndexBuffer.hasRemaining()) {
+                mIndex.write(mIndexBuffer, (long) mCount * INDEX_ENTRY_SIZE + mIndexBuffer.position());
+            }
+            synchronized (this) {
+                // Moves the record from memory to the files in one step for readers
+                mPending.remove(0);
+                if (mCount == mOffsets.length) {
+                    long[] offsets = new long[mOffsets.length * 2];
+                    System.arraycopy(mOffsets, 0, offsets, 0, mCount);
+                    mOffsets = offsets;
+                }
+                mOffsets[mCount++] = offset;
+                mSegmentSize = offset + length;
+                mLastSequence = sequence;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to append message " + sequence, e);
+            synchronized (this) {
+                // Lost; the records after it move up by one
+                mPending.remove(0);
+            }
+            return;
+        }
+        try {
+            compactIfNeeded();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to compact journal", e);
+        }
+        if (!mSyncPending) {
+            mSyncPending = true;
+            mHandler.postDelayed(mSyncRunnable, FSYNC_INTERVAL_MS);
+        }
+    }
+
+    /**
+     * Replaces the journal by a copy of its newest records if it outgrew its size limit. Runs on
+     * the journal thread, or while opening.
+     */
+    private void compactIfNeeded() throws IOException {
+        // Only the journal thread changes the records, so they can be read without locking here
+        int count = mCount;
+        long segmentSize = mSegmentSize;
+        if (count == 0 || segmentSize + (long) count * INDEX_ENTRY_SIZE <= mMaxBytes) {
+            return;
+        }
+        // Keep the newest records that fit in half the limit, but at least the last one, and
+        // those that are restored on screen
+        int first = count - 1;
+        while (first > 0 && segmentSize - mOffsets[first - 1]
+                + (long) (count - first + 1) * INDEX_ENTRY_SIZE <= mMaxBytes / 2) {
+            first--;
+        }
+        synchronized (this) {
+            first = (int) Math.max(0, Math.min(first, mPinned - mDropped));
+        }
+        if (first == 0) {
+            return;
+        }
+        int kept = count - first;
+        long start = mOffsets[first];
+        File segmentTemp = new File(mDirectory, SEGMENT_FILE + TEMP_SUFFIX);
+        File indexTemp = new File(mDirectory, INDEX_FILE + TEMP_SUFFIX);
+        FileChannel segment = new RandomAccessFile(segmentTemp, "rw").getChannel();
+        FileChannel index = new RandomAccessFile(indexTemp, "rw").getChannel();
+        try {
+            segment.truncate(0);
+            index.truncate(0);
+            for (long copied = 0; copied < segmentSize - start;) {
+                copied += mSegment.transferTo(start + copied, segmentSize - start - copied, segment);
+            }
+            ByteBuffer offsets = ByteBuffer.allocate(kept * INDEX_ENTRY_SIZE);
+            for (int i = first; i < count; i++) {
+                offsets.putLong(mOffsets[i] - start);
+            }
+            offsets.flip();
+            while (offsets.hasRemaining()) {
+                index.write(offsets, offsets.position());
+            }
+            segment.force(false);
+            index.force(false);
+            // Commits the copies, see recoverCompaction()
+            if (!new File(mDirectory, INDEX_FILE).delete()) {
+                throw new IOException("Could not delete the index");
+            }
+        } catch (IOException e) {
+            segment.close();
+            index.close();
+            segmentTemp.delete();
+            indexTemp.delete();
+            throw e;
+        }
+        synchronized (this) {
+            // Open channels keep pointing at the copies after renaming them
+            mSegment.close();
+            mIndex.close();
+            mSegment = segment;
+            mIndex = index;
+            for (int i = 0; i < kept; i++) {
+                mOffsets[i] = mOffsets[first + i] - start;
+            }
+            mCount = kept;
+            mSegmentSize = segmentSize - start;
+            mDropped += first;
+        }
+        if (!segmentTemp.renameTo(new File(mDirectory, SEGMENT_FILE))
+                || !indexTemp.renameTo(new File(mDirectory, INDEX_FILE))) {
+            // Finished when opening next time
+            Log.e(TAG, "Could not rename compacted journal");
+        }
+        Log.d(TAG, "compacted journal from " + count + " to " + kept + " messages, "
+                + (segmentSize - start) + " bytes");
+    }
+
+    /**
+     * Discards the history on the journal thread, after any appends that are already posted
+     */
+    private void reset() {
+        mHandler.post(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    synchronized (MessageJournal.this) {
+                        mSegment.truncate(0);
+                        mIndex.truncate(0);
+                        mDropped += mCount;
+                        mCount = 0;
+                        mSegmentSize = 0;
+                        mLastSequence = 0;
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to reset journal", e);
+                }
+            }
+        });
+    }
+
+    private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+        if (bytes == null) {
+            buffer.putInt(-1);
+        } else {
+            buffer.putInt(bytes.length);
+            buffer.put(bytes);
+        }
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+    private void sync() {
+        try {
+            mSegment.force(false);
+            mIndex.force(false);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to sync journal", e);
+        }
+    }
+
+    /**
+     * @return Number of the oldest record in the journal
+     */
+    public synchronized long getStart() {
+        return mDropped;
+    }
+
+    /**
+     * @return Number after the newest record in the journal, including those not written yet
+     */
+    public synchronized long getEnd() {
+        return mDropped + mCount + mPending.size();
+    }
+
+    /**
+     * Keeps compaction from dropping records from the given one on, e.g. because they're restored
+     * on screen; replaces the record pinned before
+     *
+     * @param first
+     */
+    public synchronized void pin(long first) {
+        mPinned = first;
+    }
+
+    /**
+     * @return Sequence number of the newest record, including those not written yet
+     */
+    public synchronized long getLastSequence() {
+        return mPending.isEmpty() ? mLastSequence : mPending.get(mPending.size() - 1).sequence;
+    }
+
+    /**
+     * Reads records by number, using a single read of the segment for those that are written; can be
+     * called from any thread
+     */
+    @Override
+    public synchronized void read(long first, int count, String[] usernames, String[] messages, long[] sequences) {
+        // Held while reading, so that a compaction can't swap the segment underneath
+        int index = (int) (first - mDropped);
+        if (index < 0 || mClosed) {
+            Log.w(TAG, "Records " + first + ".." + (first + count) + " are no longer in the journal");
+            return;
+        }
+        int written = Math.max(0, Math.min(count, mCount - index));
+        if (written > 0) {
+            long start = mOffsets[index];
+            long end = index + written < mCount ? mOffsets[index + written] : mSegmentSize;
+            ByteBuffer buffer = ByteBuffer.allocate((int) (end - start));
+            try {
+                while (buffer.hasRemaining()) {
+                    if (mSegment.read(buffer, start + buffer.position()) < 0) {
+                        throw new IOException("Unexpected end of journal");
+                    }
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Could not read records " + first + ".." + (first + written), e);
+                return;
+            }
+            buffer.flip();
+            for (int i = 0; i < written; i++) {
+                buffer.getInt();
+                sequences[i] = buffer.getLong();
+                usernames[i] = getString(buffer);
+                messages[i] = getString(buffer);
+            }
+        }
+        for (int i = written; i < count; i++) {
+            int pending = index + i - mCount;
+            if (pending >= mPending.size()) {
+                break;
+            }
+            Record record = mPending.get(pending);
+            sequences[i] = record.sequence;
+            usernames[i] = record.username;
+            messages[i] = record.message;
+        }
+    }
+
+    /**
+     * Syncs outstanding writes and closes the journal; runs on the journal thread, after the
+     * appends that were posted before
+     */
+    private void close() {
+        mHandler.removeCallbacks(mSyncRunnable);
+        sync();
+        try {
+            synchronized (this) {
+                mSegment.close();
+                mIndex.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to close journal", e);
+        }
+        mThread.quit();
+        Log.d(TAG, "closed journal");
+    }
+
+}
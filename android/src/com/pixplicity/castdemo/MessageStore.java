@@ -0,0 +1,154 @@
+package com.pixplicity.castdemo;
+
+import java.util.HashMap;
+
+/**
+ * Fixed-capacity chat history. Entries are kept in a ring buffer with one array per column, so
+ * appending is O(1) and the oldest entry is evicted once the store is full. Usernames are interned,
+ * as a handful of senders typically write most of the lines.
+ * <p>
+ * Positions are relative to the oldest retained entry. Not thread-safe.
+ */
+public class MessageStore {
+
+    private static final int MAX_INTERNED_USERNAMES = 256;
+
+    private final int mCapacity;
+    private final String[] mUsernames;
+    private final String[] mMessages;
+    private final long[] mSequences;
+
+    private final HashMap<String, String> mInternedUsernames = new HashMap<String, String>();
+
+    private int mHead;
+    private int mSize;
+    private long mLastSequence;
+
+    public MessageStore(int capacity) {
+        mCapacity = capacity;
+        mUsernames = new String[capacity];
+        mMessages = new String[capacity];
+        mSequences = new long[capacity];
+    }
+
+    /**
+     * Appends a message, evicting the oldest one if the store is full
+     *
+     * @param username
+     * @param message
+     * @return Sequence number assigned to the message
+     */
+    public long append(String username, String message) {
+        return append(mLastSequence + 1, username, message);
+    }
+
+    /**
+     * Appends a message under a known sequence number, e.g. when restoring history
+     *
+     * @param sequence
+     *            Must be greater than the last sequence number in the store
+     * @param username
+     * @param message
+     * @return Sequence number of the message
+     */
+    public long append(long sequence, String username, String message) {
+        if (sequence <= mLastSequence) {
+            throw new IllegalArgumentException("sequence " + sequence + " is not after " + mLastSequence);
+        }
+        int index = mHead + mSize;
+        if (index >= mCapacity) {
+            index -= mCapacity;
+        }
+        if (mSize == mCapacity) {
+            // Evict the oldest entry
+            mHead = mHead + 1 == mCapacity ? 0 : mHead + 1;
+        } else {
+            mSize++;
+        }
+        mUsernames[index] = intern(username);
+        mMessages[index] = message;
+        mSequences[index] = sequence;
+        mLastSequence = sequence;
+        return sequence;
+    }
+
+    private String intern(String username) {
+        if (username == null) {
+            return null;
+        }
+        String interned = mInternedUsernames.get(username);
+        if (interned == null) {
+            if (mInternedUsernames.size() >= MAX_INTERNED_USERNAMES) {
+                // Keep the pool bounded; entries still in the store hold their own reference
+                mInternedUsernames.clear();
+            }
+            mInternedUsernames.put(username, username);
+            interned = username;
+        }
+        return interned;
+    }
+
+    private int indexOf(int position) {
+        if (position < 0 || position >= mSize) {
+            throw new IndexOutOfBoundsException("position " + position + ", size " + mSize);
+        }
+        int index = mHead + position;
+        return index >= mCapacity ? index - mCapacity : index;
+    }
+
+    public String getUsername(int position) {
+        return mUsernames[indexOf(position)];
+    }
+
+    public String getMessage(int position) {
+        return mMessages[indexOf(position)];
+    }
+
+    public long getSequence(int position) {
+        return mSequences[indexOf(position)];
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * @return Sequence number of the most recently appended message, or 0 if none was appended
+     */
+    public long getLastSequence() {
+        return mLastSequence;
+    }
+
+    /**
+     * Continues the sequence numbering after the given one, e.g. for messages that are kept
+     * elsewhere
+     *
+     * @param sequence
+     *            Must not be before the last sequence number in the store
+     */
+    public void skipTo(long sequence) {
+        if (sequence < mLastSequence) {
+            throw new IllegalArgumentException("sequence " + sequence + " is before " + mLastSequence);
+        }
+        mLastSequence = sequence;
+    }
+
+    /**
+     * Removes all messages, forgets their usernames and resets the sequence numbering
+     */
+    public void clear() {
+        for (int i = 0; i < mCapacity; i++) {
+            mUsernames[i] = null;
+            mMessages[i] = null;
+        }
+        mInternedUsernames.clear();
+        mHead = 0;
+        mSize = 0;
+        mLastSequence = 0;
+    }
+
+}
@@ -0,0 +1,50 @@
+package com.pixplicity.castdemo;
+
+/**
+ * Streaming speech recognition, so that {@link LiveTranscriber} can be driven by
+ * {@link AndroidRecognizer} or, in the JVM tests, by a fake that speaks a given phrase. All calls
+ * and callbacks happen on the main thread.
+ */
+public interface Recognizer {
+
+    public static interface Listener {
+
+        /**
+         * @param text
+         *            Everything recognized so far; replaces the previous partial result
+         */
+        public void onPartialResult(String text);
+
+        /**
+         * Ends recognition
+         *
+         * @param text
+         *            The best match, or null if nothing was recognized
+         */
+        public void onFinalResult(String text);
+
+        /**
+         * Ends recognition
+         *
+         * @param error
+         *            One of the <code>SpeechRecognizer.ERROR_*</code> codes
+         */
+        public void onError(int error);
+
+    }
+
+    public void start(Listener listener);
+
+    /**
+     * Stops listening; the final result still follows
+     */
+    public void stop();
+
+    /**
+     * Stops listening without a result
+     */
+    public void cancel();
+
+    public void destroy();
+
+}
@@ -0,0 +1,198 @@
+package com.pixplicity.castdemo;
+
+import java.util.Random;
+
+/**
+ * Schedules reconnection attempts with jittered exponential backoff and keeps time-to-recover
+ * statistics. Knows nothing about Cast itself; the {@link Target} performs the attempts and the
+ * {@link Timer} provides time, so the state transitions can be driven by a fake transport.
+ * <p>
+ * All methods must be called on the same thread as the timer runs its tasks on.
+ */
+public class ReconnectScheduler {
+
+    public static final long DEFAULT_BASE_DELAY_MS = 500;
+    public static final long DEFAULT_MAX_DELAY_MS = 30000;
+    public static final int DEFAULT_MAX_ATTEMPTS = 8;
+
+    public static enum State {
+        /** Connected, or never connected */
+        IDLE,
+        /** Waiting for the backoff delay before the next attempt */
+        BACKING_OFF,
+        /** An attempt is in progress */
+        ATTEMPTING
+    }
+
+    public static interface Target {
+
+        /**
+         * Start a reconnection attempt. Report the outcome through
+         * {@link ReconnectScheduler#onRecovered()} or {@link ReconnectScheduler#onConnectionLost()}.
+         *
+         * @param attempt
+         *            Attempt number, starting at 1
+         */
+        public void reconnect(int attempt);
+
+        /**
+         * All attempts failed
+         */
+        public void giveUp();
+
+    }
+
+    private final Target mTarget;
+    private final Timer mTimer;
+    private final Random mRandom;
+    private final long mBaseDelay;
+    private final long mMaxDelay;
+    private final int mMaxAttempts;
+
+    private State mState = State.IDLE;
+    private int mAttempt;
+    private long mLostAt;
+
+    private int mRecoveries;
+    private int mGiveUps;
+    private int mTotalAttempts;
+    private long mTotalTimeToRecover;
+    private long mMaxTimeToRecover;
+
+    private final Runnable mAttemptRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+            mState = State.ATTEMPTING;
+            mTotalAttempts++;
+            mTarget.reconnect(mAttempt);
+        }
+    };
+
+    public ReconnectScheduler(Target target) {
+        this(target, new HandlerTimer(), new Random(), DEFAULT_BASE_DELAY_MS, DEFAULT_MAX_DELAY_MS,
+                DEFAULT_MAX_ATTEMPTS);
+    }
+
+    public ReconnectScheduler(Target target, Timer timer, Random random, long baseDelay, long maxDelay,
+            int maxAttempts) {
+        mTarget = target;
+        mTimer = timer;
+        mRandom = random;
+        mBaseDelay = baseDelay;
+        mMaxDelay = maxDelay;
+        mMaxAttempts = maxAttempts;
+    }
+
+    /**
+     * Marks the start of an outage without scheduling attempts, e.g. when the underlying client
+     * reconnects by itself; time to recover is measured from here
+     */
+    public void onConnectionSuspended() {
+        if (mState == State.IDLE && mLostAt == 0) {
+            mLostAt = mTimer.now();
+        }
+    }
+
+    /**
+     * The connection was lost, or the current attempt failed; schedules the next attempt
+     */
+    public void onConnectionLost() {
+        if (mState == State.BACKING_OFF) {
+            // Already waiting for the next attempt
+            return;
+        }
+        if (mState == State.IDLE) {
+            if (mLostAt == 0) {
+                mLostAt = mTimer.now();
+            }
+            mAttempt = 0;
+        }
+        if (mAttempt >= mMaxAttempts) {
+            mGiveUps++;
+            reset();
+            mTarget.giveUp();
+            return;
+        }
+        mAttempt++;
+        mState = State.BACKING_OFF;
+        mTimer.schedule(mAttemptRunnable, getDelay(mAttempt));
+    }
+
+    /**
+     * @return Delay before the given attempt: exponential in the attempt number, capped, with
+     *         the upper half randomized so that senders don't retry in lockstep
+     */
+    private long getDelay(int attempt) {
+        long delay = mBaseDelay << Math.min(attempt - 1, 20);
+        if (delay > mMaxDelay || delay <= 0) {
+            delay = mMaxDelay;
+        }
+        long half = delay / 2;
+        return half + (long) (mRandom.nextDouble() * (delay - half));
+    }
+
+    /**
+     * Makes the attempt that is waiting for its backoff delay right away, e.g. when the app comes
+     * back to the foreground; does nothing if no attempt is waiting
+     *
+     * @return Whether an attempt was started
+     */
+    public boolean retryNow() {
+        if (mState != State.BACKING_OFF) {
+            return false;
+        }
+        mTimer.cancel(mAttemptRunnable);
+        mAttemptRunnable.run();
+        return true;
+    }
+
+    /**
+     * The connection is back
+     */
+    public void onRecovered() {
+        if (mLostAt != 0) {
+            long timeToRecover = mTimer.now() - mLostAt;
+            mRecoveries++;
+            mTotalTimeToRecover += timeToRecover;
+            if (timeToRecover > mMaxTimeToRecover) {
+                mMaxTimeToRecover = timeToRecover;
+            }
+        }
+        reset();
+    }
+
+    /**
+     * Stops any pending attempt, e.g. when the user disconnects
+     */
+    public void cancel() {
+        reset();
+    }
+
+    private void reset() {
+        mTimer.cancel(mAttemptRunnable);
+        mState = State.IDLE;
+        mAttempt = 0;
+        mLostAt = 0;
+    }
+
+    public State getState() {
+        return mState;
+    }
+
+    /**
+     * @return Whether an outage is being recovered from
+     */
+    public boolean isRecovering() {
+        return mState != State.IDLE || mLostAt != 0;
+    }
+
+    public String getStatsSummary() {
+        return "recoveries=" + mRecoveries
+                + ", giveUps=" + mGiveUps
+                + ", attempts=" + mTotalAttempts
+                + ", avgTimeToRecoverMs=" + (mRecoveries == 0 ? 0 : mTotalTimeToRecover / mRecoveries)
+                + ", maxTimeToRecoverMs=" + mMaxTimeToRecover;
+    }
+
+}
@@ -0,0 +1,442 @@
+package com.pixplicity.castdemo;
+
+import java.util.ArrayList;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Bounded outbound queue that is drained by a background thread. Envelopes that arrive within the
+ * linger time of each other are packed into a single frame (a JSON array of envelopes), so a burst
+ * of messages costs one Cast round trip instead of one per message.
+ * <p>
+ * Frames are flow controlled per receiver, by the {@link FrameWindow}s behind the
+ * {@link FrameSender}: a receiver whose window is full coalesces the frames it's sent. The queue
+ * only waits while none of the receivers has room; meanwhile, envelopes keep queueing and are
+ * coalesced into the next frame, and once the queue itself is full, {@link #offer(String)} pushes
+ * back.
+ * <p>
+ * Chunks of long envelopes wait in a lane of their own and fill up whatever room frames have left
+ * after the regular envelopes, so that a long envelope doesn't hold up the ones queued after it.
+ * Frames stay below {@link #MAX_FRAME_LENGTH}.
+ */
+public class SendQueue {
+
+    private static final String TAG = SendQueue.class.getSimpleName();
+
+    public static interface FrameSender {
+
+        /**
+         * @return Whether any receiver has room for a frame right away; {@link #onCreditAvailable()}
+         *         is to be called when that changes to true
+         */
+        public boolean hasCredit();
+
+        /**
+         * Called on the sender thread for every frame that is ready to go out
+         *
+         * @param frame
+         *            Either a single envelope or a JSON array of envelopes
+         * @param envelopeCount
+         *            Number of envelopes packed in the frame
+         * @return false if the frame couldn't be sent at all
+         */
+        public boolean sendFrame(String frame, int envelopeCount);
+
+    }
+
+    // Longest wait for a receiver to have room; a receiver's window writes its frames off by then
+    private static final long CREDIT_TIMEOUT_MS = FrameWindow.ACK_TIMEOUT_MS;
+
+    /**
+     * Cast messages are limited to 64 KiB, and a character takes up to three bytes of UTF-8
+     */
+    public static final int MAX_FRAME_LENGTH = 20000;
+    /**
+     * Maximum number of chunks waiting to be sent
+     */
+    private static final int CHUNK_CAPACITY = 2 * EnvelopeCodec.MAX_CHUNKS;
+
+    private static class Entry {
+
+        final String envelope;
+        final long enqueuedAt;
+
+        Entry(String envelope, long enqueuedAt) {
+            this.envelope = envelope;
+            this.enqueuedAt = enqueuedAt;
+        }
+
+    }
+
+    private final String mName;
+    private final int mMaxBatchSize;
+    private final long mLingerMillis;
+    private final int mThreadPriority;
+    private final FrameSender mFrameSender;
+    private final BlockingQueue<Entry> mQueue;
+    private final BlockingQueue<Entry> mChunks = new LinkedBlockingQueue<Entry>(CHUNK_CAPACITY);
+    // Entries a stopped sender thread had taken but not sent; they go out first after the next start
+    private final Queue<Entry> mRequeued = new ConcurrentLinkedQueue<Entry>();
+
+    // The sender thread waits on this lock when there's nothing to send, with the flag set
+    private final Object mWakeUpLock = new Object();
+    private volatile boolean mWaiting;
+
+    private final AtomicLong mEnvelopesQueued = new AtomicLong();
+    private final AtomicLong mEnvelopesDropped = new AtomicLong();
+    private final AtomicLong mChunksQueued = new AtomicLong();
+    private final AtomicLong mChunkedDropped = new AtomicLong();
+    private final AtomicLong mEnvelopesSent = new AtomicLong();
+    private final AtomicLong mFramesSent = new AtomicLong();
+    private final AtomicLong mTotalLatency = new AtomicLong();
+    private final AtomicLong mMaxLatency = new AtomicLong();
+    private final AtomicLong mMaxDepth = new AtomicLong();
+
+    // The sender thread waits on this lock for a receiver to have room
+    private final Object mCreditLock = new Object();
+    private final AtomicLong mCreditStalls = new AtomicLong();
+    private final AtomicLong mCreditTimeouts = new AtomicLong();
+
+    private Thread mThread;
+    // Stopped thread that may still be finishing; the next thread waits for it
+    private Thread mStoppedThread;
+
+    /**
+     * @param name
+     *            Name of the sender thread, used for debugging
+     * @param capacity
+     *            Maximum number of envelopes waiting to be sent
+     * @param maxBatchSize
+     *            Maximum number of envelopes packed into one frame
+     * @param lingerMillis
+     *            How long to wait for more envelopes after the first one of a batch arrived
+     * @param threadPriority
+     *            Priority of the sender thread, see {@link Process#setThreadPriority(int)}
+     * @param frameSender
+     *            Performs the actual send
+     */
+    public SendQueue(String name, int capacity, int maxBatchSize, long lingerMillis,
+            int threadPriority, FrameSender frameSender) {
+        mName = name;
+        mMaxBatchSize = maxBatchSize;
+        mLingerMillis = lingerMillis;
+        mThreadPriority = threadPriority;
+        mFrameSender = frameSender;
+        mQueue = new ArrayBlockingQueue<Entry>(capacity);
+    }
+
+    /**
+     * Enqueues an envelope without blocking
+     *
+     * @param envelope
+     * @return false if the queue is full and the envelope was dropped
+     */
+    public boolean offer(String envelope) {
+        if (mQueue.offer(new Entry(envelope, SystemClock.elapsedRealtime()))) {
+            mEnvelopesQueued.incrementAndGet();
+            int depth = mQueue.size();
+            if (depth > mMaxDepth.get()) {
+                mMaxDepth.set(depth);
+            }
+            wakeUp();
+            return true;
+        }
+        mEnvelopesDropped.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Enqueues the chunks of a long envelope without blocking, all or none of them
+     *
+     * @param chunks
+     * @return false if there's no room for all chunks and they were dropped
+     */
+    public boolean offerChunks(String[] chunks) {
+        synchronized (mChunks) {
+            if (mChunks.remainingCapacity() < chunks.length) {
+                mChunkedDropped.incrementAndGet();
+                return false;
+            }
+            long now = SystemClock.elapsedRealtime();
+            for (String chunk : chunks) {
+                mChunks.offer(new Entry(chunk, now));
+            }
+        }
+        mChunksQueued.addAndGet(chunks.length);
+        wakeUp();
+        return true;
+    }
+
+    /**
+     * Wakes up the sender thread if it's waiting for something to send
+     */
+    private void wakeUp() {
+        if (mWaiting) {
+            synchronized (mWakeUpLock) {
+                mWakeUpLock.notifyAll();
+            }
+        }
+    }
+
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        final Thread previous = mStoppedThread;
+        mStoppedThread = null;
+        mThread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                Process.setThreadPriority(mThreadPriority);
+                if (previous != null && !awaitTermination(previous)) {
+                    return;
+                }
+                drain();
+            }
+        }, mName);
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Stops the sender thread; envelopes that are still queued, including those it was batching,
+     * are kept until the next start
+     */
+    public synchronized void stop() {
+        if (mThread != null) {
+            mThread.interrupt();
+            mStoppedThread = mThread;
+            mThread = null;
+        }
+    }
+
+    /**
+     * Waits for a stopped sender thread to put back what it was batching, so that it goes out
+     * before anything else
+     *
+     * @return false if this thread was stopped meanwhile
+     */
+    private boolean awaitTermination(Thread previous) {
+        boolean interrupted = false;
+        while (previous.isAlive()) {
+            try {
+                previous.join();
+            } catch (InterruptedException e) {
+                // Keep waiting, so that a later thread can't overtake the previous one either
+                interrupted = true;
+            }
+        }
+        return !interrupted && isCurrentThread();
+    }
+
+    private synchronized boolean isCurrentThread() {
+        return mThread == Thread.currentThread();
+    }
+
+    private void drain() {
+        Log.d(TAG, mName + " started");
+        // Owned by this thread, as a stopped thread may still be finishing its last batch
+        ArrayList<Entry> batch = new ArrayList<Entry>(mMaxBatchSize);
+        StringBuilder frameBuilder = new StringBuilder(1024);
+        // Envelope that didn't fit in the previous frame
+        Entry carry = null;
+        try {
+            while (isCurrentThread()) {
+                Entry first = carry != null ? carry : take();
+                carry = null;
+                batch.add(first);
+                int length = 2 + first.envelope.length();
+                long deadline = SystemClock.elapsedRealtime() + mLingerMillis;
+                while (batch.size() < mMaxBatchSize) {
+                    Entry entry = mRequeued.poll();
+                    if (entry == null) {
+                        long remaining = deadline - SystemClock.elapsedRealtime();
+                        entry = remaining > 0 ? mQueue.poll(remaining, TimeUnit.MILLISECONDS) : mQueue.poll();
+                    }
+                    if (entry == null) {
+                        break;
+                    }
+                    if (length + 1 + entry.envelope.length() > MAX_FRAME_LENGTH) {
+                        carry = entry;
+                        break;
+                    }
+                    batch.add(entry);
+                    length += 1 + entry.envelope.length();
+                }
+                if (!awaitCredit()) {
+                    // Coalesce whatever queued up while we waited for room
+                    Entry entry;
+                    while (carry == null && batch.size() < mMaxBatchSize && (entry = mQueue.poll()) != null) {
+                        if (length + 1 + entry.envelope.length() > MAX_FRAME_LENGTH) {
+                            carry = entry;
+                            break;
+                        }
+                        batch.add(entry);
+                        length += 1 + entry.envelope.length();
+                    }
+                }
+                // Chunks take the room that's left
+                Entry chunk;
+                while (carry == null && batch.size() < mMaxBatchSize && (chunk = mChunks.peek()) != null
+                        && length + 1 + chunk.envelope.length() <= MAX_FRAME_LENGTH) {
+                    batch.add(mChunks.poll());
+                    length += 1 + chunk.envelope.length();
+                }
+                if (!isCurrentThread()) {
+                    // Stopped while batching; the connection is gone
+                    break;
+                }
+                sendBatch(batch, frameBuilder);
+            }
+        } catch (InterruptedException e) {
+            // Stopped
+        }
+        // Whatever wasn't sent goes out first after the next start, in the same order
+        mRequeued.addAll(batch);
+        if (carry != null) {
+            mRequeued.add(carry);
+        }
+        if (!batch.isEmpty() || carry != null) {
+            Log.d(TAG, mName + ": kept " + (batch.size() + (carry != null ? 1 : 0)) + " unsent envelopes");
+        }
+        batch.clear();
+        Log.d(TAG, mName + " stopped; " + getStatsSummary());
+    }
+
+    /**
+     * Takes the next regular envelope, or the next chunk if there is none, waiting if needed
+     *
+     * @return The entry
+     * @throws InterruptedException
+     */
+    private Entry take() throws InterruptedException {
+        while (true) {
+            Entry entry = mRequeued.poll();
+            if (entry == null) {
+                entry = mQueue.poll();
+            }
+            if (entry == null) {
+                entry = mChunks.poll();
+            }
+            if (entry != null) {
+                return entry;
+            }
+            synchronized (mWakeUpLock) {
+                // Set before checking, so that an offer either sees the flag or is seen here
+                mWaiting = true;
+                try {
+                    while (mQueue.isEmpty() && mChunks.isEmpty()) {
+                        mWakeUpLock.wait();
+                    }
+                } finally {
+                    mWaiting = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits until a receiver has room for another frame, or until the receivers' windows have
+     * written off their frames
+     *
+     * @return Whether there was room without waiting
+     * @throws InterruptedException
+     */
+    private boolean awaitCredit() throws InterruptedException {
+        if (mFrameSender.hasCredit()) {
+            return true;
+        }
+        mCreditStalls.incrementAndGet();
+        long deadline = SystemClock.elapsedRealtime() + CREDIT_TIMEOUT_MS;
+        synchronized (mCreditLock) {
+            while (!mFrameSender.hasCredit()) {
+                long remaining = deadline - SystemClock.elapsedRealtime();
+                if (remaining <= 0) {
+                    Log.w(TAG, mName + ": no receiver had room for " + CREDIT_TIMEOUT_MS + " ms");
+                    mCreditTimeouts.incrementAndGet();
+                    break;
+                }
+                mCreditLock.wait(remaining);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Wakes up the sender thread if it's waiting for a receiver to have room; can be called from
+     * any thread
+     */
+    public void onCreditAvailable() {
+        synchronized (mCreditLock) {
+            mCreditLock.notifyAll();
+        }
+    }
+
+    private void sendBatch(ArrayList<Entry> batch, StringBuilder frameBuilder) {
+        int count = batch.size();
+        String frame;
+        if (count == 1) {
+            frame = batch.get(0).envelope;
+        } else {
+            frameBuilder.setLength(0);
+            frameBuilder.append('[');
+            for (int i = 0; i < count; i++) {
+                if (i > 0) {
+                    frameBuilder.append(',');
+                }
+                frameBuilder.append(batch.get(i).envelope);
+            }
+            frameBuilder.append(']');
+            frame = frameBuilder.toString();
+        }
+        long now = SystemClock.elapsedRealtime();
+        for (int i = 0; i < count; i++) {
+            long latency = now - batch.get(i).enqueuedAt;
+            mTotalLatency.addAndGet(latency);
+            if (latency > mMaxLatency.get()) {
+                mMaxLatency.set(latency);
+            }
+        }
+        batch.clear();
+        try {
+            mFrameSender.sendFrame(frame, count);
+        } catch (Exception e) {
+            Log.e(TAG, "Exception while sending frame", e);
+        }
+        mEnvelopesSent.addAndGet(count);
+        mFramesSent.incrementAndGet();
+    }
+
+    public int getDepth() {
+        return mRequeued.size() + mQueue.size() + mChunks.size();
+    }
+
+    public String getStatsSummary() {
+        long sent = mEnvelopesSent.get();
+        long frames = mFramesSent.get();
+        return "depth=" + mQueue.size()
+                + ", maxDepth=" + mMaxDepth.get()
+                + ", creditStalls=" + mCreditStalls.get()
+                + ", creditTimeouts=" + mCreditTimeouts.get()
+                + ", queued=" + mEnvelopesQueued.get()
+                + ", dropped=" + mEnvelopesDropped.get()
+                + ", chunks=" + mChunksQueued.get()
+                + ", chunkedDropped=" + mChunkedDropped.get()
+                + ", sent=" + sent
+                + ", frames=" + frames
+                + ", envelopesPerFrame=" + (frames == 0 ? 0 : (float) sent / frames)
+                + ", avgLatencyMs=" + (sent == 0 ? 0 : mTotalLatency.get() / sent)
+                + ", maxLatencyMs=" + mMaxLatency.get();
+    }
+
+}
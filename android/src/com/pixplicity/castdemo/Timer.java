@@ -0,0 +1,15 @@
+package com.pixplicity.castdemo;
+
+/**
+ * Time and delayed tasks, so that classes that wait for things can be driven by a fake clock;
+ * {@link HandlerTimer} is the real one
+ */
+public interface Timer {
+
+    public long now();
+
+    public void schedule(Runnable task, long delayMillis);
+
+    public void cancel(Runnable task);
+
+}
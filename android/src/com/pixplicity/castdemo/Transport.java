@@ -0,0 +1,62 @@
+package com.pixplicity.castdemo;
+
+/**
+ * Carries channel messages between {@link CastProxy} and the receivers, so that the proxy's send
+ * queues don't depend on how messages reach a device. Implemented over the Cast SDK's sessions;
+ * the JVM tests have an in-process loopback that stands in for a receiver when measuring
+ * throughput and latency. Doesn't depend on Play services, so that it can.
+ *
+ * @param <D>
+ *            Type that identifies the receiver a message came from
+ */
+public interface Transport<D> {
+
+    public static interface SendCallback {
+
+        /**
+         * Called once for every receiver a message was sent to, on an arbitrary thread
+         *
+         * @param success
+         *            Whether the receiver got the message
+         */
+        public void onResult(boolean success);
+
+    }
+
+    public static interface MessageListener<D> {
+
+        /**
+         * @param device
+         *            Receiver the message came from
+         * @param namespace
+         * @param message
+         */
+        public void onMessageReceived(D device, String namespace, String message);
+
+    }
+
+    /**
+     * @param listener
+     *            Receives inbound messages; null to stop receiving them
+     */
+    public void setMessageListener(MessageListener<? super D> listener);
+
+    /**
+     * @return Whether messages can currently be sent to at least one receiver
+     */
+    public boolean isConnected();
+
+    /**
+     * Sends a message without waiting for the result; can be called from any thread
+     *
+     * @param namespace
+     * @param message
+     * @param callback
+     *            Informed of the result for each receiver; may be null
+     * @return Number of receivers the message was sent to, and thus of results to expect
+     */
+    public int sendMessage(String namespace, String message, SendCallback callback);
+
+    public String getStatsSummary();
+
+}
@@ -0,0 +1,244 @@
+package com.pixplicity.castdemo;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.widget.EditText;
+
+/**
+ * Streams the contents of a text field to the receiver's draft line while it's being typed. Each
+ * update is a single edit, computed from the common prefix and suffix of what was sent last and
+ * what the field holds now, so its size follows the change rather than the text. Updates go out
+ * once typing pauses for {@link #DEBOUNCE_MILLIS}, at most {@link #MAX_DELAY_MILLIS} after the first
+ * change they cover, and no more often than every {@link #MIN_INTERVAL_MILLIS}.
+ * <p>
+ * Edits are numbered by the version of the draft they produce. The first update, and the first
+ * after a failed send or after the receiver asks for it, carries the full text instead. Only the
+ * first {@link #MAX_DRAFT_LENGTH} characters are streamed, so that the full text stays small however
+ * much is pasted.
+ * <p>
+ * Only used on the main thread. The timing logic takes the time as an argument, so that tests can
+ * replay typing through it without a text field.
+ */
+public class TypingStreamer implements TextWatcher {
+
+    public static final long DEBOUNCE_MILLIS = 32;
+    public static final long MAX_DELAY_MILLIS = 100;
+    public static final long MIN_INTERVAL_MILLIS = 100;
+    // Longest draft shown on the receiver, so that the full text is cheap to send again
+    public static final int MAX_DRAFT_LENGTH = 2000;
+
+    public static interface Output {
+
+        /**
+         * @param text
+         *            Full text of the draft
+         * @param version
+         * @param changedAt
+         *            Time of the first change the update covers
+         * @return false if the draft couldn't be sent
+         */
+        public boolean sendDraft(String text, long version, long changedAt);
+
+        /**
+         * @param at
+         *            Offset of the edit in the draft
+         * @param del
+         *            Number of characters removed at the offset
+         * @param insert
+         *            Text inserted at the offset
+         * @param version
+         *            Version of the draft after the edit
+         * @param changedAt
+         *            Time of the first change the update covers
+         * @return false if the edit couldn't be sent
+         */
+        public boolean sendDraftEdit(int at, int del, String insert, long version, long changedAt);
+
+    }
+
+    private final Output mOutput;
+    private Handler mHandler;
+    private EditText mEditText;
+
+    // What the receiver has, and the latest text that wasn't sent yet, or null
+    private String mSent = "";
+    private long mVersion;
+    private boolean mNeedsFullText = true;
+    private String mPending;
+    private long mFirstPendingAt;
+    private long mLastSentAt = -MIN_INTERVAL_MILLIS;
+
+    private long mChanges;
+    private long mEdits;
+    private long mFullTexts;
+    private long mMaxStalenessMillis;
+
+    private final Runnable mFlush = new Runnable() {
+
+        @Override
+        public void run() {
+            flush(SystemClock.elapsedRealtime());
+        }
+    };
+
+    public TypingStreamer(Output output) {
+        mOutput = output;
+    }
+
+    /**
+     * Starts streaming the field's changes
+     *
+     * @param editText
+     */
+    public void attach(EditText editText) {
+        if (mEditText != null) {
+            return;
+        }
+        mHandler = new Handler();
+        mEditText = editText;
+        editText.addTextChangedListener(this);
+    }
+
+    public void detach() {
+        if (mEditText == null) {
+            return;
+        }
+        mEditText.removeTextChangedListener(this);
+        mEditText = null;
+        reset();
+    }
+
+    public boolean isAttached() {
+        return mEditText != null;
+    }
+
+    /**
+     * Forgets the draft, e.g. because it was sent as a message, which removes it on the receiver
+     */
+    public void reset() {
+        if (mHandler != null) {
+            mHandler.removeCallbacks(mFlush);
+        }
+        mPending = null;
+        mSent = "";
+        mNeedsFullText = true;
+    }
+
+    /**
+     * Sends the full text with the next update, and right away if nothing is pending
+     */
+    public void requestFullText() {
+        mNeedsFullText = true;
+        if (mEditText != null && mPending == null && mSent.length() > 0) {
+            mPending = mSent;
+            mFirstPendingAt = SystemClock.elapsedRealtime();
+            mHandler.post(mFlush);
+        }
+    }
+
+    @Override
+    public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+    }
+
+    @Override
+    public void onTextChanged(CharSequence s, int start, int before, int count) {
+    }
+
+    @Override
+    public void afterTextChanged(Editable s) {
+        long delay = onChange(s.toString(), SystemClock.elapsedRealtime());
+        if (delay >= 0) {
+            mHandler.removeCallbacks(mFlush);
+            mHandler.postDelayed(mFlush, delay);
+        }
+    }
+
+    /**
+     * @param text
+     *            Contents of the field after a change
+     * @param now
+     * @return Delay until the pending update should be sent, or -1 if there's nothing to send
+     */
+    long onChange(String text, long now) {
+        mChanges++;
+        if (text.length() > MAX_DRAFT_LENGTH) {
+            int end = MAX_DRAFT_LENGTH;
+            if (Character.isHighSurrogate(text.charAt(end - 1))) {
+                end--;
+            }
+            // Changes past the end don't change the draft
+            text = text.substring(0, end);
+        }
+        if (mPending == null) {
+            if (text.equals(mSent)) {
+                return -1;
+            }
+            mFirstPendingAt = now;
+        }
+        mPending = text;
+        long sendAt = Math.max(Math.min(now + DEBOUNCE_MILLIS, mFirstPendingAt + MAX_DELAY_MILLIS),
+                mLastSentAt + MIN_INTERVAL_MILLIS);
+        return Math.max(0, sendAt - now);
+    }
+
+    /**
+     * Sends the pending update
+     *
+     * @param now
+     */
+    void flush(long now) {
+        String text = mPending;
+        if (text == null) {
+            return;
+        }
+        mPending = null;
+        mLastSentAt = now;
+        mMaxStalenessMillis = Math.max(mMaxStalenessMillis, now - mFirstPendingAt);
+        long version = ++mVersion;
+        boolean sent;
+        if (mNeedsFullText) {
+            sent = mOutput.sendDraft(text, version, mFirstPendingAt);
+            mFullTexts++;
+        } else {
+            String previous = mSent;
+            int prefix = 0;
+            int maxPrefix = Math.min(previous.length(), text.length());
+            while (prefix < maxPrefix && previous.charAt(prefix) == text.charAt(prefix)) {
+                prefix++;
+            }
+            if (prefix > 0 && Character.isHighSurrogate(text.charAt(prefix - 1))) {
+                // Don't split a surrogate pair
+                prefix--;
+            }
+            int suffix = 0;
+            int maxSuffix = maxPrefix - prefix;
+            while (suffix < maxSuffix
+                    && previous.charAt(previous.length() - 1 - suffix) == text.charAt(text.length() - 1 - suffix)) {
+                suffix++;
+            }
+            if (suffix > 0 && Character.isLowSurrogate(text.charAt(text.length() - suffix))) {
+                suffix--;
+            }
+            sent = mOutput.sendDraftEdit(prefix, previous.length() - prefix - suffix,
+                    text.substring(prefix, text.length() - suffix), version, mFirstPendingAt);
+            mEdits++;
+        }
+        if (sent) {
+            mSent = text;
+            mNeedsFullText = false;
+        } else {
+            // The receiver is missing a version now
+            mNeedsFullText = true;
+        }
+    }
+
+    public String getStatsSummary() {
+        return "changes=" + mChanges
+                + ", edits=" + mEdits
+                + ", fullTexts=" + mFullTexts
+                + ", maxStalenessMs=" + mMaxStalenessMillis;
+    }
+
+}
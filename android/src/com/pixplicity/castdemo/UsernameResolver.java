@@ -0,0 +1,164 @@
+package com.pixplicity.castdemo;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.accounts.OnAccountsUpdateListener;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Resolves the username from the device's Google account on a background thread. The result is
+ * kept in the shared preferences, so later launches have it right away, and is only resolved again
+ * when the accounts change. {@link #getUsername()} never blocks; it returns the default until a
+ * username is known.
+ */
+public class UsernameResolver {
+
+    private static final String TAG = UsernameResolver.class.getSimpleName();
+
+    public static final String DEFAULT_USERNAME = "anonymous";
+
+    private static final String ACCOUNT_TYPE = "com.google";
+
+    private static final String PREFS_NAME = "username";
+    private static final String PREF_USERNAME = "username";
+
+    public static interface Listener {
+
+        /**
+         * Called on the thread that created the resolver when the username differs from the one
+         * returned before
+         *
+         * @param username
+         */
+        public void onUsernameChanged(String username);
+
+    }
+
+    private final Context mApplicationContext;
+    private final Listener mListener;
+    private final Handler mCallbackHandler = new Handler();
+
+    private volatile String mUsername;
+    private HandlerThread mThread;
+
+    // Time it took to read the cached username and to look up the accounts, or -1 if not yet
+    private volatile long mCachedMillis = -1;
+    private volatile long mLookupMillis = -1;
+
+    private final OnAccountsUpdateListener mAccountsListener = new OnAccountsUpdateListener() {
+
+        @Override
+        public void onAccountsUpdated(Account[] accounts) {
+            String username = resolve(accounts);
+            if (!username.equals(mUsername)) {
+                Log.d(TAG, "accounts changed; username is now " + username);
+                mApplicationContext.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit()
+                        .putString(PREF_USERNAME, username)
+                        .commit();
+                publish(username);
+            }
+        }
+    };
+
+    public UsernameResolver(Context applicationContext, Listener listener) {
+        mApplicationContext = applicationContext;
+        mListener = listener;
+    }
+
+    /**
+     * Loads the cached username and starts following the accounts, both on a background thread
+     */
+    public void start() {
+        if (mThread != null) {
+            return;
+        }
+        mThread = new HandlerThread(TAG);
+        mThread.start();
+        final Handler handler = new Handler(mThread.getLooper());
+        handler.post(new Runnable() {
+
+            @Override
+            public void run() {
+                long start = SystemClock.elapsedRealtime();
+                SharedPreferences preferences = mApplicationContext.getSharedPreferences(PREFS_NAME,
+                        Context.MODE_PRIVATE);
+                String username = preferences.getString(PREF_USERNAME, null);
+                mCachedMillis = SystemClock.elapsedRealtime() - start;
+                if (username != null && mUsername == null) {
+                    publish(username);
+                }
+                // Also reports the current accounts right away, on this thread, which catches
+                // changes made while we weren't running
+                start = SystemClock.elapsedRealtime();
+                AccountManager.get(mApplicationContext).addOnAccountsUpdatedListener(mAccountsListener,
+                        handler, true);
+                mLookupMillis = SystemClock.elapsedRealtime() - start;
+            }
+        });
+    }
+
+    public void stop() {
+        if (mThread == null) {
+            return;
+        }
+        AccountManager.get(mApplicationContext).removeOnAccountsUpdatedListener(mAccountsListener);
+        mThread.quit();
+        mThread = null;
+    }
+
+    /**
+     * @return The username, or {@link #DEFAULT_USERNAME} if it isn't known yet
+     */
+    public String getUsername() {
+        String username = mUsername;
+        return username == null ? DEFAULT_USERNAME : username;
+    }
+
+    /**
+     * @return Whether a username was found, either cached or resolved
+     */
+    public boolean isResolved() {
+        return mUsername != null;
+    }
+
+    private void publish(final String username) {
+        mUsername = username;
+        mCallbackHandler.post(new Runnable() {
+
+            @Override
+            public void run() {
+                mListener.onUsernameChanged(username);
+            }
+        });
+    }
+
+    /**
+     * @return The local part of the first Google account's email address, or the default
+     */
+    private static String resolve(Account[] accounts) {
+        if (accounts != null) {
+            for (Account account : accounts) {
+                if (ACCOUNT_TYPE.equals(account.type) && account.name != null) {
+                    String[] parts = account.name.split("@");
+                    if (parts.length > 0 && parts[0].length() > 0) {
+                        return parts[0];
+                    }
+                    break;
+                }
+            }
+        }
+        return DEFAULT_USERNAME;
+    }
+
+    public String getStatsSummary() {
+        return "username=" + getUsername()
+                + ", cachedMs=" + mCachedMillis
+                + ", accountLookupMs=" + mLookupMillis;
+    }
+
+}